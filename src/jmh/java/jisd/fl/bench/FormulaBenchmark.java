@@ -0,0 +1,80 @@
+package jisd.fl.bench;
+
+import jisd.fl.core.entity.coverage.SbflCounts;
+import jisd.fl.core.entity.sbfl.ExpressionFormula;
+import jisd.fl.core.entity.sbfl.Formula;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 100万行のカバレッジ表に対する疑惑値の計算を、1要素ずつの calc(SbflCounts) と calcAll で比較する。
+ * expression* は Ochiai と同じ式を ExpressionFormula で与えた場合。
+ *
+ * <pre>
+ * ./gradlew jmh -PjmhArgs="FormulaBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormulaBenchmark {
+    private static final int LINES = 1_000_000;
+    private static final int TOTAL_PASS = 2_000;
+    private static final int TOTAL_FAIL = 5;
+
+    @Param({"OCHIAI", "TARAnTULA", "JACCARD", "AMPLe"})
+    public Formula formula;
+
+    //Formula.OCHIAI と同じ式
+    private final ExpressionFormula expression = ExpressionFormula.compile("ef / sqrt((ef + nf) * (ef + ep))");
+
+    private int[] ep;
+    private int[] ef;
+    private double[] scores;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        ep = new int[LINES];
+        ef = new int[LINES];
+        scores = new double[LINES];
+        for (int i = 0; i < LINES; i++) {
+            //大半の行は一部の成功テストだけに実行され、失敗テストに実行される行は少ない
+            ep[i] = random.nextInt(TOTAL_PASS + 1);
+            ef[i] = random.nextInt(10) == 0 ? random.nextInt(TOTAL_FAIL + 1) : 0;
+        }
+    }
+
+    @Benchmark
+    public void perElement(Blackhole bh) {
+        for (int i = 0; i < LINES; i++) {
+            SbflCounts counts = new SbflCounts(ep[i], ef[i], TOTAL_PASS - ep[i], TOTAL_FAIL - ef[i]);
+            bh.consume(counts.getSuspiciousness(formula));
+        }
+    }
+
+    @Benchmark
+    public double[] batch() {
+        formula.calcAll(ep, ef, LINES, TOTAL_PASS, TOTAL_FAIL, scores);
+        return scores;
+    }
+
+    @Benchmark
+    public void expressionPerElement(Blackhole bh) {
+        for (int i = 0; i < LINES; i++) {
+            bh.consume(expression.calc(ep[i], ef[i], TOTAL_PASS - ep[i], TOTAL_FAIL - ef[i]));
+        }
+    }
+
+    @Benchmark
+    public double[] expressionBatch() {
+        expression.calcAll(ep, ef, LINES, TOTAL_PASS, TOTAL_FAIL, scores);
+        return scores;
+    }
+}
@@ -2,6 +2,7 @@ package experiment.setUp;
 
 import experiment.defect4j.Defects4jUtil;
 import jisd.fl.core.entity.element.ClassElementName;
+import jisd.fl.infra.jacoco.exec.JacocoTestExecSession;
 import jisd.fl.usecase.CoverageAnalyzer;
 
 import java.io.File;
@@ -47,17 +48,20 @@ public class Coverage {
             Defects4jUtil.changeTargetVersion(project, bugId);
             Defects4jUtil.compileBuggySrc(project, bugId);
             List<MethodElementName> testMethods = Defects4jUtil.getFailedTestMethods(project, bugId);
-            CoverageAnalyzer ca = new CoverageAnalyzer();
-            Set<ClassElementName> executed = new HashSet<>();
-            for(MethodElementName testMethodName : testMethods) {
-                ClassElementName testClassName = testMethodName.classElementName;
+            //失敗テストを含むテストクラスごとにサーバJVMを起動し直さないよう、バグごとに1つのセッションを使い回す
+            try (JacocoTestExecSession session = JacocoTestExecSession.open(1)) {
+                CoverageAnalyzer ca = new CoverageAnalyzer(session, false);
+                Set<ClassElementName> executed = new HashSet<>();
+                for (MethodElementName testMethodName : testMethods) {
+                    ClassElementName testClassName = testMethodName.classElementName;
 
-                if(executed.contains(testClassName)) continue;
-                executed.add(testClassName);
+                    if (executed.contains(testClassName)) continue;
+                    executed.add(testClassName);
 
-                ca.analyze(testClassName);
-                //TODO: テストの実行結果が正しいかをチェックするバリデーションを行う。
+                    ca.analyze(testClassName);
+                    //TODO: テストの実行結果が正しいかをチェックするバリデーションを行う。
 
+                }
             }
 //            JsonIO.export(ca.result(), outputFile);
 //            ca.result().free();
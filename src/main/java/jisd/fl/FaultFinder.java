@@ -1,25 +1,43 @@
 package jisd.fl;
 
+import jisd.fl.core.entity.coverage.SbflCoverageSource;
 import jisd.fl.core.entity.element.ClassElementName;
+import jisd.fl.core.entity.element.MethodElementName;
+import jisd.fl.core.util.PropertyLoader;
+import jisd.fl.infra.jacoco.ClassFileWatcher;
 import jisd.fl.infra.jacoco.ProjectSbflCoverage;
+import jisd.fl.infra.session.ScoreJournalFile;
 import jisd.fl.presenter.FLRankingPresenter;
 import jisd.fl.usecase.Probe;
 import jisd.fl.core.entity.susp.SuspiciousExprTreeNode;
 import jisd.fl.core.entity.FLRanking;
 import jisd.fl.core.entity.FLRankingElement;
+import jisd.fl.core.entity.ScoreJournal;
+import jisd.fl.core.entity.ScoreRollUp;
+import jisd.fl.ranking.ProvisionalRankingListener;
 import jisd.fl.ranking.TraceToScoreAdjustmentConverter;
 import jisd.fl.core.entity.sbfl.Formula;
 import jisd.fl.usecase.CoverageAnalyzer;
 import jisd.fl.core.entity.sbfl.Granularity;
+import jisd.fl.core.entity.sbfl.SbflScoreMatrix;
+import jisd.fl.core.entity.sbfl.SuspiciousnessFormula;
 import jisd.fl.core.entity.susp.SuspiciousVariable;
 import jisd.fl.presenter.ScoreUpdateReport;
 import jisd.fl.core.entity.element.CodeElementIdentifier;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.DoubleFunction;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * テストスイートのカバレッジ情報から疑惑値ランキングを生成・操作するためのクラス。
@@ -37,37 +55,227 @@ public class FaultFinder {
     protected double probeLambda = 0.8;
 
     private final int rankingSize = 20;
-    final Granularity granularity;
+    //表示・操作の対象のランキングの粒度。flRanking はこの粒度のランキング
+    Granularity granularity;
+    SuspiciousnessFormula formula;
+    //作成済みの粒度ごとのランキング。粒度は最初に使われたときに同じカバレッジから作る
+    private final Map<Granularity, GranularityRanking> rankings = new EnumMap<>(Granularity.class);
+    //remove(), susp(), probe() などによる疑惑値の変化の記録。undo(), redo() に使用する
+    private ScoreJournal journal = new ScoreJournal();
     public ProjectSbflCoverage coverage;
+    private final CoverageAnalyzer coverageAnalyzer;
+    //null の場合は対象のクラスファイルを監視しない
+    private ClassFileWatcher watcher;
 
     public FaultFinder(ClassElementName targetTestClassName){
+        this(targetTestClassName, 1);
+    }
+
+    /**
+     * @param coverageServerCount カバレッジ計測に使用するテスト実行サーバJVMの数。2以上の場合は並列に計測する。
+     */
+    public FaultFinder(ClassElementName targetTestClassName, int coverageServerCount){
+        this(targetTestClassName, coverageServerCount, false);
+    }
+
+    /**
+     * @param coverageServerCount カバレッジ計測に使用するテスト実行サーバJVMの数。2以上の場合は並列に計測する。
+     * @param watchTargetClasses true の場合、対象のクラスファイルを監視し、再コンパイルされたら影響を受けるテストだけを再実行してランキングを更新する。
+     */
+    public FaultFinder(ClassElementName targetTestClassName, int coverageServerCount, boolean watchTargetClasses){
         this.granularity = Granularity.LINE;
-        Formula f = Formula.OCHIAI;
-        CoverageAnalyzer coverageAnalyzer = new CoverageAnalyzer();
+        //設定に式があればそれを使う
+        this.formula = PropertyLoader.getSbflFormula().map(SuspiciousnessFormula::of).orElse(Formula.OCHIAI);
+        coverageAnalyzer = new CoverageAnalyzer(coverageServerCount);
+        //設定で有効にされていれば、前回から変更の無いテストはキャッシュから読み込み、再実行しない
+        if(PropertyLoader.isCoverageCacheEnabled()) coverageAnalyzer.useCoverageCache(PropertyLoader.getCoverageCacheDir());
+        if(watchTargetClasses) coverageAnalyzer.recordPerTestCoverage();
         coverage = coverageAnalyzer.analyze(targetTestClassName);
-        flRanking = new FLRanking();
+        flRanking = ranking(granularity);
         presenter = new FLRankingPresenter(flRanking);
-        calcSuspiciousness(coverage, granularity, f);
+        if(watchTargetClasses) watchTargetClasses();
     }
 
-    private void calcSuspiciousness(ProjectSbflCoverage sbflCoverage, Granularity granularity, Formula f){
-        switch (granularity){
-            case CLASS -> sbflCoverage.classCoverageEntries().forEach(entry -> {
-                double suspScore = entry.counts().getSuspiciousness(f);
-                flRanking.add(entry.e(), suspScore);
-            });
-            case METHOD -> sbflCoverage.methodCoverageEntries(true).forEach(entry -> {
-                double suspScore = entry.counts().getSuspiciousness(f);
-                flRanking.add(entry.e(), suspScore);
-            });
-            case LINE -> sbflCoverage.lineCoverageEntries(true).forEach(entry -> {
-                double suspScore = entry.counts().getSuspiciousness(f);
-                flRanking.add(entry.e(), suspScore);
+    /**
+     * 失敗テストを先に実行し、カバレッジの計測中から途中のランキングを listener に渡す。
+     * 失敗テストの後に1度、その後は refreshInterval 個のテストを実行するごとに、実行済みのテストからランキングを作り直して渡す。
+     * listener が false を返した場合 ({@link jisd.fl.ranking.TopKStabilityListener} で上位が安定した場合など) は、
+     * 残りのテストを実行せず、その時点のカバレッジでランキングを作る。
+     * キャッシュは使わない。
+     *
+     * @param failingTests 失敗することが分かっているテスト
+     * @param refreshInterval 途中のランキングを作る間隔 (テスト数)
+     */
+    public FaultFinder(ClassElementName targetTestClassName, int coverageServerCount, Collection<MethodElementName> failingTests,
+                       int refreshInterval, ProvisionalRankingListener listener){
+        this.granularity = Granularity.LINE;
+        this.formula = PropertyLoader.getSbflFormula().map(SuspiciousnessFormula::of).orElse(Formula.OCHIAI);
+        coverageAnalyzer = new CoverageAnalyzer(coverageServerCount);
+        coverage = coverageAnalyzer.analyzeProgressively(targetTestClassName, failingTests, refreshInterval,
+                new CoverageAnalyzer.ProgressListener() {
+                    @Override
+                    public boolean onProgress(ProjectSbflCoverage partial, int testsDone, int testsTotal) {
+                        return listener.onRanking(newRanking(partial, granularity).ranking(), testsDone, testsTotal);
+                    }
+
+                    @Override
+                    public void onStopped(int testsDone, int testsTotal) {
+                        listener.onStopped(testsDone, testsTotal);
+                    }
+                });
+        flRanking = ranking(granularity);
+        presenter = new FLRankingPresenter(flRanking);
+    }
+
+    private void watchTargetClasses(){
+        try {
+            watcher = ClassFileWatcher.start(PropertyLoader.getTargetBinDir(), Duration.ofMillis(500), changed -> {
+                System.out.println("[  RELOAD  ] " + changed.size() + " class file(s) changed");
+                reanalyze(changed);
+                presenter.printFLResults(rankingSize);
             });
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to watch target classes: " + e.getMessage(), e);
+        }
+    }
+
+    public void stopWatching(){
+        if(watcher == null) return;
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        flRanking.sort();
+        watcher = null;
+    }
+
+    /**
+     * クラスファイルの変更を反映する。変更されたクラスを実行していたテストだけを再実行し、
+     * カウントが変化したクラスの要素だけ疑惑値を計算し直す。
+     * 計算し直した要素に対する remove(), susp(), probe() による調整は失われる。
+     *
+     * @param changedClasses 変更されたクラスの内部名 (e.g. org/foo/Bar)
+     */
+    public synchronized void reanalyze(Set<String> changedClasses){
+        //変更されたクラスの要素は再解析で置き換わるため、先に集めておく
+        ProjectSbflCoverage affectedCoverage = coverage.restrictedTo(coverageAnalyzer.classesAffectedBy(changedClasses));
+        Map<Granularity, Set<CodeElementIdentifier<?>>> stale = new EnumMap<>(Granularity.class);
+        rankings.keySet().forEach(g -> stale.put(g, elementsOf(affectedCoverage, g)));
+        Set<ClassElementName> updated = coverageAnalyzer.reanalyze(changedClasses);
+        ProjectSbflCoverage updatedCoverage = coverage.restrictedTo(updated);
+
+        rankings.forEach((g, r) -> {
+            Set<CodeElementIdentifier<?>> staleElements = stale.get(g);
+            staleElements.addAll(elementsOf(updatedCoverage, g));
+            r.ranking().removeAll(staleElements);
+            r.scores().removeAll(staleElements);
+            calcSuspiciousness(updatedCoverage, g, r);
+        });
+        //置き換えた要素の疑惑値は記録の変更前の値と対応しなくなるため、記録を破棄する
+        journal.clear();
     }
 
+    private Set<CodeElementIdentifier<?>> elementsOf(SbflCoverageSource sbflCoverage, Granularity granularity){
+        Stream<? extends CodeElementIdentifier<?>> elements = switch (granularity){
+            case CLASS -> sbflCoverage.classCoverageEntries().map(entry -> entry.e());
+            case METHOD -> sbflCoverage.methodCoverageEntries(false).map(entry -> entry.e());
+            case LINE -> sbflCoverage.lineCoverageEntries(false).map(entry -> entry.e());
+        };
+        return elements.collect(Collectors.toCollection(HashSet::new));
+    }
+
+    private void calcSuspiciousness(SbflCoverageSource sbflCoverage, Granularity granularity, GranularityRanking target){
+        //すべての式の疑惑値を1度に計算しておき、ランキングには使用中の式の値だけを入れる
+        SbflScoreMatrix updated = sbflCoverage.scoreMatrix(granularity);
+        updated.addFormula(formula);
+        updated.forEach(formula, target.ranking()::add);
+        target.scores().merge(updated);
+    }
+
+    /**
+     * 粒度のランキングと、その粒度のすべての式の疑惑値。
+     * scores には Formula と使用したことのある式の列があり、formula の切り替え時はここからランキングを作り直す。
+     */
+    private record GranularityRanking(FLRanking ranking, SbflScoreMatrix scores) {}
+
+    /**
+     * 指定した粒度のランキング。初めて使う粒度の場合は計測済みのカバレッジから作成する (テストは再実行しない)。
+     */
+    public synchronized FLRanking ranking(Granularity granularity){
+        return rankings.computeIfAbsent(granularity, g -> newRanking(coverage, g)).ranking();
+    }
+
+    private GranularityRanking newRanking(SbflCoverageSource sbflCoverage, Granularity granularity){
+        SbflScoreMatrix scores = new SbflScoreMatrix();
+        scores.addFormula(formula);
+        GranularityRanking r = new GranularityRanking(new FLRanking(), scores);
+        calcSuspiciousness(sbflCoverage, granularity, r);
+        return r;
+    }
+
+    public Granularity getGranularity(){
+        return granularity;
+    }
+
+    /**
+     * 表示・操作の対象のランキングの粒度を切り替える。各粒度のランキングとそれに対する調整は切り替え後も保持される。
+     */
+    public synchronized void setGranularity(Granularity granularity){
+        if(this.granularity == granularity) return;
+        this.granularity = granularity;
+        flRanking = ranking(granularity);
+        presenter = new FLRankingPresenter(flRanking);
+        System.out.println("[  GRANULARITY  ] " + granularity);
+        presenter.printFLResults(rankingSize);
+    }
+
+    /**
+     * 現在のランキングの疑惑値を、要素を含むメソッドまたはクラスごとにまとめたランキングを作る (例: 行の最大値をメソッドの疑惑値とする)。
+     * 呼び出しのたびに現在の (調整後の) 疑惑値から計算する。
+     *
+     * @param to 現在の粒度より粗い粒度
+     */
+    public synchronized FLRanking rollUp(Granularity to, ScoreRollUp rollUp){
+        //LINE -> METHOD -> CLASS の順に粗くなる
+        if(to.compareTo(granularity) <= 0){
+            throw new IllegalArgumentException("Cannot roll up " + granularity + " ranking to " + to);
+        }
+        return flRanking.rollUp(to, rollUp);
+    }
+
+    public void printRollUp(Granularity to, ScoreRollUp rollUp, int top){
+        new FLRankingPresenter(rollUp(to, rollUp)).printFLResults(top);
+    }
+
+    public SuspiciousnessFormula getFormula(){
+        return formula;
+    }
+
+    /**
+     * ランキングに使用する式を切り替える。疑惑値は計算済みの表から読み直すため、カバレッジの再計算は行わない。
+     * 表に無い式の場合も、表が保持している ep/ef から計算する。
+     * remove(), susp(), probe() による調整は失われる。
+     */
+    public synchronized void setFormula(SuspiciousnessFormula formula){
+        if(this.formula.equals(formula)) return;
+        this.formula = formula;
+        resetRankings();
+        System.out.println("[  FORMULA  ] " + formula.name());
+        presenter.printFLResults(rankingSize);
+    }
+
+
+    /**
+     * 作成済みのすべての粒度のランキングを、計算済みの表の現在の式の疑惑値に戻す。調整の記録は破棄する。
+     */
+    private void resetRankings(){
+        rankings.values().forEach(r -> {
+            r.scores().addFormula(formula);
+            r.ranking().clear();
+            r.scores().forEach(formula, r.ranking()::add);
+        });
+        journal.clear();
+    }
 
     public void printRanking(){
         presenter.printFLResults();
@@ -77,7 +285,7 @@ public class FaultFinder {
         presenter.printFLResults(top);
     }
 
-    public void remove(int rank) {
+    public synchronized void remove(int rank) {
         ScoreUpdateReport report = new ScoreUpdateReport();
         FLRankingElement target = flRanking.at(rank);
         if(target == null){
@@ -87,17 +295,17 @@ public class FaultFinder {
         System.out.println("[  REMOVE  ] " + target);
         report.recordChange(target);
 
-        target.suspScore = 0;
-        getNeighborElements(target).forEach(e -> {
-            updateSuspiciousnessScore(e, score -> score * this.removeConst);
+        recordOperation("remove " + target.getCodeElementName(), () -> {
+            flRanking.updateSuspiciousnessScore(target, 0);
+            flRanking.neighborsOf(target.getCodeElementName())
+                    .forEach(e -> flRanking.updateSuspiciousnessScore(e, e.getSuspScore() * this.removeConst));
         });
 
         report.print();
-        flRanking.sort();
         presenter.printFLResults(rankingSize);
     }
 
-    public void susp(int rank) {
+    public synchronized void susp(int rank) {
         ScoreUpdateReport report = new ScoreUpdateReport();
         FLRankingElement target = flRanking.at(rank);
         if(target == null){
@@ -107,13 +315,13 @@ public class FaultFinder {
         System.out.println("[  SUSP  ] " + target);
         report.recordChange(target);
 
-        target.suspScore = 0;
-        getNeighborElements(target).forEach(e -> {
-            updateSuspiciousnessScore(e, score -> score * this.suspConst);
+        recordOperation("susp " + target.getCodeElementName(), () -> {
+            flRanking.updateSuspiciousnessScore(target, 0);
+            flRanking.neighborsOf(target.getCodeElementName())
+                    .forEach(e -> flRanking.updateSuspiciousnessScore(e, e.getSuspScore() * this.suspConst));
         });
 
         report.print();
-        flRanking.sort();
         presenter.printFLResults(rankingSize);
     }
 
@@ -135,9 +343,8 @@ public class FaultFinder {
     //リファクタリングのための一時メソッド
     @Deprecated
     public Set<CodeElementIdentifier<?>> getNeighborElements(FLRankingElement target){
-        return flRanking.getAllElements().stream()
-                .filter(e -> e.isNeighbor(target.getCodeElementName()) && !e.equals(target.getCodeElementName()))
-                .map(e -> (CodeElementIdentifier<?>) e)
+        return flRanking.neighborsOf(target.getCodeElementName()).stream()
+                .map(e -> (CodeElementIdentifier<?>) e.getCodeElementName())
                 .collect(Collectors.toSet());
     }
 
@@ -145,18 +352,116 @@ public class FaultFinder {
      * ランキングの要素を再計算
      * @param adjustments
      */
-    public void adjustAll(Map<CodeElementIdentifier<?>, Double> adjustments) {
-        for ( Map.Entry<CodeElementIdentifier<?>, Double> adj : adjustments.entrySet()) {
-            Optional<FLRankingElement> target = flRanking.searchElement(adj.getKey());
-            if (target.isEmpty()) continue;
-            target.get().suspScore *= adj.getValue();
-        }
-        flRanking.sort();
+    public synchronized void adjustAll(Map<CodeElementIdentifier<?>, Double> adjustments) {
+        recordOperation("adjust " + adjustments.size() + " element(s)", () -> {
+            for ( Map.Entry<CodeElementIdentifier<?>, Double> adj : adjustments.entrySet()) {
+                Optional<FLRankingElement> target = flRanking.searchElement(adj.getKey());
+                if (target.isEmpty()) continue;
+                flRanking.updateSuspiciousnessScore(target.get(), target.get().getSuspScore() * adj.getValue());
+            }
+        });
     }
 
-    public void updateSuspiciousnessScore(CodeElementIdentifier<?> target, DoubleFunction<Double> f){
+    public synchronized void updateSuspiciousnessScore(CodeElementIdentifier<?> target, DoubleFunction<Double> f){
         FLRankingElement e = flRanking.searchElement(target).get();
-        double newScore = f.apply(e.suspScore);
-        flRanking.updateSuspiciousnessScore(target, newScore);
+        double newScore = f.apply(e.getSuspScore());
+        recordOperation("update " + target, () -> flRanking.updateSuspiciousnessScore(target, newScore));
+    }
+
+    /**
+     * change による現在のランキングの疑惑値の変化を、1つの操作として記録する。
+     */
+    private void recordOperation(String label, Runnable change){
+        flRanking.startRecording();
+        try {
+            change.run();
+        } finally {
+            List<ScoreJournal.ScoreDelta> deltas = flRanking.stopRecording();
+            if(!deltas.isEmpty()) journal.record(new ScoreJournal.Operation(label, granularity, deltas));
+        }
+    }
+
+    /**
+     * 最後の操作による疑惑値の変化を取り消す。
+     *
+     * @return 取り消す操作が無い場合は false
+     */
+    public synchronized boolean undo(){
+        Optional<ScoreJournal.Operation> op = journal.undo();
+        if(op.isEmpty()) return false;
+        FLRanking target = ranking(op.get().granularity());
+        List<ScoreJournal.ScoreDelta> deltas = op.get().deltas();
+        //同じ要素が複数回変化している場合に備え、逆順に戻す
+        for(int i = deltas.size() - 1; i >= 0; i--) setScore(target, deltas.get(i).element(), deltas.get(i).before());
+        System.out.println("[  UNDO  ] " + op.get().label());
+        presenter.printFLResults(rankingSize);
+        return true;
+    }
+
+    /**
+     * 最後に取り消した操作をやり直す。
+     *
+     * @return やり直す操作が無い場合は false
+     */
+    public synchronized boolean redo(){
+        Optional<ScoreJournal.Operation> op = journal.redo();
+        if(op.isEmpty()) return false;
+        applyOperation(op.get());
+        System.out.println("[  REDO  ] " + op.get().label());
+        presenter.printFLResults(rankingSize);
+        return true;
+    }
+
+    /**
+     * @return ランキングに無い要素のため適用できなかった変化の数
+     */
+    private int applyOperation(ScoreJournal.Operation op){
+        FLRanking target = ranking(op.granularity());
+        int missing = 0;
+        for(ScoreJournal.ScoreDelta delta : op.deltas()){
+            if(!setScore(target, delta.element(), delta.after())) missing++;
+        }
+        return missing;
+    }
+
+    private static boolean setScore(FLRanking target, CodeElementIdentifier<?> element, double score){
+        Optional<FLRankingElement> e = target.searchElement(element);
+        e.ifPresent(entry -> target.updateSuspiciousnessScore(entry, score));
+        return e.isPresent();
+    }
+
+    /**
+     * 使用中の式と操作の記録をファイルに保存する。
+     * カバレッジはテストのキャッシュに保存されているため、{@link #openSession(Path)} ではテストを再実行せずに復元できる。
+     */
+    public synchronized void saveSession(Path file){
+        try {
+            ScoreJournalFile.save(file, formula.name(), journal);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to save session: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * {@link #saveSession(Path)} で保存した式に切り替え、記録された操作のうち適用済みのものをランキングに適用し直す。
+     * 取り消した操作は redo() でやり直せる。現在のランキングへの調整は破棄する。
+     */
+    public synchronized void openSession(Path file){
+        ScoreJournalFile.Saved saved;
+        try {
+            saved = ScoreJournalFile.load(file);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open session: " + e.getMessage(), e);
+        }
+        this.formula = SuspiciousnessFormula.of(saved.formula());
+        resetRankings();
+        List<ScoreJournal.Operation> operations = saved.journal().operations();
+        int missing = 0;
+        for(int i = 0; i < saved.journal().appliedCount(); i++) missing += applyOperation(operations.get(i));
+        //復元した記録は適用した後に設定する (適用中の変化を記録しないように)
+        journal = saved.journal();
+        if(missing > 0) System.out.println("[FaultFinder] " + missing + " score change(s) refer to elements not in the current ranking");
+        System.out.println("[  SESSION  ] " + file + " (" + saved.journal().appliedCount() + " operation(s))");
+        presenter.printFLResults(rankingSize);
     }
 }
@@ -1,47 +1,219 @@
 package jisd.fl.core.entity;
 
+import jisd.fl.core.entity.element.ClassElementName;
 import jisd.fl.core.entity.element.CodeElementIdentifier;
+import jisd.fl.core.entity.element.LineElementName;
+import jisd.fl.core.entity.element.MethodElementName;
+import jisd.fl.core.entity.sbfl.Granularity;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
 
+/**
+ * 疑惑値のランキング。
+ * 要素からエントリへの索引と、要素を含むメソッド・クラス・パッケージごとの索引を持ち、
+ * 要素の検索や近傍の要素の取得でランキング全体を走査しない。
+ * エントリは順序統計木で常に順序を保つため、疑惑値の更新は O(log n) で、並べ替えは不要。
+ * 疑惑値の変更は必ず updateSuspiciousnessScore を通して行う。
+ */
 public class FLRanking {
-    List<FLRankingElement> ranking = new ArrayList<>();
+    private final RankingTree ranking = new RankingTree();
+    private final Map<CodeElementIdentifier, FLRankingElement> byElement = new HashMap<>();
+    //要素を含むメソッド・クラス・パッケージ -> その中の要素のエントリ
+    private final Map<MethodElementName, Set<FLRankingElement>> byMethod = new HashMap<>();
+    private final Map<ClassElementName, Set<FLRankingElement>> byClass = new HashMap<>();
+    private final Map<String, Set<FLRankingElement>> byPackage = new HashMap<>();
+    //null でない場合、updateSuspiciousnessScore による疑惑値の変化を記録する
+    private List<ScoreJournal.ScoreDelta> recording;
 
+    /**
+     * 要素を追加する。既にある要素の場合はエントリを置き換える。
+     */
     public void add(CodeElementIdentifier element, double suspScore){
-        ranking.add(new jisd.fl.core.entity.FLRankingElement(element, suspScore));
+        FLRankingElement old = byElement.get(element);
+        if(old != null) remove(old);
+        FLRankingElement e = new FLRankingElement(element, suspScore);
+        ranking.insert(e);
+        byElement.put(element, e);
+        MethodElementName method = enclosingMethod(element);
+        if(method != null) byMethod.computeIfAbsent(method, k -> new LinkedHashSet<>()).add(e);
+        ClassElementName cls = enclosingClass(element);
+        byClass.computeIfAbsent(cls, k -> new LinkedHashSet<>()).add(e);
+        byPackage.computeIfAbsent(cls.packageName, k -> new LinkedHashSet<>()).add(e);
     }
 
-    public void sort(){
-        ranking.sort(null);
+    public FLRankingElement at(int i){
+        return ranking.get(i);
     }
 
-    public FLRankingElement at(int i){
-        if(i < getSize()) return ranking.get(i);
-        return null;
+    /**
+     * 先頭から top 個のエントリ。
+     */
+    public List<FLRankingElement> top(int top){
+        return ranking.head(top);
     }
+
+    /**
+     * 要素の順位 (0始まり)。ランキングに無い場合は -1
+     */
+    public int rankOf(CodeElementIdentifier target){
+        FLRankingElement e = byElement.get(target);
+        return e == null ? -1 : ranking.rankOf(e);
+    }
+
     public int getSize(){
         return ranking.size();
     }
 
     public Optional<FLRankingElement> searchElement(CodeElementIdentifier target){
-        for(FLRankingElement e : ranking){
-            if(e.element.equals(target)) return Optional.of(e);
-        }
-        return Optional.empty();
+        return Optional.ofNullable(byElement.get(target));
     }
 
     public Set<CodeElementIdentifier> getAllElements(){
-        return ranking.stream().map(e -> e.element).collect(Collectors.toSet());
+        return new HashSet<>(byElement.keySet());
+    }
+
+    /**
+     * target の近傍 ({@link CodeElementIdentifier#isNeighbor}) にあるランキングの要素のエントリ。target 自身は含まない。
+     * 行はメソッド、メソッドはクラス、クラスはパッケージが共通な要素を近傍とする。
+     */
+    public Set<FLRankingElement> neighborsOf(CodeElementIdentifier target){
+        Set<FLRankingElement> group = switch (target){
+            case LineElementName line -> byMethod.get(line.methodElementName);
+            case MethodElementName method -> byClass.get(method.classElementName);
+            case ClassElementName cls -> byPackage.get(cls.packageName);
+            default -> throw new IllegalArgumentException("Unknown element type: " + target.getClass());
+        };
+        if(group == null) return Set.of();
+        Set<FLRankingElement> neighbors = new LinkedHashSet<>(group);
+        neighbors.removeIf(e -> e.element.equals(target));
+        return neighbors;
+    }
+
+    /**
+     * メソッド内の要素 (行) のエントリ。
+     */
+    public Set<FLRankingElement> elementsIn(MethodElementName method){
+        return Collections.unmodifiableSet(byMethod.getOrDefault(method, Set.of()));
+    }
+
+    /**
+     * クラス内の要素 (行・メソッド) のエントリ。
+     */
+    public Set<FLRankingElement> elementsIn(ClassElementName cls){
+        return Collections.unmodifiableSet(byClass.getOrDefault(cls, Set.of()));
+    }
+
+    /**
+     * パッケージ内の要素のエントリ。
+     */
+    public Set<FLRankingElement> elementsInPackage(String packageName){
+        return Collections.unmodifiableSet(byPackage.getOrDefault(packageName, Set.of()));
+    }
+
+    /**
+     * 要素を含むメソッドまたはクラスごとに疑惑値をまとめたランキングを作る。
+     * メソッドへのまとめは行のランキングに対してだけ意味を持つ。このランキングの現在の疑惑値 (調整後の値) を使用する。
+     *
+     * @param to METHOD または CLASS
+     */
+    public FLRanking rollUp(Granularity to, ScoreRollUp rollUp){
+        Map<? extends CodeElementIdentifier, Set<FLRankingElement>> groups = switch (to){
+            case METHOD -> byMethod;
+            case CLASS -> byClass;
+            case LINE -> throw new IllegalArgumentException("Cannot roll up to LINE");
+        };
+        FLRanking result = new FLRanking();
+        groups.forEach((parent, children) -> result.add(parent, rollUp.apply(children)));
+        return result;
+    }
+
+    public void clear(){
+        ranking.clear();
+        byElement.clear();
+        byMethod.clear();
+        byClass.clear();
+        byPackage.clear();
     }
 
+    public void removeAll(Set<? extends CodeElementIdentifier> targets){
+        for(CodeElementIdentifier target : targets){
+            FLRankingElement e = byElement.get(target);
+            if(e == null) continue;
+            remove(e);
+        }
+    }
 
     public void updateSuspiciousnessScore(CodeElementIdentifier target, double newScore){
-        FLRankingElement e = searchElement(target).get();
-        e.suspScore = newScore;
-        sort();
+        updateSuspiciousnessScore(searchElement(target).get(), newScore);
+    }
+
+    /**
+     * エントリの疑惑値を変更し、順序を保つ位置に移す。
+     */
+    public void updateSuspiciousnessScore(FLRankingElement e, double newScore){
+        if(e.getSuspScore() == newScore) return;
+        if(!ranking.remove(e)) throw new IllegalArgumentException("Not in the ranking: " + e);
+        if(recording != null) recording.add(new ScoreJournal.ScoreDelta(e.getCodeElementName(), e.getSuspScore(), newScore));
+        e.setSuspScore(newScore);
+        ranking.insert(e);
+    }
+
+    /**
+     * これ以降の疑惑値の変化の記録を始める。
+     */
+    public void startRecording(){
+        recording = new ArrayList<>();
+    }
+
+    /**
+     * 記録を終え、startRecording 以降の疑惑値の変化を変化した順に返す。
+     */
+    public List<ScoreJournal.ScoreDelta> stopRecording(){
+        if(recording == null) throw new IllegalStateException("recording is not started");
+        List<ScoreJournal.ScoreDelta> deltas = recording;
+        recording = null;
+        return deltas;
+    }
+
+    private void remove(FLRankingElement e){
+        unindex(e);
+        ranking.remove(e);
+    }
+
+    private void unindex(FLRankingElement e){
+        byElement.remove(e.element);
+        MethodElementName method = enclosingMethod(e.element);
+        if(method != null) removeFromGroup(byMethod, method, e);
+        ClassElementName cls = enclosingClass(e.element);
+        removeFromGroup(byClass, cls, e);
+        removeFromGroup(byPackage, cls.packageName, e);
+    }
+
+    private static <K> void removeFromGroup(Map<K, Set<FLRankingElement>> index, K key, FLRankingElement e){
+        Set<FLRankingElement> group = index.get(key);
+        if(group == null) return;
+        group.remove(e);
+        if(group.isEmpty()) index.remove(key);
+    }
+
+    private static MethodElementName enclosingMethod(CodeElementIdentifier element){
+        return element instanceof LineElementName line ? line.methodElementName : null;
+    }
+
+    private static ClassElementName enclosingClass(CodeElementIdentifier element){
+        return switch (element){
+            case LineElementName line -> line.methodElementName.classElementName;
+            case MethodElementName method -> method.classElementName;
+            case ClassElementName cls -> cls;
+            default -> throw new IllegalArgumentException("Unknown element type: " + element.getClass());
+        };
     }
 }
@@ -4,11 +4,15 @@ import jisd.fl.core.entity.element.CodeElementIdentifier;
 
 public class FLRankingElement implements Comparable<FLRankingElement> {
     final CodeElementIdentifier element;
-    public double suspScore;
+    //順序が疑惑値に依存するため、変更は FLRanking#updateSuspiciousnessScore を通して行う
+    private double suspScore;
+    //疑惑値が等しい場合の順序に使う要素の完全修飾名。同率の要素が多く、比較のたびに文字列を作らないよう生成時に1度だけ作る
+    private final String tieBreakKey;
 
     public FLRankingElement(CodeElementIdentifier element, double suspScore) {
         this.element = element;
         this.suspScore = suspScore;
+        this.tieBreakKey = element.fullyQualifiedName();
     }
 
     public CodeElementIdentifier getCodeElementName() {
@@ -19,10 +23,15 @@ public class FLRankingElement implements Comparable<FLRankingElement> {
         return suspScore;
     }
 
+    //FLRanking がランキングから取り出している間だけ呼ぶ
+    void setSuspScore(double suspScore) {
+        this.suspScore = suspScore;
+    }
+
     @Override
     public int compareTo(FLRankingElement o) {
         return (this.suspScore == o.suspScore) ?
-                this.element.toString().compareTo(o.element.toString())
+                this.tieBreakKey.compareTo(o.tieBreakKey)
                 : Double.compare(this.suspScore, o.suspScore);
     }
 
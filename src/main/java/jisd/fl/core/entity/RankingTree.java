@@ -0,0 +1,169 @@
+package jisd.fl.core.entity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * FLRankingElement の自然順序を保つ順序統計木 (treap)。
+ * 追加・削除・i 番目の取得・順位の取得をいずれも O(log n) で行う。
+ * 要素の順序は疑惑値に依存するため、木に入っている要素の疑惑値は remove してから変更し、変更後に insert し直す必要がある。
+ */
+class RankingTree {
+    private final SplittableRandom random = new SplittableRandom(0);
+    private Node root;
+
+    private static final class Node {
+        final FLRankingElement value;
+        final int priority;
+        Node left;
+        Node right;
+        int size = 1;
+
+        Node(FLRankingElement value, int priority) {
+            this.value = value;
+            this.priority = priority;
+        }
+    }
+
+    int size() {
+        return size(root);
+    }
+
+    void clear() {
+        root = null;
+    }
+
+    void insert(FLRankingElement value) {
+        Node[] parts = split(root, value);
+        root = merge(merge(parts[0], new Node(value, random.nextInt())), parts[1]);
+    }
+
+    /**
+     * @return 要素が木に無かった場合は false
+     */
+    boolean remove(FLRankingElement value) {
+        int before = size(root);
+        root = remove(root, value);
+        return size(root) < before;
+    }
+
+    /**
+     * 順序が i 番目 (0始まり) の要素。範囲外の場合は null
+     */
+    FLRankingElement get(int i) {
+        if (i < 0 || i >= size(root)) return null;
+        Node node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (i < leftSize) {
+                node = node.left;
+            } else if (i == leftSize) {
+                return node.value;
+            } else {
+                i -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * 要素の順位 (0始まり)。木に無い場合は -1
+     */
+    int rankOf(FLRankingElement value) {
+        return rankOf(root, value, 0);
+    }
+
+    /**
+     * 先頭から k 個の要素を順に並べたリスト。
+     */
+    List<FLRankingElement> head(int k) {
+        List<FLRankingElement> result = new ArrayList<>(Math.min(k, size(root)));
+        collect(root, k, result);
+        return result;
+    }
+
+    private static void collect(Node node, int k, List<FLRankingElement> out) {
+        if (node == null || out.size() >= k) return;
+        collect(node.left, k, out);
+        if (out.size() < k) out.add(node.value);
+        collect(node.right, k, out);
+    }
+
+    private static int rankOf(Node node, FLRankingElement value, int offset) {
+        while (node != null) {
+            int cmp = value.compareTo(node.value);
+            if (cmp < 0) {
+                node = node.left;
+            } else if (cmp > 0) {
+                offset += size(node.left) + 1;
+                node = node.right;
+            } else if (node.value == value) {
+                return offset + size(node.left);
+            } else {
+                //順序が等しい別の要素。どちらの側にもあり得るため両方を探す
+                int left = rankOf(node.left, value, offset);
+                if (left >= 0) return left;
+                return rankOf(node.right, value, offset + size(node.left) + 1);
+            }
+        }
+        return -1;
+    }
+
+    private static Node remove(Node node, FLRankingElement value) {
+        if (node == null) return null;
+        int cmp = value.compareTo(node.value);
+        if (cmp == 0 && node.value == value) return merge(node.left, node.right);
+        if (cmp < 0) {
+            node.left = remove(node.left, value);
+        } else if (cmp > 0) {
+            node.right = remove(node.right, value);
+        } else {
+            //順序が等しい別の要素。どちらの側にもあり得るため両方を探す
+            int before = size(node.left);
+            node.left = remove(node.left, value);
+            if (size(node.left) == before) node.right = remove(node.right, value);
+        }
+        update(node);
+        return node;
+    }
+
+    //[value より前, value 以降] に分ける
+    private static Node[] split(Node node, FLRankingElement value) {
+        if (node == null) return new Node[]{null, null};
+        if (node.value.compareTo(value) < 0) {
+            Node[] parts = split(node.right, value);
+            node.right = parts[0];
+            update(node);
+            return new Node[]{node, parts[1]};
+        } else {
+            Node[] parts = split(node.left, value);
+            node.left = parts[1];
+            update(node);
+            return new Node[]{parts[0], node};
+        }
+    }
+
+    //a の要素はすべて b の要素より前
+    private static Node merge(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        } else {
+            b.left = merge(a, b.left);
+            update(b);
+            return b;
+        }
+    }
+
+    private static void update(Node node) {
+        node.size = 1 + size(node.left) + size(node.right);
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+}
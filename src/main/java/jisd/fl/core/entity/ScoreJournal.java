@@ -0,0 +1,93 @@
+package jisd.fl.core.entity;
+
+import jisd.fl.core.entity.element.CodeElementIdentifier;
+import jisd.fl.core.entity.sbfl.Granularity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * ランキングに対する操作 (remove, susp, probe など) ごとの疑惑値の変化の記録。
+ * 操作は変化した要素の変更前後の値だけを持つため、取り消し・やり直しは影響を受けた要素の数に比例する時間で行える。
+ * 先頭から appliedCount 個の操作が適用済みで、残りはやり直せる操作。新しい操作を記録すると、やり直せる操作は破棄する。
+ */
+public class ScoreJournal {
+    private final List<Operation> operations = new ArrayList<>();
+    private int applied = 0;
+
+    /**
+     * 1つの要素の疑惑値の変化。
+     */
+    public record ScoreDelta(CodeElementIdentifier<?> element, double before, double after) {}
+
+    /**
+     * 1回の操作による疑惑値の変化。同じ要素が複数回変化した場合は、変化した順に並ぶ。
+     *
+     * @param label 表示用の操作の説明 (e.g. "remove demo.Foo#bar() line: 10")
+     * @param granularity 操作したランキングの粒度
+     */
+    public record Operation(String label, Granularity granularity, List<ScoreDelta> deltas) {
+        public Operation {
+            deltas = List.copyOf(deltas);
+        }
+    }
+
+    public ScoreJournal() {
+    }
+
+    /**
+     * 保存した記録から復元する。
+     *
+     * @param appliedCount operations のうち適用済みの操作の数
+     */
+    public ScoreJournal(List<Operation> operations, int appliedCount) {
+        if (appliedCount < 0 || appliedCount > operations.size()) {
+            throw new IllegalArgumentException("appliedCount out of range: " + appliedCount);
+        }
+        this.operations.addAll(operations);
+        this.applied = appliedCount;
+    }
+
+    public void record(Operation operation) {
+        operations.subList(applied, operations.size()).clear();
+        operations.add(operation);
+        applied++;
+    }
+
+    /**
+     * 最後に適用した操作を取り消し済みにする。変化を元に戻すのは呼び出し側で行う。
+     *
+     * @return 取り消す操作。無い場合は空
+     */
+    public Optional<Operation> undo() {
+        if (applied == 0) return Optional.empty();
+        return Optional.of(operations.get(--applied));
+    }
+
+    /**
+     * 最後に取り消した操作を適用済みにする。変化を適用するのは呼び出し側で行う。
+     *
+     * @return やり直す操作。無い場合は空
+     */
+    public Optional<Operation> redo() {
+        if (applied == operations.size()) return Optional.empty();
+        return Optional.of(operations.get(applied++));
+    }
+
+    /**
+     * 取り消した操作を含む、記録したすべての操作。
+     */
+    public List<Operation> operations() {
+        return List.copyOf(operations);
+    }
+
+    public int appliedCount() {
+        return applied;
+    }
+
+    public void clear() {
+        operations.clear();
+        applied = 0;
+    }
+}
@@ -0,0 +1,23 @@
+package jisd.fl.core.entity;
+
+import java.util.Collection;
+
+/**
+ * 細かい粒度の疑惑値から、それを含む要素 (行 -> メソッド、行・メソッド -> クラス) の疑惑値を求める方法。
+ */
+public enum ScoreRollUp {
+    MAX,
+    MEAN,
+    SUM;
+
+    /**
+     * @param children 空でないこと
+     */
+    public double apply(Collection<FLRankingElement> children){
+        double result = this == MAX ? Double.NEGATIVE_INFINITY : 0;
+        for(FLRankingElement e : children){
+            result = this == MAX ? Math.max(result, e.getSuspScore()) : result + e.getSuspScore();
+        }
+        return this == MEAN ? result / children.size() : result;
+    }
+}
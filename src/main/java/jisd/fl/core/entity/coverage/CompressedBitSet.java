@@ -0,0 +1,318 @@
+package jisd.fl.core.entity.coverage;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * 非負整数の集合を圧縮して保持する不変のビット集合。
+ * Roaring bitmap と同様に値を上位16bitごとのコンテナに分け、各コンテナは要素の数と連続性に応じて
+ * ソート済み配列・ビットマップ・連長(run)のうち最も小さい表現で保持する。
+ * カバレッジでは実行された行やテストが連続することが多いため、多くのコンテナは連長で表現される。
+ */
+public final class CompressedBitSet {
+    public static final CompressedBitSet EMPTY = new CompressedBitSet(new char[0], new Container[0], 0);
+
+    //コンテナ1つが表す値の数 (下位16bit)
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final int BITMAP_BYTES = CHUNK_SIZE / 8;
+
+    //上位16bit。昇順
+    private final char[] keys;
+    private final Container[] containers;
+    private final int cardinality;
+
+    private CompressedBitSet(char[] keys, Container[] containers, int cardinality) {
+        this.keys = keys;
+        this.containers = containers;
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * @param sortedValues 昇順で重複の無い非負整数
+     * @param length sortedValues の先頭から使用する要素数
+     */
+    public static CompressedBitSet of(int[] sortedValues, int length) {
+        if (length == 0) return EMPTY;
+        int chunkCount = 0;
+        for (int i = 0; i < length; i++) {
+            if (sortedValues[i] < 0) throw new IllegalArgumentException("negative value: " + sortedValues[i]);
+            if (i > 0 && sortedValues[i] <= sortedValues[i - 1]) throw new IllegalArgumentException("values must be sorted and distinct");
+            if (i == 0 || (sortedValues[i] >>> 16) != (sortedValues[i - 1] >>> 16)) chunkCount++;
+        }
+
+        char[] keys = new char[chunkCount];
+        Container[] containers = new Container[chunkCount];
+        int c = 0;
+        int start = 0;
+        while (start < length) {
+            int high = sortedValues[start] >>> 16;
+            int end = start;
+            int runs = 0;
+            while (end < length && (sortedValues[end] >>> 16) == high) {
+                if (end == start || sortedValues[end] != sortedValues[end - 1] + 1) runs++;
+                end++;
+            }
+            keys[c] = (char) high;
+            containers[c] = Container.of(sortedValues, start, end, runs);
+            c++;
+            start = end;
+        }
+        return new CompressedBitSet(keys, containers, length);
+    }
+
+    /**
+     * true の添字の集合を作る。
+     */
+    public static CompressedBitSet fromBooleans(boolean[] bits) {
+        int[] values = new int[bits.length];
+        int n = 0;
+        for (int i = 0; i < bits.length; i++) {
+            if (bits[i]) values[n++] = i;
+        }
+        return of(values, n);
+    }
+
+    public boolean contains(int value) {
+        if (value < 0) return false;
+        int c = Arrays.binarySearch(keys, (char) (value >>> 16));
+        if (c < 0) return false;
+        return containers[c].contains((char) value);
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * 最大の要素。空の場合は -1
+     */
+    public int last() {
+        if (keys.length == 0) return -1;
+        return (keys[keys.length - 1] << 16) | containers[containers.length - 1].last();
+    }
+
+    /**
+     * 要素を昇順に action に渡す。
+     */
+    public void forEach(IntConsumer action) {
+        for (int c = 0; c < keys.length; c++) {
+            containers[c].forEach(keys[c] << 16, action);
+        }
+    }
+
+    public int[] toArray() {
+        int[] values = new int[cardinality];
+        int[] n = {0};
+        forEach(v -> values[n[0]++] = v);
+        return values;
+    }
+
+    /**
+     * @param length 配列の長さ。これ以上の要素は無視する。
+     */
+    public boolean[] toBooleans(int length) {
+        boolean[] bits = new boolean[length];
+        forEach(v -> {
+            if (v < length) bits[v] = true;
+        });
+        return bits;
+    }
+
+    /**
+     * 保持しているデータのおおよそのバイト数。
+     */
+    public long sizeInBytes() {
+        long size = keys.length * 2L;
+        for (Container c : containers) size += c.sizeInBytes();
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof CompressedBitSet o)) return false;
+        return cardinality == o.cardinality && Arrays.equals(keys, o.keys) && Arrays.equals(containers, o.containers);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(keys) + Arrays.hashCode(containers);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    /**
+     * 上位16bitが共通な値の下位16bitを保持するコンテナ。
+     * 同じ集合は常に同じ種類のコンテナで表現されるため、equals は種類ごとに比較すればよい。
+     */
+    private sealed interface Container permits ArrayContainer, BitmapContainer, RunContainer {
+        boolean contains(char low);
+
+        void forEach(int highBits, IntConsumer action);
+
+        //最大の要素の下位16bit。コンテナは空でない
+        int last();
+
+        long sizeInBytes();
+
+        static Container of(int[] values, int from, int to, int runs) {
+            int n = to - from;
+            long arrayBytes = 2L * n;
+            long runBytes = 4L * runs;
+            if (runBytes <= arrayBytes && runBytes <= BITMAP_BYTES) return RunContainer.of(values, from, to, runs);
+            if (arrayBytes <= BITMAP_BYTES) return ArrayContainer.of(values, from, to);
+            return BitmapContainer.of(values, from, to);
+        }
+    }
+
+    private record ArrayContainer(char[] values) implements Container {
+        static ArrayContainer of(int[] values, int from, int to) {
+            char[] lows = new char[to - from];
+            for (int i = from; i < to; i++) lows[i - from] = (char) values[i];
+            return new ArrayContainer(lows);
+        }
+
+        @Override
+        public boolean contains(char low) {
+            return Arrays.binarySearch(values, low) >= 0;
+        }
+
+        @Override
+        public void forEach(int highBits, IntConsumer action) {
+            for (char v : values) action.accept(highBits | v);
+        }
+
+        @Override
+        public int last() {
+            return values[values.length - 1];
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return values.length * 2L;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ArrayContainer o && Arrays.equals(values, o.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(values);
+        }
+    }
+
+    private record BitmapContainer(long[] words) implements Container {
+        static BitmapContainer of(int[] values, int from, int to) {
+            long[] words = new long[CHUNK_SIZE / 64];
+            for (int i = from; i < to; i++) {
+                int low = values[i] & 0xFFFF;
+                words[low >>> 6] |= 1L << low;
+            }
+            return new BitmapContainer(words);
+        }
+
+        @Override
+        public boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        public void forEach(int highBits, IntConsumer action) {
+            for (int w = 0; w < words.length; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    int bit = Long.numberOfTrailingZeros(word);
+                    action.accept(highBits | (w << 6) | bit);
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        public int last() {
+            for (int w = words.length - 1; ; w--) {
+                if (words[w] != 0) return (w << 6) | (63 - Long.numberOfLeadingZeros(words[w]));
+            }
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return words.length * 8L;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof BitmapContainer o && Arrays.equals(words, o.words);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(words);
+        }
+    }
+
+    /**
+     * starts[i] から starts[i] + lengths[i] まで (両端を含む) の区間の集まり。
+     */
+    private record RunContainer(char[] starts, char[] lengths) implements Container {
+        static RunContainer of(int[] values, int from, int to, int runs) {
+            char[] starts = new char[runs];
+            char[] lengths = new char[runs];
+            int r = -1;
+            for (int i = from; i < to; i++) {
+                if (i == from || values[i] != values[i - 1] + 1) {
+                    r++;
+                    starts[r] = (char) values[i];
+                } else {
+                    lengths[r]++;
+                }
+            }
+            return new RunContainer(starts, lengths);
+        }
+
+        @Override
+        public boolean contains(char low) {
+            int i = Arrays.binarySearch(starts, low);
+            if (i >= 0) return true;
+            int run = -i - 2;
+            return run >= 0 && low - starts[run] <= lengths[run];
+        }
+
+        @Override
+        public void forEach(int highBits, IntConsumer action) {
+            for (int r = 0; r < starts.length; r++) {
+                int end = starts[r] + lengths[r];
+                for (int v = starts[r]; v <= end; v++) action.accept(highBits | v);
+            }
+        }
+
+        @Override
+        public int last() {
+            return starts[starts.length - 1] + lengths[lengths.length - 1];
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return starts.length * 4L;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof RunContainer o && Arrays.equals(starts, o.starts) && Arrays.equals(lengths, o.lengths);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(starts) + Arrays.hashCode(lengths);
+        }
+    }
+}
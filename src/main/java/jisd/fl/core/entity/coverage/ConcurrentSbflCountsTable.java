@@ -0,0 +1,42 @@
+package jisd.fl.core.entity.coverage;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 複数のスレッドから同時に ef/ep を更新できる SbflCountsTable。
+ * 各要素のカウントは原子的に加算されるため、異なるスレッドの更新が失われることはない。
+ * ensureCapacity は配列を作り直すため、カウントの更新と同時に呼び出してはならない (要素の登録時のみ使用する)。
+ */
+public class ConcurrentSbflCountsTable extends SbflCountsTable {
+    private volatile AtomicIntegerArray ef = new AtomicIntegerArray(0);
+    private volatile AtomicIntegerArray ep = new AtomicIntegerArray(0);
+
+    @Override
+    public synchronized void ensureCapacity(int capacity){
+        if(capacity <= ef.length()) return;
+        ef = copyOf(ef, capacity);
+        ep = copyOf(ep, capacity);
+    }
+
+    @Override
+    public int getEf(int id){return ef.get(id);}
+    @Override
+    public int getEp(int id){return ep.get(id);}
+    @Override
+    public void incEf(int id){ef.incrementAndGet(id);}
+    @Override
+    public void incEp(int id){ep.incrementAndGet(id);}
+    @Override
+    public void addEf(int id, int delta){ef.addAndGet(id, delta);}
+    @Override
+    public void addEp(int id, int delta){ep.addAndGet(id, delta);}
+
+    @Override
+    public int capacity(){return ef.length();}
+
+    private static AtomicIntegerArray copyOf(AtomicIntegerArray src, int capacity){
+        AtomicIntegerArray dst = new AtomicIntegerArray(capacity);
+        for(int i = 0; i < src.length(); i++) dst.set(i, src.get(i));
+        return dst;
+    }
+}
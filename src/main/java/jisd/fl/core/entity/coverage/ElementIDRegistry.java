@@ -55,5 +55,15 @@ public class ElementIDRegistry<E extends CodeElementIdentifier<E>> {
         return Optional.ofNullable(elementToId.get(e));
     }
 
+    /**
+     * {@link #getIdIfPresent(CodeElementIdentifier)} と同じだが、IDをボクシングしない。
+     *
+     * @return 要素に対応づけられたID。未登録の場合は -1
+     */
+    public int idOf(E e){
+        Integer id = elementToId.get(e);
+        return id == null ? -1 : id;
+    }
+
     public int size(){return idToElement.size();}
 }
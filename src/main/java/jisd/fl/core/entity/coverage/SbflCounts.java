@@ -1,9 +1,9 @@
 package jisd.fl.core.entity.coverage;
 
-import jisd.fl.core.entity.sbfl.Formula;
+import jisd.fl.core.entity.sbfl.SuspiciousnessFormula;
 
 public record SbflCounts(int ep, int ef, int np, int nf) {
-    public double getSuspiciousness(Formula formula){
+    public double getSuspiciousness(SuspiciousnessFormula formula){
         return formula.calc(this);
     }
 }
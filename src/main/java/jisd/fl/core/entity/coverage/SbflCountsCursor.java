@@ -0,0 +1,37 @@
+package jisd.fl.core.entity.coverage;
+
+/**
+ * 要素ごとの ep/ef/np/nf を、要素ごとのオブジェクトを作らずに順に読み出すカーソル。
+ * next() が true を返した後、次に next() を呼ぶまでの間、現在の要素の値を読み出せる。
+ * 要素名は element() を呼んだ場合にだけ取得するため、カウントだけを見て読み飛ばす要素には割り当てが発生しない。
+ *
+ * <pre>
+ * while (cursor.next()) {
+ *     double score = formula.calc(cursor.ep(), cursor.ef(), cursor.np(), cursor.nf());
+ *     ...
+ * }
+ * </pre>
+ */
+public interface SbflCountsCursor<E> {
+    /**
+     * 次の要素に進む。
+     *
+     * @return 要素が無くなった場合は false
+     */
+    boolean next();
+
+    /**
+     * 現在の要素のID。IDの範囲はカーソルの作成元による (SbflCoverageView の場合は ElementIDRegistry のID)。
+     */
+    int id();
+
+    int ep();
+
+    int ef();
+
+    int np();
+
+    int nf();
+
+    E element();
+}
@@ -0,0 +1,76 @@
+package jisd.fl.core.entity.coverage;
+
+import java.util.Iterator;
+import java.util.function.Function;
+
+/**
+ * SbflCountsCursor を組み立てるためのユーティリティ。
+ */
+public final class SbflCountsCursors {
+    private SbflCountsCursors() {}
+
+    /**
+     * 複数のカーソルを順につなげたカーソル。id() は元のカーソルのIDをそのまま返す。
+     */
+    public static <E> SbflCountsCursor<E> concat(Iterator<? extends SbflCountsCursor<? extends E>> cursors) {
+        return new SbflCountsCursor<>() {
+            private SbflCountsCursor<? extends E> current;
+
+            @Override
+            public boolean next() {
+                while (current == null || !current.next()) {
+                    if (!cursors.hasNext()) return false;
+                    current = cursors.next();
+                }
+                return true;
+            }
+
+            @Override
+            public int id() {return current.id();}
+            @Override
+            public int ep() {return current.ep();}
+            @Override
+            public int ef() {return current.ef();}
+            @Override
+            public int np() {return current.np();}
+            @Override
+            public int nf() {return current.nf();}
+            @Override
+            public E element() {return current.element();}
+        };
+    }
+
+    /**
+     * 要素とその SbflCounts の組を順に読むカーソル。id() は読み出した順の番号を返す。
+     * 要素数の少ない粒度や、プリミティブのカーソルを持たないカバレッジの実装に使用する。
+     */
+    public static <T, E> SbflCountsCursor<E> fromEntries(Iterator<T> entries, Function<T, E> element, Function<T, SbflCounts> counts) {
+        return new SbflCountsCursor<>() {
+            private int id = -1;
+            private T current;
+            private SbflCounts c;
+
+            @Override
+            public boolean next() {
+                if (!entries.hasNext()) return false;
+                current = entries.next();
+                c = counts.apply(current);
+                id++;
+                return true;
+            }
+
+            @Override
+            public int id() {return id;}
+            @Override
+            public int ep() {return c.ep();}
+            @Override
+            public int ef() {return c.ef();}
+            @Override
+            public int np() {return c.np();}
+            @Override
+            public int nf() {return c.nf();}
+            @Override
+            public E element() {return element.apply(current);}
+        };
+    }
+}
@@ -21,6 +21,9 @@ public class SbflCountsTable {
     public int getEp(int id){return ep[id];}
     public void incEf(int id){ef[id]++;}
     public void incEp(int id){ep[id]++;}
+    //テスト結果の取り消し(delta < 0)にも使用する
+    public void addEf(int id, int delta){ef[id] += delta;}
+    public void addEp(int id, int delta){ep[id] += delta;}
 
     public int capacity(){return ef.length;}
 }
@@ -0,0 +1,50 @@
+package jisd.fl.core.entity.coverage;
+
+import jisd.fl.core.entity.element.CodeElementIdentifier;
+import jisd.fl.core.entity.sbfl.Granularity;
+import jisd.fl.core.entity.sbfl.SbflScoreMatrix;
+
+import java.util.stream.Stream;
+
+/**
+ * 疑惑値の計算に使う、粒度ごとの ep/ef/np/nf の集計結果。
+ * カバレッジの保持方法 (ヒープ上のクラスごとのオブジェクト、ヒープ外の列など) によらず同じ形で取り出すために使用する。
+ */
+public interface SbflCoverageSource {
+    Stream<ClassCoverageEntry> classCoverageEntries();
+
+    /**
+     * @param hideZeroElements true の場合、どのテストにも実行されなかったメソッドを除く
+     */
+    Stream<MethodCoverageEntry> methodCoverageEntries(boolean hideZeroElements);
+
+    /**
+     * @param hideZeroElements true の場合、どのテストにも実行されなかった行を除く
+     */
+    Stream<LineCoverageEntry> lineCoverageEntries(boolean hideZeroElements);
+
+    /**
+     * 指定した粒度の要素ごとの ep/ef/np/nf を、要素ごとのエントリを作らずに読み出すカーソルを返す。
+     * 疑惑値の計算やランキングの作成に使用する。
+     * デフォルトの実装は entries を読むため要素ごとの割り当てが発生する。実装側で必要に応じて上書きする。
+     *
+     * @param hideZeroElements true の場合、どのテストにも実行されなかった要素を読み飛ばす (CLASS の場合は常に実行されたクラスのみ)
+     */
+    default SbflCountsCursor<? extends CodeElementIdentifier<?>> countsCursor(Granularity granularity, boolean hideZeroElements){
+        return switch (granularity){
+            case CLASS -> SbflCountsCursors.fromEntries(classCoverageEntries().iterator(), ClassCoverageEntry::e, ClassCoverageEntry::counts);
+            case METHOD -> SbflCountsCursors.fromEntries(methodCoverageEntries(hideZeroElements).iterator(), MethodCoverageEntry::e, MethodCoverageEntry::counts);
+            case LINE -> SbflCountsCursors.fromEntries(lineCoverageEntries(hideZeroElements).iterator(), LineCoverageEntry::e, LineCoverageEntry::counts);
+        };
+    }
+
+    /**
+     * 指定した粒度の、どれかのテストに実行された要素の疑惑値を、すべての Formula についてまとめて計算する。
+     * カバレッジの走査は1度だけで、Formula を切り替える場合は返した表を読み直せばよい。
+     */
+    default SbflScoreMatrix scoreMatrix(Granularity granularity){
+        SbflScoreMatrix matrix = new SbflScoreMatrix();
+        matrix.addAll(countsCursor(granularity, true));
+        return matrix;
+    }
+}
@@ -4,7 +4,6 @@ import jisd.fl.core.entity.element.CodeElementIdentifier;
 
 import java.util.AbstractMap;
 import java.util.Map;
-import java.util.Optional;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
@@ -25,9 +24,8 @@ public class SbflCoverageView<E extends CodeElementIdentifier<E>> {
     public int totalPass(){return totalPass;}
 
     public SbflCounts countsOf(E e){
-         Optional<Integer> oid = ids.getIdIfPresent(e);
-         if(oid.isEmpty()) return new SbflCounts(0, 0, totalPass, totalFail);
-         int id = oid.get();
+         int id = ids.idOf(e);
+         if(id < 0) return new SbflCounts(0, 0, totalPass, totalFail);
          int ep = counts.getEp(id);
          int ef = counts.getEf(id);
          int np = totalPass - ep;
@@ -49,4 +47,41 @@ public class SbflCoverageView<E extends CodeElementIdentifier<E>> {
             return new AbstractMap.SimpleImmutableEntry<>(e, new SbflCounts(ep, ef, np, nf));
         });
     }
+
+    /**
+     * 要素ごとの ep/ef/np/nf をIDの順に読み出すカーソルを返す。
+     * entries() と異なり、要素ごとのエントリや SbflCounts を作らない。
+     *
+     * @param hideZeroElements true の場合、どのテストにも実行されなかった要素を読み飛ばす
+     */
+    public SbflCountsCursor<E> cursor(boolean hideZeroElements){
+        return new SbflCountsCursor<>() {
+            private int id = -1;
+            private int ep;
+            private int ef;
+
+            @Override
+            public boolean next() {
+                while (++id < ids.size()) {
+                    ep = counts.getEp(id);
+                    ef = counts.getEf(id);
+                    if (!hideZeroElements || ep + ef > 0) return true;
+                }
+                return false;
+            }
+
+            @Override
+            public int id() {return id;}
+            @Override
+            public int ep() {return ep;}
+            @Override
+            public int ef() {return ef;}
+            @Override
+            public int np() {return totalPass - ep;}
+            @Override
+            public int nf() {return totalFail - ef;}
+            @Override
+            public E element() {return ids.elementOf(id);}
+        };
+    }
 }
@@ -0,0 +1,96 @@
+package jisd.fl.core.entity.coverage;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * テスト × 要素 のカバレッジ行列。SbflCountsTable が ef/ep の数だけを保持するのに対し、
+ * どのテストがどの要素を実行したかを保持する。粒度ごとにインスタンスを生成して使用する。
+ *
+ * 行(テストが実行した要素の集合)は ElementIDRegistry のIDの CompressedBitSet として保持する。
+ * 列(要素を実行したテストの集合)は問い合わせ時に行から転置してまとめて作成し、行が変わるまで使い回す。
+ * テストのIDは呼び出し側で採番したものを使う。
+ */
+public class TestCoverageMatrix {
+    //テストID -> そのテストが実行した要素のID
+    private final Map<Integer, CompressedBitSet> rows = new HashMap<>();
+    //要素ID -> その要素を実行したテストのID。null の場合は行の変更後に未作成
+    private CompressedBitSet[] columns;
+
+    /**
+     * テストが実行した要素を設定する。同じテストの行が既にあれば置き換える。
+     *
+     * @param testId テストのID
+     * @param sortedElementIds 昇順で重複の無い要素のID
+     * @param length sortedElementIds の先頭から使用する要素数
+     */
+    public synchronized void putRow(int testId, int[] sortedElementIds, int length) {
+        CompressedBitSet row = CompressedBitSet.of(sortedElementIds, length);
+        if (row.isEmpty()) rows.remove(testId);
+        else rows.put(testId, row);
+        columns = null;
+    }
+
+    public synchronized void removeRow(int testId) {
+        if (rows.remove(testId) != null) columns = null;
+    }
+
+    /**
+     * テストが実行した要素のIDの集合。
+     */
+    public synchronized CompressedBitSet row(int testId) {
+        return rows.getOrDefault(testId, CompressedBitSet.EMPTY);
+    }
+
+    /**
+     * 要素を実行したテストのIDの集合。
+     */
+    public synchronized CompressedBitSet column(int elementId) {
+        if (columns == null) columns = transpose();
+        return elementId < columns.length ? columns[elementId] : CompressedBitSet.EMPTY;
+    }
+
+    /**
+     * 1つ以上の要素を実行したテストの数。
+     */
+    public synchronized int rowCount() {
+        return rows.size();
+    }
+
+    /**
+     * 行と作成済みの列が保持しているデータのおおよそのバイト数。
+     */
+    public synchronized long sizeInBytes() {
+        long size = 0;
+        for (CompressedBitSet row : rows.values()) size += row.sizeInBytes();
+        if (columns != null) {
+            for (CompressedBitSet column : columns) size += column.sizeInBytes();
+        }
+        return size;
+    }
+
+    private CompressedBitSet[] transpose() {
+        int[] testIds = rows.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+
+        //列ごとの要素数を数えてから、テストIDの昇順に詰める
+        int[] counts = new int[0];
+        for (CompressedBitSet row : rows.values()) {
+            if (row.last() >= counts.length) counts = Arrays.copyOf(counts, row.last() + 1);
+            int[] c = counts;
+            row.forEach(id -> c[id]++);
+        }
+        int[][] testsByElement = new int[counts.length][];
+        for (int e = 0; e < counts.length; e++) testsByElement[e] = new int[counts[e]];
+        int[] filled = new int[counts.length];
+        for (int testId : testIds) {
+            rows.get(testId).forEach(e -> testsByElement[e][filled[e]++] = testId);
+        }
+
+        CompressedBitSet[] result = new CompressedBitSet[counts.length];
+        for (int e = 0; e < counts.length; e++) {
+            result[e] = CompressedBitSet.of(testsByElement[e], counts[e]);
+        }
+        return result;
+    }
+}
@@ -55,4 +55,9 @@ public class ClassElementName implements CodeElementIdentifier<ClassElementName>
     public int hashCode(){
         return Objects.hash(packageName, className);
     }
+
+    @Override
+    public String toString(){
+        return this.fullyQualifiedName();
+    }
 }
@@ -0,0 +1,406 @@
+package jisd.fl.core.entity.sbfl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 設定などから文字列で与える疑惑値の式。例: {@code ef^2 / (ep + nf)}
+ *
+ * <pre>
+ * 変数:   ep, ef, np, nf, totalPass (= ep + np), totalFail (= ef + nf)
+ * 演算子: + - * / ^ (べき乗、右結合), 単項 -
+ * 関数:   sqrt(x), abs(x), log(x), exp(x), min(x, y), max(x, y), pow(x, y)
+ * </pre>
+ *
+ * 式は生成時に1度だけ解析し、定数だけの部分式は畳み込む。
+ * calc は式の木を合成した MethodHandle で計算し、calcAll は木の節ごとに列全体をまとめて計算するため、
+ * 要素ごとに木をたどったり仮想呼び出しをしたりすることはない。
+ * 結果が NaN (0 / 0 など) の場合は 0 とする。
+ */
+public final class ExpressionFormula implements SuspiciousnessFormula {
+    //MethodHandle の引数の順 (ep, ef, np, nf)
+    private static final int EP = 0;
+    private static final int EF = 1;
+    private static final int NP = 2;
+    private static final int NF = 3;
+    private static final MethodType COUNTS_TYPE =
+            MethodType.methodType(double.class, double.class, double.class, double.class, double.class);
+    private static final MethodType CALC_TYPE =
+            MethodType.methodType(double.class, int.class, int.class, int.class, int.class);
+
+    private final String expression;
+    private final Node root;
+    //(int ep, int ef, int np, int nf) -> double
+    private final MethodHandle handle;
+
+    private ExpressionFormula(String expression, Node root) {
+        this.expression = expression;
+        this.root = root;
+        this.handle = MethodHandles.filterReturnValue(root.toHandle(), Ops.ZERO_IF_NAN).asType(CALC_TYPE);
+    }
+
+    /**
+     * @throws IllegalArgumentException 式の構文が正しくない場合
+     */
+    public static ExpressionFormula compile(String expression) {
+        return new ExpressionFormula(expression.trim(), new Parser(expression).parse());
+    }
+
+    @Override
+    public String name() {
+        return expression;
+    }
+
+    @Override
+    public double calc(int ep, int ef, int np, int nf) {
+        try {
+            return (double) handle.invokeExact(ep, ef, np, nf);
+        } catch (Throwable e) {
+            //式の演算は例外を投げない
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void calcAll(int[] ep, int[] ef, int length, int totalPass, int totalFail, double[] scores) {
+        double[][] counts = new double[4][length];
+        for (int i = 0; i < length; i++) {
+            counts[EP][i] = ep[i];
+            counts[EF][i] = ef[i];
+            counts[NP][i] = totalPass - ep[i];
+            counts[NF][i] = totalFail - ef[i];
+        }
+        double[] result = root.eval(counts, length);
+        for (int i = 0; i < length; i++) {
+            scores[i] = Double.isNaN(result[i]) ? 0 : result[i];
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof ExpressionFormula o && expression.equals(o.expression);
+    }
+
+    @Override
+    public int hashCode() {
+        return expression.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * 式の木の節。
+     */
+    private sealed interface Node permits Constant, Variable, Unary, Binary {
+        //(double ep, double ef, double np, double nf) -> double
+        MethodHandle toHandle();
+
+        //counts[変数][要素] から、この節の値を length 要素分計算する。戻り値は counts の列を返すことがあるため書き換えない
+        double[] eval(double[][] counts, int length);
+    }
+
+    private record Constant(double value) implements Node {
+        @Override
+        public MethodHandle toHandle() {
+            return MethodHandles.dropArguments(MethodHandles.constant(double.class, value), 0, COUNTS_TYPE.parameterList());
+        }
+
+        @Override
+        public double[] eval(double[][] counts, int length) {
+            double[] out = new double[length];
+            Arrays.fill(out, value);
+            return out;
+        }
+    }
+
+    private record Variable(int index) implements Node {
+        @Override
+        public MethodHandle toHandle() {
+            return MethodHandles.permuteArguments(MethodHandles.identity(double.class), COUNTS_TYPE, index);
+        }
+
+        @Override
+        public double[] eval(double[][] counts, int length) {
+            return counts[index];
+        }
+    }
+
+    private record Unary(UnaryOp op, Node operand) implements Node {
+        @Override
+        public MethodHandle toHandle() {
+            return MethodHandles.filterReturnValue(operand.toHandle(), op.handle);
+        }
+
+        @Override
+        public double[] eval(double[][] counts, int length) {
+            double[] x = operand.eval(counts, length);
+            double[] out = new double[length];
+            //演算の分岐はループの外で行う
+            switch (op) {
+                case NEG -> { for (int i = 0; i < length; i++) out[i] = -x[i]; }
+                case SQRT -> { for (int i = 0; i < length; i++) out[i] = Math.sqrt(x[i]); }
+                case ABS -> { for (int i = 0; i < length; i++) out[i] = Math.abs(x[i]); }
+                case LOG -> { for (int i = 0; i < length; i++) out[i] = Math.log(x[i]); }
+                case EXP -> { for (int i = 0; i < length; i++) out[i] = Math.exp(x[i]); }
+            }
+            return out;
+        }
+    }
+
+    private record Binary(BinaryOp op, Node left, Node right) implements Node {
+        @Override
+        public MethodHandle toHandle() {
+            //(l0..l3, r0..r3) -> double を作り、左右に同じ (ep, ef, np, nf) を渡す
+            MethodHandle withLeft = MethodHandles.collectArguments(op.handle, 0, left.toHandle());
+            MethodHandle both = MethodHandles.collectArguments(withLeft, 4, right.toHandle());
+            return MethodHandles.permuteArguments(both, COUNTS_TYPE, 0, 1, 2, 3, 0, 1, 2, 3);
+        }
+
+        @Override
+        public double[] eval(double[][] counts, int length) {
+            double[] a = left.eval(counts, length);
+            double[] b = right.eval(counts, length);
+            double[] out = new double[length];
+            switch (op) {
+                case ADD -> { for (int i = 0; i < length; i++) out[i] = a[i] + b[i]; }
+                case SUB -> { for (int i = 0; i < length; i++) out[i] = a[i] - b[i]; }
+                case MUL -> { for (int i = 0; i < length; i++) out[i] = a[i] * b[i]; }
+                case DIV -> { for (int i = 0; i < length; i++) out[i] = a[i] / b[i]; }
+                case POW -> { for (int i = 0; i < length; i++) out[i] = Math.pow(a[i], b[i]); }
+                case MIN -> { for (int i = 0; i < length; i++) out[i] = Math.min(a[i], b[i]); }
+                case MAX -> { for (int i = 0; i < length; i++) out[i] = Math.max(a[i], b[i]); }
+            }
+            return out;
+        }
+    }
+
+    private enum UnaryOp {
+        NEG("neg"), SQRT("sqrt"), ABS("abs"), LOG("log"), EXP("exp");
+
+        final MethodHandle handle;
+
+        UnaryOp(String method) {
+            handle = Ops.find(method, 1);
+        }
+
+        double apply(double x) {
+            try {
+                return (double) handle.invokeExact(x);
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private enum BinaryOp {
+        ADD("add"), SUB("sub"), MUL("mul"), DIV("div"), POW("pow"), MIN("min"), MAX("max");
+
+        final MethodHandle handle;
+
+        BinaryOp(String method) {
+            handle = Ops.find(method, 2);
+        }
+
+        double apply(double x, double y) {
+            try {
+                return (double) handle.invokeExact(x, y);
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * MethodHandle の合成に使う演算。
+     */
+    private static final class Ops {
+        static final MethodHandle ZERO_IF_NAN = find("zeroIfNaN", 1);
+
+        static MethodHandle find(String name, int arity) {
+            Class<?>[] params = new Class<?>[arity];
+            Arrays.fill(params, double.class);
+            try {
+                return MethodHandles.lookup().findStatic(Ops.class, name, MethodType.methodType(double.class, params));
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        static double zeroIfNaN(double x) { return Double.isNaN(x) ? 0 : x; }
+        static double neg(double x) { return -x; }
+        static double sqrt(double x) { return Math.sqrt(x); }
+        static double abs(double x) { return Math.abs(x); }
+        static double log(double x) { return Math.log(x); }
+        static double exp(double x) { return Math.exp(x); }
+        static double add(double x, double y) { return x + y; }
+        static double sub(double x, double y) { return x - y; }
+        static double mul(double x, double y) { return x * y; }
+        static double div(double x, double y) { return x / y; }
+        static double pow(double x, double y) { return Math.pow(x, y); }
+        static double min(double x, double y) { return Math.min(x, y); }
+        static double max(double x, double y) { return Math.max(x, y); }
+    }
+
+    /**
+     * 再帰下降パーサ。
+     * <pre>
+     * expr    := term (('+' | '-') term)*
+     * term    := unary (('*' | '/') unary)*
+     * unary   := '-' unary | power
+     * power   := primary ('^' unary)?
+     * primary := number | variable | function '(' expr (',' expr)* ')' | '(' expr ')'
+     * </pre>
+     */
+    private static final class Parser {
+        private final String src;
+        private int pos = 0;
+
+        Parser(String src) {
+            this.src = src;
+        }
+
+        Node parse() {
+            Node node = expr();
+            skipSpaces();
+            if (pos < src.length()) throw error("unexpected '" + src.charAt(pos) + "'");
+            return node;
+        }
+
+        private Node expr() {
+            Node node = term();
+            while (true) {
+                if (accept('+')) node = binary(BinaryOp.ADD, node, term());
+                else if (accept('-')) node = binary(BinaryOp.SUB, node, term());
+                else return node;
+            }
+        }
+
+        private Node term() {
+            Node node = unary();
+            while (true) {
+                if (accept('*')) node = binary(BinaryOp.MUL, node, unary());
+                else if (accept('/')) node = binary(BinaryOp.DIV, node, unary());
+                else return node;
+            }
+        }
+
+        private Node unary() {
+            if (accept('-')) return unary(UnaryOp.NEG, unary());
+            return power();
+        }
+
+        private Node power() {
+            Node base = primary();
+            if (accept('^')) return binary(BinaryOp.POW, base, unary());
+            return base;
+        }
+
+        private Node primary() {
+            skipSpaces();
+            if (pos >= src.length()) throw error("unexpected end of expression");
+            char c = src.charAt(pos);
+            if (accept('(')) {
+                Node node = expr();
+                expect(')');
+                return node;
+            }
+            if (Character.isDigit(c) || c == '.') return number();
+            if (Character.isLetter(c)) return identifier();
+            throw error("unexpected '" + c + "'");
+        }
+
+        private Node number() {
+            int start = pos;
+            while (pos < src.length() && (Character.isDigit(src.charAt(pos)) || src.charAt(pos) == '.')) pos++;
+            try {
+                return new Constant(Double.parseDouble(src.substring(start, pos)));
+            } catch (NumberFormatException e) {
+                pos = start;
+                throw error("invalid number");
+            }
+        }
+
+        private Node identifier() {
+            int start = pos;
+            while (pos < src.length() && Character.isLetterOrDigit(src.charAt(pos))) pos++;
+            String name = src.substring(start, pos);
+            switch (name) {
+                case "ep": return new Variable(EP);
+                case "ef": return new Variable(EF);
+                case "np": return new Variable(NP);
+                case "nf": return new Variable(NF);
+                case "totalPass": return new Binary(BinaryOp.ADD, new Variable(EP), new Variable(NP));
+                case "totalFail": return new Binary(BinaryOp.ADD, new Variable(EF), new Variable(NF));
+                default: break;
+            }
+
+            expect('(');
+            List<Node> args = new ArrayList<>();
+            args.add(expr());
+            while (accept(',')) args.add(expr());
+            expect(')');
+            return switch (name) {
+                case "sqrt" -> unary(UnaryOp.SQRT, only(name, args));
+                case "abs" -> unary(UnaryOp.ABS, only(name, args));
+                case "log" -> unary(UnaryOp.LOG, only(name, args));
+                case "exp" -> unary(UnaryOp.EXP, only(name, args));
+                case "min" -> binary(BinaryOp.MIN, pair(name, args, 0), pair(name, args, 1));
+                case "max" -> binary(BinaryOp.MAX, pair(name, args, 0), pair(name, args, 1));
+                case "pow" -> binary(BinaryOp.POW, pair(name, args, 0), pair(name, args, 1));
+                default -> {
+                    pos = start;
+                    throw error("unknown function '" + name + "'");
+                }
+            };
+        }
+
+        private Node only(String function, List<Node> args) {
+            if (args.size() != 1) throw error(function + " takes 1 argument");
+            return args.get(0);
+        }
+
+        private Node pair(String function, List<Node> args, int i) {
+            if (args.size() != 2) throw error(function + " takes 2 arguments");
+            return args.get(i);
+        }
+
+        //定数だけの部分式はここで計算しておく
+        private static Node unary(UnaryOp op, Node operand) {
+            if (operand instanceof Constant c) return new Constant(op.apply(c.value()));
+            return new Unary(op, operand);
+        }
+
+        private static Node binary(BinaryOp op, Node left, Node right) {
+            if (left instanceof Constant l && right instanceof Constant r) return new Constant(op.apply(l.value(), r.value()));
+            return new Binary(op, left, right);
+        }
+
+        private boolean accept(char c) {
+            skipSpaces();
+            if (pos < src.length() && src.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) throw error("'" + c + "' expected");
+        }
+
+        private void skipSpaces() {
+            while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) pos++;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Invalid formula '" + src + "' at " + pos + ": " + message);
+        }
+    }
+}
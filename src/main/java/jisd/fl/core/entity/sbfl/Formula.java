@@ -1,48 +1,166 @@
 package jisd.fl.core.entity.sbfl;
 
-import jisd.fl.core.entity.coverage.SbflCounts;
-
-public enum Formula {
+/**
+ * 既知のSBFLの疑惑値の計算式。
+ * 各式の calcAll は要素ごとの仮想呼び出しを含まない単純なループで実装しており、JIT による自動ベクトル化の対象になる。
+ */
+public enum Formula implements SuspiciousnessFormula {
     TARAnTULA {
         @Override
-        public double calc(SbflCounts counts){
-            double ep = counts.ep();
-            double ef = counts.ef();
-            double np = counts.np();
-            double nf = counts.nf();
+        public double calc(int epCount, int efCount, int npCount, int nfCount){
+            double ep = epCount;
+            double ef = efCount;
+            double np = npCount;
+            double nf = nfCount;
 
             return (ef / (ef + nf)) / ((ef / (ef + nf)) + (ep / (ep + np)));
         }
+
+        @Override
+        public void calcAll(int[] ep, int[] ef, int length, int totalPass, int totalFail, double[] scores){
+            double failed = totalFail;
+            double passed = totalPass;
+            for(int i = 0; i < length; i++){
+                double failRatio = ef[i] / failed;
+                scores[i] = failRatio / (failRatio + ep[i] / passed);
+            }
+        }
     },
     AMPLe {
-        public double calc(SbflCounts counts){
-            double ep = counts.ep();
-            double ef = counts.ef();
-            double np = counts.np();
-            double nf = counts.nf();
+        public double calc(int epCount, int efCount, int npCount, int nfCount){
+            double ep = epCount;
+            double ef = efCount;
+            double np = npCount;
+            double nf = nfCount;
 
             return Math.abs((ef / (nf + ef)) - (ep / (np + ep)));
         }
+
+        @Override
+        public void calcAll(int[] ep, int[] ef, int length, int totalPass, int totalFail, double[] scores){
+            double failed = totalFail;
+            double passed = totalPass;
+            for(int i = 0; i < length; i++){
+                scores[i] = Math.abs(ef[i] / failed - ep[i] / passed);
+            }
+        }
     },
     OCHIAI {
-        public double calc(SbflCounts counts){
-            double ep = counts.ep();
-            double ef = counts.ef();
-            double nf = counts.nf();
+        public double calc(int epCount, int efCount, int npCount, int nfCount){
+            double ep = epCount;
+            double ef = efCount;
+            double nf = nfCount;
 
             double result = ef / Math.sqrt((ef + nf) * (ef + ep));
             return Double.isNaN(result) ? 0 : result;
         }
+
+        @Override
+        public void calcAll(int[] ep, int[] ef, int length, int totalPass, int totalFail, double[] scores){
+            double failed = totalFail;
+            for(int i = 0; i < length; i++){
+                double f = ef[i];
+                double result = f / Math.sqrt(failed * (f + ep[i]));
+                scores[i] = Double.isNaN(result) ? 0 : result;
+            }
+        }
     },
     JACCARD {
-        public double calc(SbflCounts counts){
-            double ep = counts.ep();
-            double ef = counts.ef();
-            double nf = counts.nf();
+        public double calc(int epCount, int efCount, int npCount, int nfCount){
+            double ep = epCount;
+            double ef = efCount;
+            double nf = nfCount;
 
             return ef / (ef + nf + ep);
         }
+
+        @Override
+        public void calcAll(int[] ep, int[] ef, int length, int totalPass, int totalFail, double[] scores){
+            double failed = totalFail;
+            for(int i = 0; i < length; i++){
+                scores[i] = ef[i] / (failed + ep[i]);
+            }
+        }
+    },
+    //D* (* = 2)。ep + nf が 0 (失敗テストすべてだけに実行された) の要素は最も疑わしいものとして無限大とする
+    DSTAR {
+        public double calc(int epCount, int efCount, int npCount, int nfCount){
+            double ep = epCount;
+            double ef = efCount;
+            double nf = nfCount;
+
+            if(ef == 0) return 0;
+            return ef * ef / (ep + nf);
+        }
+
+        @Override
+        public void calcAll(int[] ep, int[] ef, int length, int totalPass, int totalFail, double[] scores){
+            for(int i = 0; i < length; i++){
+                double f = ef[i];
+                double result = f * f / (ep[i] + (totalFail - f));
+                scores[i] = f == 0 ? 0 : result;
+            }
+        }
+    },
+    OP2 {
+        public double calc(int epCount, int efCount, int npCount, int nfCount){
+            double ep = epCount;
+            double ef = efCount;
+            double np = npCount;
+
+            return ef - ep / (ep + np + 1);
+        }
+
+        @Override
+        public void calcAll(int[] ep, int[] ef, int length, int totalPass, int totalFail, double[] scores){
+            double passed = totalPass + 1;
+            for(int i = 0; i < length; i++){
+                scores[i] = ef[i] - ep[i] / passed;
+            }
+        }
+    },
+    BARINEL {
+        public double calc(int epCount, int efCount, int npCount, int nfCount){
+            double ep = epCount;
+            double ef = efCount;
+
+            double result = 1 - ep / (ep + ef);
+            return Double.isNaN(result) ? 0 : result;
+        }
+
+        @Override
+        public void calcAll(int[] ep, int[] ef, int length, int totalPass, int totalFail, double[] scores){
+            for(int i = 0; i < length; i++){
+                double p = ep[i];
+                double result = 1 - p / (p + ef[i]);
+                scores[i] = Double.isNaN(result) ? 0 : result;
+            }
+        }
+    },
+    KULCZYNSKI2 {
+        public double calc(int epCount, int efCount, int npCount, int nfCount){
+            double ep = epCount;
+            double ef = efCount;
+            double nf = nfCount;
+
+            if(ef == 0) return 0;
+            return (ef / (ef + nf) + ef / (ef + ep)) / 2;
+        }
+
+        @Override
+        public void calcAll(int[] ep, int[] ef, int length, int totalPass, int totalFail, double[] scores){
+            double failed = totalFail;
+            for(int i = 0; i < length; i++){
+                double f = ef[i];
+                double result = (f / failed + f / (f + ep[i])) / 2;
+                scores[i] = f == 0 ? 0 : result;
+            }
+        }
     };
 
-    public abstract double calc(SbflCounts counts);
+    /**
+     * SbflCounts を作らずに疑惑値を計算する。多数の要素をまとめて計算する場合に使用する。
+     */
+    @Override
+    public abstract double calc(int ep, int ef, int np, int nf);
 }
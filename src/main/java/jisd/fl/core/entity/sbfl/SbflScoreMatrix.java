@@ -0,0 +1,199 @@
+package jisd.fl.core.entity.sbfl;
+
+import jisd.fl.core.entity.coverage.SbflCountsCursor;
+import jisd.fl.core.entity.element.CodeElementIdentifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.Set;
+
+/**
+ * 要素 × 式 の疑惑値の表。
+ * カバレッジを1度走査するだけで、登録されたすべての式の疑惑値をまとめて計算して保持する。
+ * 使用する式を切り替える場合は、カバレッジから計算し直さずにこの表の列を読み直せばよい。
+ * 要素ごとの ep/ef と総数も保持しているため、後から式を追加する場合もカバレッジは参照しない。
+ */
+public class SbflScoreMatrix {
+    //addAll で ep/ef を溜めてからまとめて計算する要素数
+    private static final int BATCH_SIZE = 4096;
+
+    private final List<SuspiciousnessFormula> formulas = new ArrayList<>();
+    private final Map<SuspiciousnessFormula, Integer> columnOf = new HashMap<>();
+
+    //行番号 -> 要素
+    private final List<CodeElementIdentifier<?>> elements = new ArrayList<>();
+    private final Map<CodeElementIdentifier<?>, Integer> rowOf = new HashMap<>();
+    //行番号ごとの ep/ef と総数
+    private int[] ep = new int[16];
+    private int[] ef = new int[16];
+    private int[] totalPass = new int[16];
+    private int[] totalFail = new int[16];
+    //[列番号][行番号]
+    private final List<double[]> scores = new ArrayList<>();
+
+    /**
+     * すべての {@link Formula} を列に持つ表を作る。
+     */
+    public SbflScoreMatrix(){
+        this(List.of(Formula.values()));
+    }
+
+    public SbflScoreMatrix(List<? extends SuspiciousnessFormula> formulas){
+        formulas.forEach(this::addFormula);
+    }
+
+    /**
+     * 式を列に加え、既にある行の疑惑値を保持している ep/ef から計算する。既にある式の場合は何もしない。
+     */
+    public void addFormula(SuspiciousnessFormula formula){
+        if(columnOf.containsKey(formula)) return;
+        columnOf.put(formula, formulas.size());
+        formulas.add(formula);
+        double[] column = new double[ep.length];
+        for(int row = 0; row < elements.size(); row++) column[row] = calcRow(formula, row);
+        scores.add(column);
+    }
+
+    public List<SuspiciousnessFormula> formulas(){
+        return List.copyOf(formulas);
+    }
+
+    /**
+     * カーソルの要素の疑惑値をすべての式で計算して追加する。既に表にある要素は値を置き換える。
+     * 要素の ep/ef を列に溜め、各式の {@link SuspiciousnessFormula#calcAll} で列ごとに計算する。
+     */
+    public void addAll(SbflCountsCursor<? extends CodeElementIdentifier<?>> cursor){
+        int[] batchEp = new int[BATCH_SIZE];
+        int[] batchEf = new int[BATCH_SIZE];
+        int[] rows = new int[BATCH_SIZE];
+        int n = 0;
+        int pass = -1;
+        int fail = -1;
+        while(cursor.next()){
+            //calcAll は総数が共通の要素をまとめて計算するため、総数が変わったら溜めた分を先に計算する
+            int p = cursor.ep() + cursor.np();
+            int f = cursor.ef() + cursor.nf();
+            if(n == BATCH_SIZE || (n > 0 && (p != pass || f != fail))){
+                calcBatch(batchEp, batchEf, rows, n, pass, fail);
+                n = 0;
+            }
+            pass = p;
+            fail = f;
+            int row = rowFor(cursor.element());
+            ep[row] = batchEp[n] = cursor.ep();
+            ef[row] = batchEf[n] = cursor.ef();
+            totalPass[row] = p;
+            totalFail[row] = f;
+            rows[n] = row;
+            n++;
+        }
+        if(n > 0) calcBatch(batchEp, batchEf, rows, n, pass, fail);
+    }
+
+    private void calcBatch(int[] batchEp, int[] batchEf, int[] rows, int length, int pass, int fail){
+        double[] batch = new double[length];
+        for(int c = 0; c < formulas.size(); c++){
+            formulas.get(c).calcAll(batchEp, batchEf, length, pass, fail, batch);
+            double[] column = scores.get(c);
+            for(int i = 0; i < length; i++) column[rows[i]] = batch[i];
+        }
+    }
+
+    private double calcRow(SuspiciousnessFormula formula, int row){
+        return formula.calc(ep[row], ef[row], totalPass[row] - ep[row], totalFail[row] - ef[row]);
+    }
+
+    private int rowFor(CodeElementIdentifier<?> element){
+        Integer row = rowOf.get(element);
+        if(row != null) return row;
+        int newRow = elements.size();
+        elements.add(element);
+        rowOf.put(element, newRow);
+        if(newRow == ep.length){
+            int capacity = newRow * 2;
+            ep = Arrays.copyOf(ep, capacity);
+            ef = Arrays.copyOf(ef, capacity);
+            totalPass = Arrays.copyOf(totalPass, capacity);
+            totalFail = Arrays.copyOf(totalFail, capacity);
+            scores.replaceAll(column -> Arrays.copyOf(column, capacity));
+        }
+        return newRow;
+    }
+
+    /**
+     * 別の表の行をこの表に写す。既にある要素は値を置き換える。
+     * other に無い式の列は、写した ep/ef から計算する。
+     */
+    public void merge(SbflScoreMatrix other){
+        for(int from = 0; from < other.elements.size(); from++){
+            int to = rowFor(other.elements.get(from));
+            ep[to] = other.ep[from];
+            ef[to] = other.ef[from];
+            totalPass[to] = other.totalPass[from];
+            totalFail[to] = other.totalFail[from];
+            for(int c = 0; c < formulas.size(); c++){
+                Integer otherColumn = other.columnOf.get(formulas.get(c));
+                scores.get(c)[to] = otherColumn != null
+                        ? other.scores.get(otherColumn)[from]
+                        : calcRow(formulas.get(c), to);
+            }
+        }
+    }
+
+    /**
+     * 要素を表から除く。最後の行を空いた行に移して詰める。
+     */
+    public void removeAll(Set<? extends CodeElementIdentifier<?>> targets){
+        for(CodeElementIdentifier<?> target : targets){
+            Integer row = rowOf.remove(target);
+            if(row == null) continue;
+            int last = elements.size() - 1;
+            CodeElementIdentifier<?> moved = elements.remove(last);
+            if(row == last) continue;
+            elements.set(row, moved);
+            rowOf.put(moved, row);
+            ep[row] = ep[last];
+            ef[row] = ef[last];
+            totalPass[row] = totalPass[last];
+            totalFail[row] = totalFail[last];
+            for(double[] column : scores) column[row] = column[last];
+        }
+    }
+
+    /**
+     * @return 要素が表に無い、または式が列に無い場合は空
+     */
+    public OptionalDouble score(CodeElementIdentifier<?> element, SuspiciousnessFormula formula){
+        Integer row = rowOf.get(element);
+        Integer column = columnOf.get(formula);
+        if(row == null || column == null) return OptionalDouble.empty();
+        return OptionalDouble.of(scores.get(column)[row]);
+    }
+
+    /**
+     * 表のすべての要素について、指定した式の疑惑値を consumer に渡す。
+     *
+     * @throws IllegalArgumentException 式が列に無い場合
+     */
+    public void forEach(SuspiciousnessFormula formula, ScoreConsumer consumer){
+        Integer c = columnOf.get(formula);
+        if(c == null) throw new IllegalArgumentException("Formula is not in the score matrix: " + formula.name());
+        double[] column = scores.get(c);
+        for(int row = 0; row < elements.size(); row++){
+            consumer.accept(elements.get(row), column[row]);
+        }
+    }
+
+    public int size(){
+        return elements.size();
+    }
+
+    @FunctionalInterface
+    public interface ScoreConsumer {
+        void accept(CodeElementIdentifier<?> element, double score);
+    }
+}
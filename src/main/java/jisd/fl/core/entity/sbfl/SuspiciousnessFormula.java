@@ -0,0 +1,49 @@
+package jisd.fl.core.entity.sbfl;
+
+import jisd.fl.core.entity.coverage.SbflCounts;
+
+import java.util.Arrays;
+
+/**
+ * ep/ef/np/nf から疑惑値を計算する式。
+ * 組み込みの {@link Formula} と、設定から与える {@link ExpressionFormula} のどちらもランキングの作成に同じように使用できる。
+ */
+public interface SuspiciousnessFormula {
+    /**
+     * ランキングの表示や設定に使用する名前。
+     */
+    String name();
+
+    double calc(int ep, int ef, int np, int nf);
+
+    default double calc(SbflCounts counts){
+        return calc(counts.ep(), counts.ef(), counts.np(), counts.nf());
+    }
+
+    /**
+     * 要素ごとの ep/ef を並べた列から、疑惑値をまとめて計算する。np/nf は totalPass/totalFail から求める。
+     * 結果は要素ごとに {@link #calc(int, int, int, int)} を呼んだ場合と一致する。
+     *
+     * @param length 先頭から計算する要素数
+     * @param scores 疑惑値の出力先。length 以上の長さが必要
+     */
+    default void calcAll(int[] ep, int[] ef, int length, int totalPass, int totalFail, double[] scores){
+        for(int i = 0; i < length; i++){
+            scores[i] = calc(ep[i], ef[i], totalPass - ep[i], totalFail - ef[i]);
+        }
+    }
+
+    /**
+     * {@link Formula} の名前 (大文字小文字は区別しない) であればその定数を、そうでなければ式として解釈した {@link ExpressionFormula} を返す。
+     *
+     * @throws IllegalArgumentException 式として解釈できない場合
+     */
+    static SuspiciousnessFormula of(String nameOrExpression){
+        String s = nameOrExpression.trim();
+        return Arrays.stream(Formula.values())
+                .filter(f -> f.name().equalsIgnoreCase(s))
+                .<SuspiciousnessFormula>map(f -> f)
+                .findFirst()
+                .orElseGet(() -> ExpressionFormula.compile(s));
+    }
+}
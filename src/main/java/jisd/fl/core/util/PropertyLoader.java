@@ -3,6 +3,8 @@ package jisd.fl.core.util;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 /**
@@ -18,6 +20,11 @@ import java.util.*;
  *   targetSrcPath=src/main/java
  *   testSrcPath=src/test/java
  *
+ * 任意のキー（手で追記する）:
+ *   coverageIncludes=com.example.util.*:com.example.Gen$*   … 対象bin以外にカバレッジを計測するクラス（JaCoCo agent の includes 形式、:区切り）
+ *   sbflFormula=ef^2 / (ep + nf)   … 疑惑値の計算式。Formula の名前（OCHIAI など）または式（ExpressionFormula の形式）
+ *   coverageCache=true   … テストごとのカバレッジをキャッシュし、変更の無いテストを再実行しない（既定は false）
+ *
  * ※ *Path は「root相対（推奨）または絶対」のどちらでも許容。
  */
 public final class PropertyLoader {
@@ -71,6 +78,39 @@ public final class PropertyLoader {
     public static Path getTargetSrcDir() { return getTargetProjectConfig().targetSrcDir(); }
     public static Path getTestSrcDir() { return getTargetProjectConfig().testSrcDir(); }
 
+    /** テストごとのカバレッジのキャッシュを置くディレクトリ（対象プロジェクトごと） */
+    public static Path getCoverageCacheDir() {
+        String root = getProjectRoot().toAbsolutePath().normalize().toString();
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(root.getBytes(StandardCharsets.UTF_8));
+            return USER_DIR.resolve("coverage-cache").resolve(HexFormat.of().formatHex(hash));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** テストごとのカバレッジのキャッシュを使用するか。未設定なら false */
+    public static boolean isCoverageCacheEnabled() {
+        return Boolean.parseBoolean(PROJECT.getProperty("coverageCache", "false").trim());
+    }
+
+    /** 対象binのクラスに加えてカバレッジを計測するクラスのパターン。未設定なら空 */
+    public static List<String> getAdditionalCoverageIncludes() {
+        String v = PROJECT.getProperty("coverageIncludes");
+        if (v == null || v.isBlank()) return List.of();
+        return Arrays.stream(v.split(":"))
+                .map(String::trim)
+                .filter(e -> !e.isEmpty())
+                .toList();
+    }
+
+    /** 疑惑値の計算式（Formula の名前または式）。未設定なら空 */
+    public static Optional<String> getSbflFormula() {
+        String v = PROJECT.getProperty("sbflFormula");
+        if (v == null || v.isBlank()) return Optional.empty();
+        return Optional.of(v.trim());
+    }
+
     // ====== Record ======
 
     public record ProjectConfig(
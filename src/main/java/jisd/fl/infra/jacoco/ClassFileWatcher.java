@@ -0,0 +1,122 @@
+package jisd.fl.infra.jacoco;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * クラスファイルのディレクトリを監視し、変更されたクラスの内部名 (e.g. org/foo/Bar) を通知するクラス。
+ * コンパイル時は複数のクラスファイルが続けて書き込まれるため、変更が quietPeriod の間途絶えてからまとめて通知する。
+ * 通知は監視スレッドから行われる。
+ */
+public final class ClassFileWatcher implements Closeable {
+    private final Path classesDir;
+    private final WatchService watchService;
+    private final Duration quietPeriod;
+    private final Consumer<Set<String>> onChange;
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    private ClassFileWatcher(Path classesDir, WatchService watchService, Duration quietPeriod, Consumer<Set<String>> onChange) {
+        this.classesDir = classesDir;
+        this.watchService = watchService;
+        this.quietPeriod = quietPeriod;
+        this.onChange = onChange;
+        this.thread = new Thread(this::run, "faultfinder-classfile-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * @param classesDir 監視するクラスファイルのディレクトリ (サブディレクトリも含む)
+     * @param quietPeriod 変更が途絶えてから通知するまでの時間
+     * @param onChange 変更・追加・削除されたクラスの内部名を受け取る
+     */
+    public static ClassFileWatcher start(Path classesDir, Duration quietPeriod, Consumer<Set<String>> onChange) throws IOException {
+        WatchService ws = classesDir.getFileSystem().newWatchService();
+        ClassFileWatcher watcher = new ClassFileWatcher(classesDir, ws, quietPeriod, onChange);
+        try {
+            watcher.registerAll(classesDir);
+        } catch (IOException e) {
+            ws.close();
+            throw e;
+        }
+        watcher.thread.start();
+        return watcher;
+    }
+
+    private void registerAll(Path dir) throws IOException {
+        try (var s = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) s.filter(Files::isDirectory)::iterator) {
+                p.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            }
+        }
+    }
+
+    private void run() {
+        Set<String> changed = new HashSet<>();
+        while (!closed) {
+            try {
+                //変更が無い間は待ち続け、変更を受け取ったら quietPeriod の間新しい変更が無くなるまで集める
+                WatchKey key = changed.isEmpty()
+                        ? watchService.take()
+                        : watchService.poll(quietPeriod.toMillis(), TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    Set<String> notified = changed;
+                    changed = new HashSet<>();
+                    onChange.accept(notified);
+                    continue;
+                }
+                collect(key, changed);
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("[FaultFinder] failed to handle class file changes: " + e.getMessage());
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+
+    private void collect(WatchKey key, Set<String> changed) {
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) continue;
+            Path p = dir.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(p)) {
+                //新しいパッケージのディレクトリも監視し、既に書き込まれたクラスファイルを変更として扱う
+                try {
+                    registerAll(p);
+                    try (var s = Files.walk(p)) {
+                        s.filter(f -> f.toString().endsWith(".class")).forEach(f -> changed.add(toInternalName(f)));
+                    }
+                } catch (IOException e) {
+                    System.err.println("[FaultFinder] failed to watch directory: " + p + " (" + e.getMessage() + ")");
+                }
+                continue;
+            }
+            if (p.toString().endsWith(".class")) changed.add(toInternalName(p));
+        }
+        key.reset();
+    }
+
+    // e.g. .../classes/org/foo/Bar.class -> org/foo/Bar (ClassFileCache と同じ形式)
+    private String toInternalName(Path classFile) {
+        return classesDir.relativize(classFile).toString()
+                .replace(File.separatorChar, '/')
+                .replaceAll("\\.class$", "");
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        watchService.close();
+        thread.interrupt();
+    }
+}
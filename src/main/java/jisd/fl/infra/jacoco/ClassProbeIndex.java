@@ -0,0 +1,224 @@
+package jisd.fl.infra.jacoco;
+
+import org.jacoco.core.analysis.Analyzer;
+import org.jacoco.core.analysis.IClassCoverage;
+import org.jacoco.core.analysis.ICounter;
+import org.jacoco.core.analysis.IMethodCoverage;
+import org.jacoco.core.analysis.ISourceNode;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataStore;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * あるクラスについて、JaCoCoのプローブIDと「そのプローブが実行されたときに実行済みとなる行・メソッド」の対応を保持するクラス。
+ *
+ * JaCoCoの行・メソッドの実行判定は各プローブから得られる結果の論理和であるため、
+ * プローブごとの対応をクラスにつき一度だけ計算しておけば、テストごとのプローブ配列から
+ * ASMによるクラスファイルの再解析なしにカバレッジを求められる。
+ */
+public final class ClassProbeIndex {
+    private static final int[] NONE = new int[0];
+
+    private final long classId;
+    private final String internalName;
+    //合成クラスなど、JaCoCoが解析しないクラスの場合は false
+    private final boolean analyzable;
+    //行の構造。IClassCoverage はクラスごとに保持すると大きいため、必要な情報だけを取り出して保持する。
+    private final int firstLine;
+    private final int lastLine;
+    //実行可能な行 (EMPTYでない行) のビット。添字は 行番号 - firstLine
+    private final long[] executableLines;
+    private final int[][] linesByProbe;
+    //IClassCoverage#getMethods() の順序での添字
+    private final int[][] methodsByProbe;
+    private final int[] methodFirstLines;
+
+    private ClassProbeIndex(long classId, String internalName, boolean analyzable, int firstLine, int lastLine, long[] executableLines,
+                            int[][] linesByProbe, int[][] methodsByProbe, int[] methodFirstLines) {
+        this.classId = classId;
+        this.internalName = internalName;
+        this.analyzable = analyzable;
+        this.firstLine = firstLine;
+        this.lastLine = lastLine;
+        this.executableLines = executableLines;
+        this.linesByProbe = linesByProbe;
+        this.methodsByProbe = methodsByProbe;
+        this.methodFirstLines = methodFirstLines;
+    }
+
+    /**
+     * プローブを有効にしてクラスを解析し、対応表を作成する。
+     * プローブはメソッドごとに割り当てられ、その実行はそのメソッドのカバレッジにしか影響しない。
+     * そのため、各メソッドから1つずつプローブを選んで同時に有効にし、メソッドごとのカバレッジを読めば、
+     * 1回の解析で複数のプローブの対応が得られる。解析の回数はプローブ数ではなく、メソッドが持つプローブ数の最大値になる。
+     * メソッドとの対応が分からないプローブは、1つずつ有効にして解析する。
+     *
+     * @param data 対象クラスの実行データ。ID・クラス名・プローブ数のみを使用する。
+     * @param classBytes 対象クラスのクラスファイル
+     */
+    public static ClassProbeIndex build(ExecutionData data, byte[] classBytes) throws IOException {
+        int probeCount = data.getProbes().length;
+        boolean[] probes = new boolean[probeCount];
+        ExecutionDataStore store = new ExecutionDataStore();
+        store.put(new ExecutionData(data.getId(), data.getName(), probes));
+
+        IClassCoverage[] analyzed = new IClassCoverage[1];
+        Analyzer analyzer = new Analyzer(store, cc -> analyzed[0] = cc);
+        analyzer.analyzeClass(classBytes, data.getName());
+        IClassCoverage structure = analyzed[0];
+
+        int[][] linesByProbe = new int[probeCount][];
+        int[][] methodsByProbe = new int[probeCount][];
+        Arrays.fill(linesByProbe, NONE);
+        Arrays.fill(methodsByProbe, NONE);
+        //合成クラスはJaCoCoの解析対象外
+        if (structure == null) {
+            return new ClassProbeIndex(data.getId(), data.getName(), false, -1, -1, new long[0], linesByProbe, methodsByProbe, NONE);
+        }
+        int[] methodFirstLines = structure.getMethods().stream().mapToInt(IMethodCoverage::getFirstLine).toArray();
+
+        //IClassCoverage#getMethods() の順序で、各メソッドのプローブID
+        Map<String, int[]> probesByMethod = MethodProbes.of(classBytes, data.getName(), probeCount);
+        //false のプローブはメソッドとの対応が分からない
+        boolean[] assigned = new boolean[probeCount];
+        int[][] methodProbes = new int[methodFirstLines.length][];
+        int rounds = 0;
+        int m = 0;
+        for (IMethodCoverage mc : structure.getMethods()) {
+            methodProbes[m] = probesByMethod.getOrDefault(mc.getName() + mc.getDesc(), NONE);
+            rounds = Math.max(rounds, methodProbes[m].length);
+            m++;
+        }
+        //レポートされないメソッド (フィルタされた合成メソッドなど) のプローブは、どの行・メソッドにも対応しない
+        for (int[] ids : probesByMethod.values()) {
+            for (int id : ids) assigned[id] = true;
+        }
+
+        // Analyzer は解析のたびに probes 配列を参照するため、配列を書き換えて使い回す
+        for (int r = 0; r < rounds; r++) {
+            for (int[] ids : methodProbes) {
+                if (r < ids.length) probes[ids[r]] = true;
+            }
+            analyzed[0] = null;
+            analyzer.analyzeClass(classBytes, data.getName());
+            Arrays.fill(probes, false);
+
+            //同じクラスファイルの解析結果であるため、メソッドの順序は structure と同じ
+            m = 0;
+            for (IMethodCoverage mc : analyzed[0].getMethods()) {
+                int[] ids = methodProbes[m];
+                if (r < ids.length) {
+                    linesByProbe[ids[r]] = coveredLines(mc);
+                    methodsByProbe[ids[r]] = mc.getMethodCounter().getCoveredCount() > 0 ? new int[]{m} : NONE;
+                }
+                m++;
+            }
+        }
+
+        for (int p = 0; p < probeCount; p++) {
+            if (assigned[p]) continue;
+            probes[p] = true;
+            analyzed[0] = null;
+            analyzer.analyzeClass(classBytes, data.getName());
+            probes[p] = false;
+
+            IClassCoverage cc = analyzed[0];
+            linesByProbe[p] = coveredLines(cc);
+            methodsByProbe[p] = coveredMethods(cc);
+        }
+        return new ClassProbeIndex(data.getId(), data.getName(), true, structure.getFirstLine(), structure.getLastLine(),
+                executableLines(structure), linesByProbe, methodsByProbe, methodFirstLines);
+    }
+
+    private static long[] executableLines(IClassCoverage structure) {
+        int first = structure.getFirstLine();
+        int last = structure.getLastLine();
+        if (first < 0 || last < first) return new long[0];
+        long[] bits = new long[(last - first + 64) >>> 6];
+        for (int line = first; line <= last; line++) {
+            if (structure.getLine(line).getStatus() == ICounter.EMPTY) continue;
+            int local = line - first;
+            bits[local >>> 6] |= 1L << local;
+        }
+        return bits;
+    }
+
+    private static int[] coveredLines(ISourceNode node) {
+        int first = node.getFirstLine();
+        int last = node.getLastLine();
+        if (first < 0) return NONE;
+        int[] buf = new int[last - first + 1];
+        int n = 0;
+        for (int line = first; line <= last; line++) {
+            int stat = node.getLine(line).getStatus();
+            if (stat == ICounter.PARTLY_COVERED || stat == ICounter.FULLY_COVERED) buf[n++] = line;
+        }
+        return n == 0 ? NONE : Arrays.copyOf(buf, n);
+    }
+
+    private static int[] coveredMethods(IClassCoverage cc) {
+        int[] buf = new int[cc.getMethods().size()];
+        int n = 0;
+        int i = 0;
+        for (IMethodCoverage mc : cc.getMethods()) {
+            if (mc.getMethodCounter().getCoveredCount() > 0) buf[n++] = i;
+            i++;
+        }
+        return n == 0 ? NONE : Arrays.copyOf(buf, n);
+    }
+
+    public long classId() {
+        return classId;
+    }
+
+    public String internalName() {
+        return internalName;
+    }
+
+    /**
+     * JaCoCoが解析対象とするクラスかどうか。合成クラスの場合は false。
+     */
+    public boolean isAnalyzable() {
+        return analyzable;
+    }
+
+    /** 最初の行。行を持たないクラスの場合は -1 */
+    int firstLine() {
+        return firstLine;
+    }
+
+    /** 最後の行。行を持たないクラスの場合は -1 */
+    int lastLine() {
+        return lastLine;
+    }
+
+    /** 実行可能な行 (IClassCoverage#getLine が EMPTY でない行) かどうか */
+    boolean isExecutableLine(int line) {
+        int local = line - firstLine;
+        if (firstLine < 0 || local < 0 || line > lastLine) return false;
+        return (executableLines[local >>> 6] & (1L << local)) != 0;
+    }
+
+    public int probeCount() {
+        return linesByProbe.length;
+    }
+
+    int[] linesOf(int probeId) {
+        return linesByProbe[probeId];
+    }
+
+    int[] methodsOf(int probeId) {
+        return methodsByProbe[probeId];
+    }
+
+    int methodCount() {
+        return methodFirstLines.length;
+    }
+
+    int methodFirstLine(int method) {
+        return methodFirstLines[method];
+    }
+}
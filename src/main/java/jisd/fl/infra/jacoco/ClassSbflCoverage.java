@@ -1,9 +1,11 @@
 package jisd.fl.infra.jacoco;
 
+import jisd.fl.core.entity.coverage.ConcurrentSbflCountsTable;
 import jisd.fl.core.entity.coverage.ElementIDRegistry;
 import jisd.fl.core.entity.coverage.SbflCounts;
 import jisd.fl.core.entity.coverage.SbflCountsTable;
 import jisd.fl.core.entity.coverage.SbflCoverageView;
+import jisd.fl.core.entity.coverage.TestCoverageMatrix;
 import jisd.fl.core.entity.element.ClassElementName;
 import jisd.fl.core.entity.element.LineElementName;
 import jisd.fl.core.entity.element.LineElementNameResolver;
@@ -14,68 +16,127 @@ import org.jacoco.core.analysis.IMethodCoverage;
 
 import java.nio.file.NoSuchFileException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
 
+/**
+ * 1クラス分の行・メソッド・クラス単位の ep/ef を集計するクラス。
+ * concurrent を指定して生成した場合は、複数のスレッドから同時に accept/retract してよい。
+ * その場合、要素ごとのカウントは {@link ConcurrentSbflCountsTable} で原子的に更新し、
+ * クラスの構造の初期化は最初に到達したスレッドが一度だけ行う。
+ */
 public class ClassSbflCoverage {
 
     public final ClassElementName targetClass;
     private final LineElementNameResolver lineElementNameResolver;
+    private final boolean concurrent;
 
-    private int totalPass = 0;
-    private int totalFail = 0;
+    private final AtomicInteger totalPass = new AtomicInteger();
+    private final AtomicInteger totalFail = new AtomicInteger();
 
     private final ElementIDRegistry<LineElementName> lineIds = new ElementIDRegistry<>();
-    private final SbflCountsTable lineCounts = new SbflCountsTable();
+    private final SbflCountsTable lineCounts;
 
     private final ElementIDRegistry<MethodElementName> methodIds = new ElementIDRegistry<>();
-    private final SbflCountsTable methodCounts = new SbflCountsTable();
+    private final SbflCountsTable methodCounts;
 
-    private int classEp = 0;
-    private int classEf = 0;
+    private final AtomicInteger classEp = new AtomicInteger();
+    private final AtomicInteger classEf = new AtomicInteger();
+
+    //テストごとに実行した要素を保持する行列。null の場合は保持しない
+    private TestCoverageMatrix lineMatrix;
+    private TestCoverageMatrix methodMatrix;
 
     //--- for optimize ---
-    private boolean initialized = false;
+    //初期化を終えた後の値は、initialized の読み出しを通して他のスレッドから見える
+    private volatile boolean initialized = false;
     private int firstLIne = -1;
     private int lastLine = -1;
 
     private int[] lineIdByLine;
     private int[] methodIdByLine;
+
+    //プローブIDから直接カウントを更新するための対応表 (ClassProbeIndexをこのクラスのIDに変換したもの)
+    private volatile ProbeMap probeMap;
+    //1テスト内で実行された要素を集める作業領域 (concurrent でない場合のみ使い回す)
+    private HitScratch scratch;
+    private static final int HITS_CACHE_SIZE = 64;
     //--------------------
 
 
     public ClassSbflCoverage(ClassElementName targetClass, LineElementNameResolver resolver) throws NoSuchFileException {
+        this(targetClass, resolver, false);
+    }
+
+    /**
+     * @param concurrent true の場合、複数のスレッドから同時にカバレッジを反映できるようにする
+     */
+    public ClassSbflCoverage(ClassElementName targetClass, LineElementNameResolver resolver, boolean concurrent) throws NoSuchFileException {
         this.targetClass = targetClass;
         this.lineElementNameResolver = resolver;
+        this.concurrent = concurrent;
+        this.lineCounts = concurrent ? new ConcurrentSbflCountsTable() : new SbflCountsTable();
+        this.methodCounts = concurrent ? new ConcurrentSbflCountsTable() : new SbflCountsTable();
     }
 
     public int totalPass() {
-        return totalPass;
+        return totalPass.get();
     }
     public int totalFail() {
-        return totalFail;
+        return totalFail.get();
     }
 
     public SbflCoverageView<LineElementName> lineCoverageView(){
-        return new SbflCoverageView<>(lineIds, lineCounts, totalPass, totalFail);
+        return new SbflCoverageView<>(lineIds, lineCounts, totalPass(), totalFail());
     }
     public SbflCoverageView<MethodElementName> methodCoverageView(){
-        return new SbflCoverageView<>(methodIds, methodCounts, totalPass, totalFail);
+        return new SbflCoverageView<>(methodIds, methodCounts, totalPass(), totalFail());
+    }
+
+    /**
+     * テストごとに実行した行・メソッドを {@link TestCoverageMatrix} に保持する。
+     * テストのIDを指定する accept で反映したテストのみが対象になる。
+     */
+    public void enableTestMatrix(){
+        if(lineMatrix != null) return;
+        lineMatrix = new TestCoverageMatrix();
+        methodMatrix = new TestCoverageMatrix();
+    }
+
+    /**
+     * テストID × 行ID のカバレッジ行列。行IDは {@link #lineCoverageView()} のIDと同じ。
+     * {@link #enableTestMatrix()} を呼んでいない場合は null。
+     */
+    public TestCoverageMatrix lineMatrix(){
+        return lineMatrix;
+    }
+
+    /**
+     * テストID × メソッドID のカバレッジ行列。メソッドIDは {@link #methodCoverageView()} のIDと同じ。
+     * {@link #enableTestMatrix()} を呼んでいない場合は null。
+     */
+    public TestCoverageMatrix methodMatrix(){
+        return methodMatrix;
     }
 
     public boolean hasAnyCoverage(){
-        return (classEf + classEp) > 0;
+        return (classEf.get() + classEp.get()) > 0;
     }
 
     public SbflCounts classCounts(){
-        int ep = classEp;
-        int ef = classEf;
-        int np = totalPass - ep;
-        int nf = totalFail - ef;
+        int ep = classEp.get();
+        int ef = classEf.get();
+        int np = totalPass() - ep;
+        int nf = totalFail() - ef;
         return new SbflCounts(ep, ef, np, nf);
     }
 
     public void accept(IClassCoverage cc, boolean testPassed) {
         initializeIfNeeded(cc);
-        if(testPassed) totalPass++; else totalFail++;
+        (testPassed ? totalPass : totalFail).incrementAndGet();
 
         //行単位カバレッジ
         for(int line = firstLIne; line <= lastLine; line++){
@@ -111,9 +172,204 @@ public class ClassSbflCoverage {
         //クラス単位カバレッジ
         boolean executed = isClassExecuted(cc);
         if(executed) {
-            if (testPassed) classEp++;
-            else classEf++;
+            (testPassed ? classEp : classEf).incrementAndGet();
+        }
+    }
+
+    /**
+     * 1テスト分のプローブ配列をカバレッジに反映する。
+     * {@link #accept(IClassCoverage, boolean)} と同じ結果になるが、クラスファイルの解析は行わない。
+     *
+     * @param index 対象クラスのプローブ対応表
+     * @param probes テスト実行時のプローブ配列
+     * @param testPassed テストが成功したか
+     */
+    public void accept(ClassProbeIndex index, boolean[] probes, boolean testPassed) {
+        apply(index, probes, testPassed, 1, -1);
+    }
+
+    /**
+     * {@link #accept(ClassProbeIndex, boolean[], boolean)} に加えて、行列が有効な場合はテストが実行した要素を記録する。
+     *
+     * @param testId 行列の行に使うテストのID
+     */
+    public void accept(ClassProbeIndex index, boolean[] probes, boolean testPassed, int testId) {
+        apply(index, probes, testPassed, 1, testId);
+    }
+
+    /**
+     * 同じプローブ配列を持つ times 個のテストをまとめてカバレッジに反映する。
+     * {@link #accept(ClassProbeIndex, boolean[], boolean)} を times 回呼ぶのと同じ結果になる。
+     */
+    public void acceptRepeated(ClassProbeIndex index, boolean[] probes, boolean testPassed, int times) {
+        if(times <= 0) throw new IllegalArgumentException("times must be positive: " + times);
+        apply(index, probes, testPassed, times, -1);
+    }
+
+    /**
+     * {@link #accept(ClassProbeIndex, boolean[], boolean)} で反映した1テスト分のカバレッジを取り消す。
+     * テストを再実行して結果を差し替える場合に、以前の結果を除くために使用する。
+     */
+    public void retract(ClassProbeIndex index, boolean[] probes, boolean testPassed) {
+        apply(index, probes, testPassed, -1, -1);
+    }
+
+    /**
+     * {@link #accept(ClassProbeIndex, boolean[], boolean, int)} で反映した1テスト分のカバレッジを取り消す。
+     */
+    public void retract(ClassProbeIndex index, boolean[] probes, boolean testPassed, int testId) {
+        apply(index, probes, testPassed, -1, testId);
+    }
+
+    private void apply(ClassProbeIndex index, boolean[] probes, boolean testPassed, int delta, int testId) {
+        if(!index.isAnalyzable()) return;
+        initializeIfNeeded(index);
+        ProbeMap map = probeMapFor(index);
+        (testPassed ? totalPass : totalFail).addAndGet(delta);
+
+        ResolvedHits hits = resolveHits(map, index, probes);
+        for(int id : hits.lineIds()){
+            if(testPassed) lineCounts.addEp(id, delta); else lineCounts.addEf(id, delta);
+        }
+        for(int id : hits.methodIds()){
+            if(testPassed) methodCounts.addEp(id, delta); else methodCounts.addEf(id, delta);
+        }
+
+        //クラス単位カバレッジ
+        if(hits.classExecuted()) {
+            (testPassed ? classEp : classEf).addAndGet(delta);
+        }
+
+        if(lineMatrix != null && testId >= 0) {
+            if(delta > 0) {
+                lineMatrix.putRow(testId, hits.lineIds(), hits.lineIds().length);
+                int[] methods = hits.methodIds().clone();
+                methodMatrix.putRow(testId, methods, sortDistinct(methods, methods.length));
+            } else {
+                lineMatrix.removeRow(testId);
+                methodMatrix.removeRow(testId);
+            }
+        }
+    }
+
+    /**
+     * プローブ配列が実行した行・メソッドのIDを求める。
+     * 同じクラスを実行するテストの多くは同じプローブ配列を持つため、最近のプローブ配列の結果を再利用する。
+     */
+    private ResolvedHits resolveHits(ProbeMap map, ClassProbeIndex index, boolean[] probes){
+        ProbePattern pattern = new ProbePattern(probes);
+        ResolvedHits cached;
+        synchronized (map.hitsByPattern()) {
+            cached = map.hitsByPattern().get(pattern);
+        }
+        if(cached != null) return cached;
+
+        //作業領域はスレッド間で共有できないため、concurrent の場合は呼び出しごとに確保する
+        HitScratch sc = concurrent ? new HitScratch(lineIds.size(), map.methodIdByMethod().length) : scratchFor(map);
+        int lineHitCount = 0;
+        int methodHitCount = 0;
+        int stamp = ++sc.stamp;
+        boolean classExecuted = false;
+        int n = Math.min(probes.length, map.lineIdsByProbe().length);
+        for(int p = 0; p < n; p++){
+            if(!probes[p]) continue;
+            if(index.linesOf(p).length > 0) classExecuted = true;
+            for(int id : map.lineIdsByProbe()[p]){
+                if(sc.lineStamp[id] == stamp) continue;
+                sc.lineStamp[id] = stamp;
+                sc.lineHits[lineHitCount++] = id;
+            }
+            //IClassCoverage版と同様に、メソッドごとに数える
+            for(int m : map.methodsByProbe()[p]){
+                if(sc.methodStamp[m] == stamp) continue;
+                sc.methodStamp[m] = stamp;
+                int id = map.methodIdByMethod()[m];
+                if(id < 0) continue;
+                sc.methodHits[methodHitCount++] = id;
+            }
+        }
+        Arrays.sort(sc.lineHits, 0, lineHitCount);
+        ResolvedHits hits = new ResolvedHits(
+                Arrays.copyOf(sc.lineHits, lineHitCount),
+                Arrays.copyOf(sc.methodHits, methodHitCount),
+                classExecuted);
+        //呼び出し側が配列を書き換えても結果が変わらないよう、キーには複製を使う
+        synchronized (map.hitsByPattern()) {
+            map.hitsByPattern().put(pattern.copy(), hits);
+        }
+        return hits;
+    }
+
+    private HitScratch scratchFor(ProbeMap map){
+        if(scratch == null || scratch.methodStamp.length != map.methodIdByMethod().length) {
+            scratch = new HitScratch(lineIds.size(), map.methodIdByMethod().length);
+        }
+        return scratch;
+    }
+
+    //ids の先頭 n 個を昇順に並べて重複を除き、残った個数を返す
+    private static int sortDistinct(int[] ids, int n){
+        Arrays.sort(ids, 0, n);
+        int distinct = 0;
+        for(int i = 0; i < n; i++){
+            if(distinct == 0 || ids[distinct - 1] != ids[i]) ids[distinct++] = ids[i];
         }
+        return distinct;
+    }
+
+    /**
+     * index のクラスIDに対応するプローブ対応表を返す。まだ作成していなければ作成する。
+     */
+    private ProbeMap probeMapFor(ClassProbeIndex index){
+        ProbeMap map = probeMap;
+        if(map != null && map.classId() == index.classId()) return map;
+        synchronized (this) {
+            map = probeMap;
+            if(map != null && map.classId() == index.classId()) return map;
+            map = buildProbeMap(index);
+            probeMap = map;
+            return map;
+        }
+    }
+
+    private ProbeMap buildProbeMap(ClassProbeIndex index){
+        int probeCount = index.probeCount();
+        int[][] lineIdsByProbe = new int[probeCount][];
+        int[][] methodsByProbe = new int[probeCount][];
+        for(int p = 0; p < probeCount; p++){
+            lineIdsByProbe[p] = toLineIds(index.linesOf(p));
+            methodsByProbe[p] = index.methodsOf(p);
+        }
+        int[] methodIdByMethod = new int[index.methodCount()];
+        for(int m = 0; m < methodIdByMethod.length; m++){
+            int fl = index.methodFirstLine(m);
+            methodIdByMethod[m] = (fl <= 0 || fl > lastLine) ? -1 : methodIdByLine[fl];
+            if(methodIdByMethod[m] < 0 && fl > 0 && fl <= lastLine){
+                System.err.println("[INITIALIZE MAY FAILED] target: " + targetClass + ", methodIdByLine[" + fl + "] = " + methodIdByMethod[m]);
+            }
+        }
+        //プローブ配列 -> 実行した行・メソッドのID。最近使ったものから HITS_CACHE_SIZE 個に制限する
+        Map<ProbePattern, ResolvedHits> hitsByPattern = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ProbePattern, ResolvedHits> eldest) {
+                return size() > HITS_CACHE_SIZE;
+            }
+        };
+        return new ProbeMap(index.classId(), lineIdsByProbe, methodsByProbe, methodIdByMethod, hitsByPattern);
+    }
+
+    private int[] toLineIds(int[] lines){
+        int[] ids = new int[lines.length];
+        int n = 0;
+        for(int line : lines){
+            int id = lineIdByLine[line];
+            if(id < 0){
+                System.err.println("[INITIALIZE MAY FAILED] target: " + targetClass + ", lineIdByLine[" + line + "] = " + id);
+                continue;
+            }
+            ids[n++] = id;
+        }
+        return n == ids.length ? ids : Arrays.copyOf(ids, n);
     }
 
     private static boolean isClassExecuted(IClassCoverage cc) {
@@ -128,8 +384,29 @@ public class ClassSbflCoverage {
 
     private void initializeIfNeeded(IClassCoverage cc){
         if(initialized) return;
-        this.firstLIne = cc.getFirstLine();
-        this.lastLine = cc.getLastLine();
+        synchronized (this) {
+            if(initialized) return;
+            initialize(cc.getFirstLine(), cc.getLastLine(), line -> cc.getLine(line).getStatus() != ICounter.EMPTY,
+                    cc.getMethods().stream().mapToInt(IMethodCoverage::getFirstLine).toArray());
+        }
+    }
+
+    private void initializeIfNeeded(ClassProbeIndex index){
+        if(initialized) return;
+        synchronized (this) {
+            if(initialized) return;
+            initialize(index.firstLine(), index.lastLine(), index::isExecutableLine,
+                    IntStream.range(0, index.methodCount()).map(index::methodFirstLine).toArray());
+        }
+    }
+
+    /**
+     * @param executable 実行可能な行 (EMPTYでない行) かどうか
+     * @param methodFirstLines 各メソッドの開始行
+     */
+    private void initialize(int firstLine, int lastLine, IntPredicate executable, int[] methodFirstLines){
+        this.firstLIne = firstLine;
+        this.lastLine = lastLine;
 
         lineIdByLine = new int[lastLine + 1];
         methodIdByLine = new int[lastLine + 1];
@@ -138,8 +415,7 @@ public class ClassSbflCoverage {
 
         //行単位要素の初期化
         for(int line = firstLIne; line <= lastLine; line++){
-            int stat = cc.getLine(line).getStatus();
-            if(stat == ICounter.EMPTY) continue; // 実行不可能行 or 範囲外
+            if(!executable.test(line)) continue; // 実行不可能行 or 範囲外
 
             LineElementName e = lineElementNameResolver.lineElementAt(line);
             int id = lineIds.getOrCreate(e);
@@ -148,8 +424,7 @@ public class ClassSbflCoverage {
         lineCounts.ensureCapacity(lineIds.size());
 
         //メソッド単位要素の初期化
-        for(IMethodCoverage mc : cc.getMethods()){
-            int fl = mc.getFirstLine();
+        for(int fl : methodFirstLines){
             if(fl <= 0 || fl > lastLine) continue;
             MethodElementName e = lineElementNameResolver.lineElementAt(fl).methodElementName;
             int id = methodIds.getOrCreate(e);
@@ -158,4 +433,67 @@ public class ClassSbflCoverage {
         methodCounts.ensureCapacity(methodIds.size());
         initialized = true;
     }
+
+    /**
+     * あるクラスIDのプローブ対応表と、それを使って解決したプローブ配列ごとの結果。
+     * hitsByPattern は自身をロックして読み書きする。
+     */
+    private record ProbeMap(long classId, int[][] lineIdsByProbe, int[][] methodsByProbe, int[] methodIdByMethod,
+                            Map<ProbePattern, ResolvedHits> hitsByPattern) {}
+
+    /**
+     * 1テスト内で同じ要素を重複して数えないための印と、実行された要素のIDを集める配列。
+     */
+    private static final class HitScratch {
+        final int[] lineStamp;
+        final int[] methodStamp;
+        final int[] lineHits;
+        final int[] methodHits;
+        int stamp = 0;
+
+        HitScratch(int lineCount, int methodCount) {
+            lineStamp = new int[lineCount];
+            methodStamp = new int[methodCount];
+            lineHits = new int[lineCount];
+            methodHits = new int[methodCount];
+        }
+    }
+
+    /**
+     * 1つのプローブ配列が実行した要素。lineIds は昇順で重複が無い。
+     * methodIds はメソッドごとのIDで、複数のメソッドが同じ行から始まる場合は重複する。
+     */
+    private record ResolvedHits(int[] lineIds, int[] methodIds, boolean classExecuted) {}
+
+    /**
+     * ハッシュ値を保持し、内容で比較するプローブ配列のキー。
+     */
+    private static final class ProbePattern {
+        private final boolean[] probes;
+        private final int hash;
+
+        ProbePattern(boolean[] probes) {
+            this.probes = probes;
+            this.hash = Arrays.hashCode(probes);
+        }
+
+        private ProbePattern(boolean[] probes, int hash) {
+            this.probes = probes;
+            this.hash = hash;
+        }
+
+        ProbePattern copy() {
+            return new ProbePattern(probes.clone(), hash);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ProbePattern o && hash == o.hash && Arrays.equals(probes, o.probes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
 }
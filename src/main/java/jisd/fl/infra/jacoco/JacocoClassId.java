@@ -0,0 +1,44 @@
+package jisd.fl.infra.jacoco;
+
+/**
+ * JaCoCoがクラスファイルに付けるクラスID (クラスファイルの CRC64) を求める。
+ * JaCoCoの公開APIにはクラスIDを計算する手段が無いため、org.jacoco.core 0.8 系の計算方法を実装する。
+ * 実行時のプローブ配列 (ExecutionData#getId) と突き合わせるため、計算方法は JaCoCo と一致している必要がある。
+ */
+final class JacocoClassId {
+    private static final long POLY64REV = 0xd800000000000000L;
+    private static final long[] LOOKUP_TABLE = new long[0x100];
+    // Java 9 のクラスファイルのメジャーバージョン。JaCoCo は Java 8 (52) とみなして計算する
+    private static final byte V9 = 53;
+    private static final byte V1_8 = 52;
+
+    static {
+        for (int i = 0; i < 0x100; i++) {
+            long v = i;
+            for (int j = 0; j < 8; j++) {
+                v = (v & 1) == 1 ? (v >>> 1) ^ POLY64REV : v >>> 1;
+            }
+            LOOKUP_TABLE[i] = v;
+        }
+    }
+
+    private JacocoClassId() {}
+
+    static long of(byte[] classBytes) {
+        if (classBytes.length > 7 && classBytes[6] == 0 && classBytes[7] == V9) {
+            long crc = update(0, classBytes, 0, 7);
+            crc = update(crc, V1_8);
+            return update(crc, classBytes, 8, classBytes.length);
+        }
+        return update(0, classBytes, 0, classBytes.length);
+    }
+
+    private static long update(long crc, byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) crc = update(crc, bytes[i]);
+        return crc;
+    }
+
+    private static long update(long crc, byte b) {
+        return (crc >>> 8) ^ LOOKUP_TABLE[((int) crc ^ b) & 0xff];
+    }
+}
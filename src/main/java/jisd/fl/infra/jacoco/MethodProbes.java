@@ -0,0 +1,120 @@
+package jisd.fl.infra.jacoco;
+
+import org.jacoco.core.instr.Instrumenter;
+import org.jacoco.core.runtime.OfflineInstrumentationAccessGenerator;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JaCoCoがクラスの各メソッドに割り当てるプローブIDを求める。
+ *
+ * JaCoCoで計測用に書き換えたクラスファイルでは、各メソッドの先頭でプローブ配列をローカル変数に格納し、
+ * プローブの位置に "ALOAD probes; (push id); ICONST_1; BASTORE" を挿入する。この命令列からメソッドごとのプローブIDを読み取る。
+ * エージェントと同じ Instrumenter で書き換えるため、プローブIDは実行時の ExecutionData と一致する。
+ */
+final class MethodProbes {
+    //JaCoCo がプローブ配列を取得するために生成するメソッド (ClassFieldProbeArrayStrategy など)
+    private static final String INIT_METHOD = "$jacocoInit";
+
+    private MethodProbes() {}
+
+    /**
+     * @return "メソッド名 + ディスクリプタ" -> プローブID (昇順)。
+     *         プローブを持たないメソッドは含まない。読み取れなかった場合や、結果が矛盾する場合は空
+     */
+    static Map<String, int[]> of(byte[] classBytes, String internalName, int probeCount) {
+        byte[] instrumented;
+        try {
+            instrumented = new Instrumenter(new OfflineInstrumentationAccessGenerator()).instrument(classBytes, internalName);
+        } catch (IOException e) {
+            return Map.of();
+        }
+        ClassNode cn = new ClassNode();
+        new ClassReader(instrumented).accept(cn, 0);
+
+        Map<String, int[]> result = new HashMap<>();
+        boolean[] seen = new boolean[probeCount];
+        for (MethodNode mn : cn.methods) {
+            int[] ids = probeIds(mn);
+            if (ids.length == 0) continue;
+            for (int id : ids) {
+                //プローブは1つのメソッドにだけ属する
+                if (id >= probeCount || seen[id]) return Map.of();
+                seen[id] = true;
+            }
+            result.put(mn.name + mn.desc, ids);
+        }
+        return result;
+    }
+
+    private static int[] probeIds(MethodNode mn) {
+        int probesVar = probesVariable(mn);
+        if (probesVar < 0) return new int[0];
+        int[] buf = new int[16];
+        int n = 0;
+        for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn.getOpcode() != Opcodes.BASTORE) continue;
+            AbstractInsnNode one = previous(insn);
+            AbstractInsnNode push = previous(one);
+            AbstractInsnNode load = previous(push);
+            if (one == null || one.getOpcode() != Opcodes.ICONST_1) continue;
+            if (load == null || load.getOpcode() != Opcodes.ALOAD || ((VarInsnNode) load).var != probesVar) continue;
+            int id = intValue(push);
+            if (id < 0) continue;
+            if (n == buf.length) buf = Arrays.copyOf(buf, n * 2);
+            buf[n++] = id;
+        }
+        int[] ids = Arrays.copyOf(buf, n);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * メソッドの先頭でプローブ配列を格納するローカル変数。計測用のコードが無い場合は -1
+     */
+    private static int probesVariable(MethodNode mn) {
+        AbstractInsnNode first = next(mn.instructions.getFirst());
+        if (first == null) return -1;
+        boolean init = (first instanceof MethodInsnNode call && call.name.equals(INIT_METHOD))
+                || (first instanceof LdcInsnNode ldc && ldc.cst instanceof ConstantDynamic);
+        if (!init) return -1;
+        AbstractInsnNode store = next(first.getNext());
+        if (store != null && store.getOpcode() == Opcodes.CHECKCAST) store = next(store.getNext());
+        return store != null && store.getOpcode() == Opcodes.ASTORE ? ((VarInsnNode) store).var : -1;
+    }
+
+    private static int intValue(AbstractInsnNode insn) {
+        if (insn == null) return -1;
+        int op = insn.getOpcode();
+        if (op >= Opcodes.ICONST_0 && op <= Opcodes.ICONST_5) return op - Opcodes.ICONST_0;
+        if (op == Opcodes.BIPUSH || op == Opcodes.SIPUSH) return ((IntInsnNode) insn).operand;
+        if (insn instanceof LdcInsnNode ldc && ldc.cst instanceof Integer i) return i;
+        return -1;
+    }
+
+    //ラベルや行番号などの命令でないノードを読み飛ばす
+    private static AbstractInsnNode next(AbstractInsnNode insn) {
+        while (insn != null && insn.getOpcode() < 0) insn = insn.getNext();
+        return insn;
+    }
+
+    private static AbstractInsnNode previous(AbstractInsnNode insn) {
+        if (insn == null) return null;
+        insn = insn.getPrevious();
+        while (insn != null && insn.getOpcode() < 0) insn = insn.getPrevious();
+        return insn;
+    }
+}
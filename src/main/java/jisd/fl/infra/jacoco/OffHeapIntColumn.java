@@ -0,0 +1,45 @@
+package jisd.fl.infra.jacoco;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * ヒープ外 (direct buffer) に確保する int の列。
+ * 添字で直接読み書きし、容量が足りない場合は2倍ずつ拡張する。拡張した領域は0で初期化される。
+ */
+final class OffHeapIntColumn {
+    private IntBuffer data;
+
+    OffHeapIntColumn(int initialCapacity) {
+        this.data = allocate(Math.max(initialCapacity, 16));
+    }
+
+    int get(int i) {
+        return data.get(i);
+    }
+
+    void set(int i, int value) {
+        data.put(i, value);
+    }
+
+    void add(int i, int delta) {
+        data.put(i, data.get(i) + delta);
+    }
+
+    int capacity() {
+        return data.capacity();
+    }
+
+    void ensureCapacity(int capacity) {
+        if (capacity <= data.capacity()) return;
+        long grown = Math.max(capacity, (long) data.capacity() * 2);
+        IntBuffer next = allocate((int) Math.min(grown, Integer.MAX_VALUE / Integer.BYTES));
+        next.put(0, data, 0, data.capacity());
+        data = next;
+    }
+
+    private static IntBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+}
@@ -0,0 +1,329 @@
+package jisd.fl.infra.jacoco;
+
+import jisd.fl.core.entity.coverage.ClassCoverageEntry;
+import jisd.fl.core.entity.coverage.LineCoverageEntry;
+import jisd.fl.core.entity.coverage.MethodCoverageEntry;
+import jisd.fl.core.entity.coverage.SbflCounts;
+import jisd.fl.core.entity.coverage.SbflCountsCursor;
+import jisd.fl.core.entity.coverage.SbflCoverageSource;
+import jisd.fl.core.entity.element.ClassElementName;
+import jisd.fl.core.entity.element.CodeElementIdentifier;
+import jisd.fl.core.entity.element.LineElementName;
+import jisd.fl.core.entity.element.LineElementNameResolver;
+import jisd.fl.core.entity.element.MethodElementName;
+import jisd.fl.core.entity.sbfl.Granularity;
+import jisd.fl.infra.javaparser.JavaParserLineElementNameResolverFactory;
+
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * クラス数の非常に多いプロジェクト向けに、カバレッジをヒープ外の列に保持する ProjectSbflCoverage の代替。
+ *
+ * ProjectSbflCoverage はクラスごとに ClassSbflCoverage (IDの登録簿、カウントの表、行番号の対応表) を持つが、
+ * このクラスは全クラスの行・メソッドにプロジェクト全体で通しのIDを振り、ep/ef をIDを添字とする direct buffer の列に保持する。
+ * このクラスがクラスごとにヒープに保持するのは内部クラス名 (と番号の対応) だけである。
+ * 反映に使う ClassProbeIndex は保持しないため、呼び出し側はクラスごとの対応表を全て保持し続ける必要はない
+ * ({@code CoverageAnalyzer#analyzeOffHeap} は最近使ったクラスの対応表だけを保持する)。
+ * 行やメソッドの要素名 (LineElementName など) は保持せず、entries を取り出す際に、実行されたクラスについてだけソースを解析して求める。
+ *
+ * 集計結果は ProjectSbflCoverage と同じになる。ただし次の制限がある。
+ * - クラスは内部名で一度だけ登録するため、計測中にクラスファイルが変更された場合には対応しない
+ * - 複数のスレッドから同時に反映してはならない
+ */
+public class OffHeapProjectSbflCoverage implements SbflCoverageSource {
+    private static final int INITIAL_CLASSES = 1 << 10;
+    private static final int INITIAL_LINES = 1 << 16;
+    private static final int INITIAL_METHODS = 1 << 13;
+
+    //内部クラス名 -> クラスの番号
+    private final Map<String, Integer> slotByName = new HashMap<>();
+    private final List<String> internalNames = new ArrayList<>();
+
+    //--- クラスの番号を添字とする列 ---
+    private final OffHeapIntColumn lineBase = new OffHeapIntColumn(INITIAL_CLASSES);
+    private final OffHeapIntColumn firstLine = new OffHeapIntColumn(INITIAL_CLASSES);
+    private final OffHeapIntColumn lineCount = new OffHeapIntColumn(INITIAL_CLASSES);
+    private final OffHeapIntColumn methodBase = new OffHeapIntColumn(INITIAL_CLASSES);
+    private final OffHeapIntColumn methodCount = new OffHeapIntColumn(INITIAL_CLASSES);
+    private final OffHeapIntColumn totalPass = new OffHeapIntColumn(INITIAL_CLASSES);
+    private final OffHeapIntColumn totalFail = new OffHeapIntColumn(INITIAL_CLASSES);
+    private final OffHeapIntColumn classEp = new OffHeapIntColumn(INITIAL_CLASSES);
+    private final OffHeapIntColumn classEf = new OffHeapIntColumn(INITIAL_CLASSES);
+
+    //--- 行のIDを添字とする列 (ID = lineBase + 行番号 - firstLine) ---
+    private final OffHeapIntColumn lineEp = new OffHeapIntColumn(INITIAL_LINES);
+    private final OffHeapIntColumn lineEf = new OffHeapIntColumn(INITIAL_LINES);
+    //実行可能な行のビット (32行ずつ)
+    private final OffHeapIntColumn executableLines = new OffHeapIntColumn(INITIAL_LINES / 32);
+    private int lineTotal = 0;
+
+    //--- メソッドのIDを添字とする列 (ID = methodBase + JaCoCo のメソッド番号) ---
+    private final OffHeapIntColumn methodEp = new OffHeapIntColumn(INITIAL_METHODS);
+    private final OffHeapIntColumn methodEf = new OffHeapIntColumn(INITIAL_METHODS);
+    //メソッドの開始行。要素として扱わないメソッドは -1
+    private final OffHeapIntColumn methodFirstLine = new OffHeapIntColumn(INITIAL_METHODS);
+    private int methodTotal = 0;
+
+    //1テスト内で同じ要素を重複して数えないための印 (クラス内の行・メソッドの番号を添字とする)
+    private int[] lineStamp = new int[0];
+    private int[] methodStamp = new int[0];
+    private int stamp = 0;
+
+    /**
+     * 1テスト分のプローブ配列をクラスのカバレッジに反映する。
+     */
+    public void accept(ClassProbeIndex index, boolean[] probes, boolean testPassed){
+        apply(index, probes, testPassed, 1);
+    }
+
+    /**
+     * 同じプローブ配列を持つ times 個のテストをまとめて反映する。
+     */
+    public void acceptRepeated(ClassProbeIndex index, boolean[] probes, boolean testPassed, int times){
+        if(times <= 0) throw new IllegalArgumentException("times must be positive: " + times);
+        apply(index, probes, testPassed, times);
+    }
+
+    /**
+     * {@link #accept(ClassProbeIndex, boolean[], boolean)} で反映した1テスト分のプローブ配列を取り消す。
+     */
+    public void retract(ClassProbeIndex index, boolean[] probes, boolean testPassed){
+        apply(index, probes, testPassed, -1);
+    }
+
+    private void apply(ClassProbeIndex index, boolean[] probes, boolean testPassed, int delta){
+        if(!index.isAnalyzable()) return;
+        int slot = slotOf(index);
+        (testPassed ? totalPass : totalFail).add(slot, delta);
+
+        int lBase = lineBase.get(slot);
+        int first = firstLine.get(slot);
+        int lCount = lineCount.get(slot);
+        int mBase = methodBase.get(slot);
+        int mCount = methodCount.get(slot);
+        if(lineStamp.length < lCount) lineStamp = new int[lCount];
+        if(methodStamp.length < mCount) methodStamp = new int[mCount];
+        OffHeapIntColumn lineCol = testPassed ? lineEp : lineEf;
+        OffHeapIntColumn methodCol = testPassed ? methodEp : methodEf;
+
+        stamp++;
+        boolean classExecuted = false;
+        int n = Math.min(probes.length, index.probeCount());
+        for(int p = 0; p < n; p++){
+            if(!probes[p]) continue;
+            int[] lines = index.linesOf(p);
+            if(lines.length > 0) classExecuted = true;
+            for(int line : lines){
+                int local = line - first;
+                if(local < 0 || local >= lCount || !isExecutable(lBase + local)) continue;
+                if(lineStamp[local] == stamp) continue;
+                lineStamp[local] = stamp;
+                lineCol.add(lBase + local, delta);
+            }
+            //ClassSbflCoverage と同様に、メソッドごとに数える
+            for(int m : index.methodsOf(p)){
+                if(m >= mCount || methodStamp[m] == stamp) continue;
+                methodStamp[m] = stamp;
+                if(methodFirstLine.get(mBase + m) < 0) continue;
+                methodCol.add(mBase + m, delta);
+            }
+        }
+
+        //クラス単位カバレッジ
+        if(classExecuted) (testPassed ? classEp : classEf).add(slot, delta);
+    }
+
+    /**
+     * クラスの番号を返す。初めて見るクラスの場合は、行とメソッドにIDを割り当てて登録する。
+     */
+    private int slotOf(ClassProbeIndex index){
+        Integer existing = slotByName.get(index.internalName());
+        if(existing != null) return existing;
+
+        int slot = internalNames.size();
+        int first = index.firstLine();
+        int last = index.lastLine();
+        int lines = (first <= 0 || last < first) ? 0 : last - first + 1;
+        int methods = index.methodCount();
+
+        for(OffHeapIntColumn c : List.of(lineBase, firstLine, lineCount, methodBase, methodCount, totalPass, totalFail, classEp, classEf)){
+            c.ensureCapacity(slot + 1);
+        }
+        lineBase.set(slot, lineTotal);
+        firstLine.set(slot, first);
+        lineCount.set(slot, lines);
+        methodBase.set(slot, methodTotal);
+        methodCount.set(slot, methods);
+
+        lineEp.ensureCapacity(lineTotal + lines);
+        lineEf.ensureCapacity(lineTotal + lines);
+        executableLines.ensureCapacity((lineTotal + lines + 31) / 32);
+        for(int local = 0; local < lines; local++){
+            if(!index.isExecutableLine(first + local)) continue; // 実行不可能行 or 範囲外
+            int id = lineTotal + local;
+            executableLines.set(id >>> 5, executableLines.get(id >>> 5) | (1 << (id & 31)));
+        }
+
+        methodEp.ensureCapacity(methodTotal + methods);
+        methodEf.ensureCapacity(methodTotal + methods);
+        methodFirstLine.ensureCapacity(methodTotal + methods);
+        for(int m = 0; m < methods; m++){
+            int fl = index.methodFirstLine(m);
+            methodFirstLine.set(methodTotal + m, (fl <= 0 || fl > last) ? -1 : fl);
+        }
+
+        lineTotal += lines;
+        methodTotal += methods;
+        internalNames.add(index.internalName());
+        slotByName.put(index.internalName(), slot);
+        return slot;
+    }
+
+    private boolean isExecutable(int lineId){
+        return (executableLines.get(lineId >>> 5) & (1 << (lineId & 31))) != 0;
+    }
+
+    public int classCount(){
+        return internalNames.size();
+    }
+
+    //ClassSbflCoverage#hasAnyCoverage と同じ
+    private IntStream coveredSlots(){
+        return IntStream.range(0, internalNames.size()).filter(s -> classEp.get(s) + classEf.get(s) > 0);
+    }
+
+    private ClassElementName classOf(int slot){
+        return ProjectSbflCoverage.toClassElementName(internalNames.get(slot));
+    }
+
+    private SbflCounts counts(int slot, int ep, int ef){
+        return new SbflCounts(ep, ef, totalPass.get(slot) - ep, totalFail.get(slot) - ef);
+    }
+
+    private static LineElementNameResolver resolverOf(ClassElementName c){
+        try {
+            return JavaParserLineElementNameResolverFactory.create(c);
+        } catch (NoSuchFileException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Stream<ClassCoverageEntry> classCoverageEntries(){
+        return coveredSlots().mapToObj(s -> new ClassCoverageEntry(classOf(s), counts(s, classEp.get(s), classEf.get(s))));
+    }
+
+    @Override
+    public Stream<MethodCoverageEntry> methodCoverageEntries(boolean hideZeroElements){
+        return coveredSlots().boxed().flatMap(s -> {
+            //開始行が同じメソッドは ClassSbflCoverage と同様に1つの要素として合算する
+            Map<Integer, int[]> countsByFirstLine = new LinkedHashMap<>();
+            int mBase = methodBase.get(s);
+            for(int m = 0; m < methodCount.get(s); m++){
+                int fl = methodFirstLine.get(mBase + m);
+                if(fl < 0) continue;
+                int[] c = countsByFirstLine.computeIfAbsent(fl, k -> new int[2]);
+                c[0] += methodEp.get(mBase + m);
+                c[1] += methodEf.get(mBase + m);
+            }
+            if(hideZeroElements) countsByFirstLine.values().removeIf(c -> c[0] + c[1] == 0);
+            if(countsByFirstLine.isEmpty()) return Stream.empty();
+
+            LineElementNameResolver resolver = resolverOf(classOf(s));
+            Map<MethodElementName, int[]> byMethod = new LinkedHashMap<>();
+            countsByFirstLine.forEach((fl, c) -> {
+                int[] merged = byMethod.computeIfAbsent(resolver.lineElementAt(fl).methodElementName, k -> new int[2]);
+                merged[0] += c[0];
+                merged[1] += c[1];
+            });
+            return byMethod.entrySet().stream()
+                    .map(e -> new MethodCoverageEntry(e.getKey(), counts(s, e.getValue()[0], e.getValue()[1])));
+        });
+    }
+
+    @Override
+    public Stream<LineCoverageEntry> lineCoverageEntries(boolean hideZeroElements){
+        return coveredSlots().boxed().flatMap(s -> {
+            int lBase = lineBase.get(s);
+            int first = firstLine.get(s);
+            List<LineCoverageEntry> entries = new ArrayList<>();
+            LineElementNameResolver resolver = null;
+            for(int local = 0; local < lineCount.get(s); local++){
+                int id = lBase + local;
+                if(!isExecutable(id)) continue;
+                int ep = lineEp.get(id);
+                int ef = lineEf.get(id);
+                if(hideZeroElements && ep + ef == 0) continue;
+                //要素名は出力する行がある場合にだけ求める
+                if(resolver == null) resolver = resolverOf(classOf(s));
+                entries.add(new LineCoverageEntry(resolver.lineElementAt(first + local), counts(s, ep, ef)));
+            }
+            return entries.stream();
+        });
+    }
+
+    /**
+     * 行単位では列を直接読み、要素名は element() が呼ばれた行のクラスについてだけ求める。
+     * id() はプロジェクト全体で通しの行のIDを返す。
+     */
+    @Override
+    public SbflCountsCursor<? extends CodeElementIdentifier<?>> countsCursor(Granularity granularity, boolean hideZeroElements){
+        if(granularity != Granularity.LINE) return SbflCoverageSource.super.countsCursor(granularity, hideZeroElements);
+        return new SbflCountsCursor<LineElementName>() {
+            private int slot = -1;
+            private int local;
+            private int end;
+            private int ep;
+            private int ef;
+            private LineElementNameResolver resolver;
+
+            @Override
+            public boolean next() {
+                while (true) {
+                    while (++local < end) {
+                        int id = lineBase.get(slot) + local;
+                        if (!isExecutable(id)) continue;
+                        ep = lineEp.get(id);
+                        ef = lineEf.get(id);
+                        if (!hideZeroElements || ep + ef > 0) return true;
+                    }
+                    if (!nextCoveredSlot()) return false;
+                }
+            }
+
+            private boolean nextCoveredSlot() {
+                while (++slot < internalNames.size()) {
+                    if (classEp.get(slot) + classEf.get(slot) == 0) continue;
+                    local = -1;
+                    end = lineCount.get(slot);
+                    resolver = null;
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public int id() {return lineBase.get(slot) + local;}
+            @Override
+            public int ep() {return ep;}
+            @Override
+            public int ef() {return ef;}
+            @Override
+            public int np() {return totalPass.get(slot) - ep;}
+            @Override
+            public int nf() {return totalFail.get(slot) - ef;}
+            @Override
+            public LineElementName element() {
+                if (resolver == null) resolver = resolverOf(classOf(slot));
+                return resolver.lineElementAt(firstLine.get(slot) + local);
+            }
+        };
+    }
+}
@@ -1,20 +1,83 @@
 package jisd.fl.infra.jacoco;
 
 import jisd.fl.core.entity.coverage.ClassCoverageEntry;
+import jisd.fl.core.entity.coverage.ElementIDRegistry;
 import jisd.fl.core.entity.coverage.LineCoverageEntry;
 import jisd.fl.core.entity.coverage.MethodCoverageEntry;
+import jisd.fl.core.entity.coverage.SbflCountsCursor;
+import jisd.fl.core.entity.coverage.SbflCountsCursors;
+import jisd.fl.core.entity.coverage.SbflCoverageSource;
 import jisd.fl.core.entity.element.ClassElementName;
+import jisd.fl.core.entity.element.CodeElementIdentifier;
+import jisd.fl.core.entity.element.MethodElementName;
+import jisd.fl.core.entity.sbfl.Granularity;
 import jisd.fl.infra.javaparser.JavaParserLineElementNameResolverFactory;
 import org.jacoco.core.analysis.IClassCoverage;
 
 import java.nio.file.NoSuchFileException;
+import java.util.BitSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
-public class ProjectSbflCoverage {
+public class ProjectSbflCoverage implements SbflCoverageSource {
 
-    public final Map<ClassElementName, ClassSbflCoverage> byClass = new LinkedHashMap<>();
+    public final Map<ClassElementName, ClassSbflCoverage> byClass;
+    //true の場合、複数のスレッドから同時にカバレッジを反映できる
+    private final boolean concurrent;
+
+    //テストメソッドとカバレッジ行列の行IDの対応。null の場合は行列を保持しない
+    private ElementIDRegistry<MethodElementName> testIds;
+    //失敗したテストのID
+    private final BitSet failedTests = new BitSet();
+
+    public ProjectSbflCoverage(){
+        this(false);
+    }
+
+    private ProjectSbflCoverage(boolean concurrent){
+        this.concurrent = concurrent;
+        this.byClass = concurrent ? new ConcurrentHashMap<>() : new LinkedHashMap<>();
+    }
+
+    /**
+     * 複数のスレッドから同時に accept/retract できる ProjectSbflCoverage を作成する。
+     * クラスごとのカバレッジは最初に到達したスレッドが一度だけ作成し、要素ごとのカウントは原子的に更新するため、
+     * 全体をロックせずに複数の解析スレッドで共有できる。
+     * byClass の反復順序はクラスの追加順にはならない。また remove や clear は反映と同時に呼び出してはならない。
+     */
+    public static ProjectSbflCoverage concurrent(){
+        return new ProjectSbflCoverage(true);
+    }
+
+    public boolean isConcurrent(){
+        return concurrent;
+    }
+
+    /**
+     * 各クラスについて、テストごとに実行した行・メソッドを {@link jisd.fl.core.entity.coverage.TestCoverageMatrix} に保持する。
+     * テストメソッドを指定する accept で反映したテストのみが対象になるため、カバレッジを反映する前に呼び出す必要がある。
+     */
+    public void recordTestMatrix(){
+        if(testIds != null) return;
+        testIds = new ElementIDRegistry<>();
+        byClass.values().forEach(ClassSbflCoverage::enableTestMatrix);
+    }
+
+    /**
+     * カバレッジ行列の行IDとテストメソッドの対応。{@link #recordTestMatrix()} を呼んでいない場合は null。
+     */
+    public ElementIDRegistry<MethodElementName> testIds(){
+        return testIds;
+    }
+
+    public boolean isFailedTest(int testId){
+        synchronized (failedTests) {
+            return failedTests.get(testId);
+        }
+    }
 
     public void accept(IClassCoverage cc, boolean testPassed){
         ClassElementName e = toClassElementName(cc);
@@ -22,8 +85,86 @@ public class ProjectSbflCoverage {
         cov.accept(cc, testPassed);
     }
 
+    /**
+     * 1テスト分のプローブ配列をクラスのカバレッジに反映する。
+     *
+     * @param index 対象クラスのプローブ対応表
+     * @param probes テスト実行時のプローブ配列
+     * @param testPassed テストが成功したか
+     */
+    public void accept(ClassProbeIndex index, boolean[] probes, boolean testPassed){
+        if(!index.isAnalyzable()) return;
+        ClassElementName e = toClassElementName(index.internalName());
+        ClassSbflCoverage cov = getOrCreate(e);
+        cov.accept(index, probes, testPassed);
+    }
+
+    /**
+     * {@link #accept(ClassProbeIndex, boolean[], boolean)} に加えて、カバレッジ行列が有効な場合はテストが実行した要素を記録する。
+     */
+    public void accept(MethodElementName testMethod, ClassProbeIndex index, boolean[] probes, boolean testPassed){
+        if(testIds == null) {
+            accept(index, probes, testPassed);
+            return;
+        }
+        if(!index.isAnalyzable()) return;
+        int testId = testIdOf(testMethod, testPassed);
+        getOrCreate(toClassElementName(index.internalName())).accept(index, probes, testPassed, testId);
+    }
+
+    /**
+     * 同じプローブ配列を持つ times 個のテストをまとめてクラスのカバレッジに反映する。
+     */
+    public void acceptRepeated(ClassProbeIndex index, boolean[] probes, boolean testPassed, int times){
+        if(!index.isAnalyzable()) return;
+        getOrCreate(toClassElementName(index.internalName())).acceptRepeated(index, probes, testPassed, times);
+    }
+
+    /**
+     * {@link #accept(ClassProbeIndex, boolean[], boolean)} で反映した1テスト分のプローブ配列を取り消す。
+     */
+    public void retract(ClassProbeIndex index, boolean[] probes, boolean testPassed){
+        if(!index.isAnalyzable()) return;
+        ClassSbflCoverage cov = byClass.get(toClassElementName(index.internalName()));
+        if(cov == null) return;
+        cov.retract(index, probes, testPassed);
+    }
+
+    /**
+     * {@link #accept(MethodElementName, ClassProbeIndex, boolean[], boolean)} で反映した1テスト分のプローブ配列を取り消す。
+     */
+    public void retract(MethodElementName testMethod, ClassProbeIndex index, boolean[] probes, boolean testPassed){
+        if(testIds == null) {
+            retract(index, probes, testPassed);
+            return;
+        }
+        if(!index.isAnalyzable()) return;
+        ClassSbflCoverage cov = byClass.get(toClassElementName(index.internalName()));
+        if(cov == null) return;
+        cov.retract(index, probes, testPassed, testIdOf(testMethod, testPassed));
+    }
+
+    private int testIdOf(MethodElementName testMethod, boolean testPassed){
+        //テストの登録はクラスの解析に比べて少ないため、concurrent の場合もここだけはロックする
+        synchronized (failedTests) {
+            int testId = testIds.getOrCreate(testMethod);
+            failedTests.set(testId, !testPassed);
+            return testId;
+        }
+    }
+
+    /**
+     * クラスのカバレッジを破棄する。クラスファイルが変更され、行やプローブの構造が変わった場合に使用する。
+     */
+    public ClassSbflCoverage remove(ClassElementName targetClass){
+        return byClass.remove(targetClass);
+    }
+
     private static ClassElementName toClassElementName(IClassCoverage cc){
-        String internalClassName = cc.getName();
+        return toClassElementName(cc.getName());
+    }
+
+    public static ClassElementName toClassElementName(String internalClassName){
         String fqcn = internalClassName.replace('/', '.');
         return new ClassElementName(fqcn);
     }
@@ -31,21 +172,36 @@ public class ProjectSbflCoverage {
     private ClassSbflCoverage getOrCreate(ClassElementName e)  {
         return byClass.computeIfAbsent(e, c -> {
             try {
-                return new ClassSbflCoverage(e, JavaParserLineElementNameResolverFactory.create(c));
+                ClassSbflCoverage cov = new ClassSbflCoverage(e, JavaParserLineElementNameResolverFactory.create(c), concurrent);
+                if(testIds != null) cov.enableTestMatrix();
+                return cov;
             } catch (NoSuchFileException ex) {
                 throw new RuntimeException(ex);
             }
         });
     }
 
+    /**
+     * 指定したクラスのカバレッジだけを含むビューを返す。ClassSbflCoverage は共有される。
+     */
+    public ProjectSbflCoverage restrictedTo(Set<ClassElementName> classes){
+        ProjectSbflCoverage view = new ProjectSbflCoverage(concurrent);
+        byClass.forEach((e, cov) -> {
+            if(classes.contains(e)) view.byClass.put(e, cov);
+        });
+        return view;
+    }
+
     public Stream<ClassSbflCoverage> coveredClasses() {
         return byClass.values().stream().filter(ClassSbflCoverage::hasAnyCoverage);
     }
 
+    @Override
     public Stream<ClassCoverageEntry> classCoverageEntries(){
         return coveredClasses().map(cov -> new ClassCoverageEntry(cov.targetClass, cov.classCounts()));
     }
 
+    @Override
     public Stream<MethodCoverageEntry> methodCoverageEntries(boolean hideZeroElements){
         return coveredClasses().flatMap(cov -> {
             Stream<MethodCoverageEntry> s =
@@ -56,6 +212,7 @@ public class ProjectSbflCoverage {
         });
     }
 
+    @Override
     public Stream<LineCoverageEntry> lineCoverageEntries(boolean hideZeroElements){
         return coveredClasses().flatMap(cov -> {
             Stream<LineCoverageEntry> s =
@@ -66,6 +223,18 @@ public class ProjectSbflCoverage {
         });
     }
 
+    /**
+     * 行・メソッド単位では、各クラスの {@link jisd.fl.core.entity.coverage.SbflCoverageView#cursor(boolean)} をつなげて返す。
+     */
+    @Override
+    public SbflCountsCursor<? extends CodeElementIdentifier<?>> countsCursor(Granularity granularity, boolean hideZeroElements){
+        return switch (granularity){
+            case CLASS -> SbflCoverageSource.super.countsCursor(granularity, hideZeroElements);
+            case METHOD -> SbflCountsCursors.concat(coveredClasses().map(cov -> cov.methodCoverageView().cursor(hideZeroElements)).iterator());
+            case LINE -> SbflCountsCursors.concat(coveredClasses().map(cov -> cov.lineCoverageView().cursor(hideZeroElements)).iterator());
+        };
+    }
+
     public void clear(){
         byClass.clear();
     }
@@ -0,0 +1,273 @@
+package jisd.fl.infra.jacoco;
+
+import jisd.fl.core.entity.coverage.CompressedBitSet;
+import jisd.fl.core.entity.element.ClassElementName;
+import jisd.fl.core.entity.element.MethodElementName;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataStore;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * テストメソッドごとの実行結果とプローブ配列を、テストクラスごとのファイルとしてディスクに保存するキャッシュ。
+ *
+ * キャッシュの有効性は次の2つで判定する。
+ * - テストクラス単位: テストクラス(内部クラスを含む)のクラスファイルのハッシュが一致すること
+ * - テストメソッド単位: そのテストのカバレッジに含まれる全ての対象クラスについて、クラスIDが現在のクラスファイルのものと一致すること
+ *   (JaCoCoのクラスIDはクラスファイルのCRC64であるため、クラスファイルの内容のハッシュとして使用できる)
+ * テストのカバレッジに含まれないクラスの変更は、そのテストの結果に影響しないとみなす。
+ * テストクラスの親クラスなど、テストクラス以外のテスト側のクラスの変更は検出しない。
+ *
+ * <pre>
+ * file   := int(MAGIC) int(VERSION) bytes(testClassHash) int(testCount) test*
+ * test   := UTF(testMethod) boolean(passed) int(classCount) class*
+ * class  := long(classId) UTF(internalName) int(probeCount) byte[ceil(probeCount / 8)]
+ * bytes  := int(length) byte[length]
+ * </pre>
+ */
+public final class TestCoverageCache {
+    private static final int MAGIC = 0x46464356; // "FFCV"
+    //2: プローブが1つも実行されていない対象クラスも記録する
+    private static final int VERSION = 2;
+    private static final String FILE_SUFFIX = ".cov";
+    //1クラスのプローブ数の上限。これを超える値は壊れたキャッシュとみなす
+    private static final int MAX_PROBE_COUNT = 1 << 24;
+
+    private final Path dir;
+    private final ClassFileCache targetClasses;
+    private final Path testBinDir;
+    //内部クラス名 -> 現在のクラスファイルのクラスID
+    private final Map<String, Long> currentClassIds = new ConcurrentHashMap<>();
+
+    /**
+     * @param dir キャッシュファイルを置くディレクトリ
+     * @param targetClasses カバレッジ計測対象のクラスファイル
+     * @param testBinDir テストクラスのクラスファイルのディレクトリ
+     */
+    public TestCoverageCache(Path dir, ClassFileCache targetClasses, Path testBinDir) {
+        this.dir = dir;
+        this.targetClasses = targetClasses;
+        this.testBinDir = testBinDir;
+    }
+
+    /**
+     * テストクラス1つ分のキャッシュの更新を開始する。
+     * {@link Update#replay} で有効なキャッシュを読み出し、再実行したテストを {@link Update#record} で追加して
+     * {@link Update#commit} で置き換える。commit せずに close した場合、既存のキャッシュは変更されない。
+     */
+    public Update update(ClassElementName testClass) throws IOException {
+        Files.createDirectories(dir);
+        return new Update(testClass, testClassHash(testClass));
+    }
+
+    public final class Update implements Closeable {
+        private final Path file;
+        private final Path tmpFile;
+        private final byte[] testClassHash;
+        //テストメソッド数は commit 時にしか分からないため、テストの記録だけを一時ファイルに書き、最後にヘッダと連結する
+        private final DataOutputStream out;
+        private int testCount = 0;
+        private boolean committed = false;
+        //以前の実行結果とカバレッジが一致していた、再実行が必要なテストのグループ
+        private final Map<StaleSignature, List<MethodElementName>> staleGroups = new LinkedHashMap<>();
+
+        private Update(ClassElementName testClass, byte[] testClassHash) throws IOException {
+            this.file = dir.resolve(testClass.fullyQualifiedName() + FILE_SUFFIX);
+            this.tmpFile = Files.createTempFile(dir, testClass.fullyQualifiedName(), ".tmp");
+            this.testClassHash = testClassHash;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)));
+        }
+
+        /**
+         * 既存のキャッシュを先頭から1テストずつ読み、有効なテストの結果を visitor に渡すとともに新しいキャッシュに引き継ぐ。
+         *
+         * @return 再実行が必要なテストメソッド。テストクラスが変更された、キャッシュが無い、またはキャッシュが壊れている場合は null。
+         *         null の場合、visitor に渡したテスト以外の全てのテストの再実行が必要である。
+         */
+        public List<MethodElementName> replay(CachedTestVisitor visitor) throws IOException {
+            if (!Files.isRegularFile(file)) return null;
+            List<MethodElementName> stale = new ArrayList<>();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+                if (!Arrays.equals(readBytes(in), testClassHash)) return null;
+
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String testMethod = in.readUTF();
+                    boolean passed = in.readBoolean();
+                    ExecutionDataStore store = new ExecutionDataStore();
+                    Map<String, CompressedBitSet> previous = new HashMap<>();
+                    boolean valid = true;
+                    int classCount = in.readInt();
+                    for (int c = 0; c < classCount; c++) {
+                        long classId = in.readLong();
+                        String name = in.readUTF();
+                        boolean[] probes = readProbes(in);
+                        if (valid && !isCurrent(classId, name)) valid = false;
+                        store.put(new ExecutionData(classId, name, probes));
+                        previous.put(name, CompressedBitSet.fromBooleans(probes));
+                    }
+
+                    MethodElementName m = new MethodElementName(testMethod);
+                    if (!valid) {
+                        stale.add(m);
+                        staleGroups.computeIfAbsent(new StaleSignature(passed, previous), k -> new ArrayList<>()).add(m);
+                        continue;
+                    }
+                    visitor.visit(m, passed, store);
+                    record(m, passed, store);
+                }
+            } catch (EOFException | UTFDataFormatException | IllegalArgumentException e) {
+                //壊れたキャッシュは無かったものとして扱う
+                return null;
+            }
+            return stale;
+        }
+
+        /**
+         * {@link #replay} が返した再実行が必要なテストを、以前の実行で結果とカバレッジ(クラス名とプローブ配列)が
+         * 一致していたものごとにまとめて返す。各グループの先頭を代表として使用できる。
+         */
+        public List<List<MethodElementName>> staleGroups() {
+            return new ArrayList<>(staleGroups.values());
+        }
+
+        /**
+         * テストの実行結果を新しいキャッシュに追加する。複数のスレッドから呼び出してよい。
+         * クラスごとのテスト総数は受け取ったクラスから数えるため、再生したときに直接実行した場合と同じ結果になるよう、
+         * プローブが1つも実行されていない対象クラスも記録する。
+         */
+        public synchronized void record(MethodElementName testMethod, boolean passed, ExecutionDataStore data) throws IOException {
+            List<ExecutionData> targets = new ArrayList<>();
+            for (ExecutionData d : data.getContents()) {
+                if (targetClasses.contains(d.getName())) targets.add(d);
+            }
+            out.writeUTF(testMethod.fullyQualifiedName());
+            out.writeBoolean(passed);
+            out.writeInt(targets.size());
+            for (ExecutionData d : targets) {
+                out.writeLong(d.getId());
+                out.writeUTF(d.getName());
+                writeProbes(out, d.getProbes());
+            }
+            testCount++;
+        }
+
+        /**
+         * replay 中に record した分を含め、新しいキャッシュでファイルを置き換える。
+         */
+        public synchronized void commit() throws IOException {
+            out.close();
+            Path merged = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+            try (DataOutputStream mergedOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(merged)))) {
+                mergedOut.writeInt(MAGIC);
+                mergedOut.writeInt(VERSION);
+                writeBytes(mergedOut, testClassHash);
+                mergedOut.writeInt(testCount);
+                Files.copy(tmpFile, mergedOut);
+            } catch (IOException e) {
+                Files.deleteIfExists(merged);
+                throw e;
+            }
+            Files.move(merged, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (!committed) out.close();
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    private record StaleSignature(boolean passed, Map<String, CompressedBitSet> probes) {}
+
+    @FunctionalInterface
+    public interface CachedTestVisitor {
+        void visit(MethodElementName testMethod, boolean passed, ExecutionDataStore data) throws IOException;
+    }
+
+    /**
+     * キャッシュに記録されたクラスIDが、現在のクラスファイルのものと一致するか。
+     */
+    private boolean isCurrent(long classId, String internalName) {
+        Long current = currentClassIds.computeIfAbsent(internalName, n -> {
+            byte[] bytes = targetClasses.get(n);
+            return bytes == null ? null : JacocoClassId.of(bytes);
+        });
+        return current != null && current == classId;
+    }
+
+    /**
+     * テストクラスとその内部クラスのクラスファイルのハッシュ。
+     */
+    private byte[] testClassHash(ClassElementName testClass) throws IOException {
+        String fqcn = testClass.fullyQualifiedName();
+        int lastDot = fqcn.lastIndexOf('.');
+        Path pkgDir = lastDot < 0 ? testBinDir : testBinDir.resolve(fqcn.substring(0, lastDot).replace('.', File.separatorChar));
+        String simpleName = fqcn.substring(lastDot + 1);
+
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(pkgDir)) {
+            try (var s = Files.list(pkgDir)) {
+                s.filter(p -> {
+                    String name = p.getFileName().toString();
+                    return name.equals(simpleName + ".class") || (name.startsWith(simpleName + "$") && name.endsWith(".class"));
+                }).sorted().forEach(files::add);
+            }
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (Path p : files) {
+            digest.update(p.getFileName().toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            digest.update(Files.readAllBytes(p));
+        }
+        return digest.digest();
+    }
+
+    private static void writeProbes(DataOutputStream out, boolean[] probes) throws IOException {
+        out.writeInt(probes.length);
+        byte[] packed = new byte[(probes.length + 7) / 8];
+        for (int p = 0; p < probes.length; p++) {
+            if (probes[p]) packed[p >>> 3] |= (byte) (1 << (p & 7));
+        }
+        out.write(packed);
+    }
+
+    private static boolean[] readProbes(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_PROBE_COUNT) throw new EOFException("invalid probe count: " + count);
+        boolean[] probes = new boolean[count];
+        byte[] packed = new byte[(probes.length + 7) / 8];
+        in.readFully(packed);
+        for (int p = 0; p < probes.length; p++) {
+            probes[p] = (packed[p >>> 3] & (1 << (p & 7))) != 0;
+        }
+        return probes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > 1024) throw new EOFException("invalid hash length: " + len);
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
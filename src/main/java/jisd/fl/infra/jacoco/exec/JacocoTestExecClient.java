@@ -2,15 +2,24 @@ package jisd.fl.infra.jacoco.exec;
 
 import jisd.fl.core.entity.element.ClassElementName;
 import jisd.fl.core.entity.element.MethodElementName;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.jacoco.core.tools.ExecFileLoader;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class JacocoTestExecClient implements Closeable {
+    //受信済みで未処理の応答の上限。解析が追いつかない場合はサーバ側の送信を待たせる。
+    private static final int REPLY_QUEUE_CAPACITY = 32;
+
     private final String host;
     private final int port;
 
@@ -18,6 +27,14 @@ public class JacocoTestExecClient implements Closeable {
     private InputStream in;
     private OutputStream out;
 
+    //サーバから受け取るカバレッジデータの形式
+    private CoverageFormat format = CoverageFormat.SPARSE;
+    private final SparseCoverageDecoder sparseDecoder = new SparseCoverageDecoder();
+    //null の場合はカバレッジデータをソケットで受け取る
+    private SharedCoverageRing ring;
+    //ソケットで受け取るカバレッジデータの受信バッファ。テストごとに確保せず使い回す。
+    private byte[] payloadBuffer = new byte[8192];
+
     public JacocoTestExecClient(String host, int port) {
         this.host = host;
         this.port = port;
@@ -31,6 +48,51 @@ public class JacocoTestExecClient implements Closeable {
 
         in = new BufferedInputStream(sock.getInputStream());
         out = new BufferedOutputStream(sock.getOutputStream());
+
+        //クラス名の辞書は接続ごとに管理されるため、接続のたびに形式を指定し直す
+        sparseDecoder.reset();
+        sendFormat();
+        if (ring != null) sendRing();
+    }
+
+    /**
+     * カバレッジデータの受け取りに、サーバと共有するメモリマップトファイルを使用する。
+     * ソケットでは制御メッセージだけを受け取り、カバレッジデータはマップされた領域から直接デコードする。
+     * 接続済みの場合は直ちにサーバに通知する。
+     *
+     * @param capacity リングのデータ領域のバイト数。1テスト分のデータがこれを超える場合はソケットで受け取る。
+     */
+    public void useSharedMemory(int capacity) throws IOException {
+        SharedCoverageRing created = SharedCoverageRing.create(capacity);
+        releaseRing();
+        ring = created;
+        if (sock != null && sock.isConnected() && !sock.isClosed()) sendRing();
+    }
+
+    private void sendRing() throws IOException {
+        //サーバ側の書き込み位置は SHM を受け取るたびに先頭に戻る
+        ring.release(0);
+        writeLine("SHM " + ring.file().toAbsolutePath());
+        out.flush();
+        String reply = readLine(in);
+        if (reply == null) throw new EOFException("server closed connection");
+        if (!reply.trim().equals("OK")) throw new IOException("server rejected shared memory: " + reply);
+    }
+
+    /**
+     * サーバから受け取るカバレッジデータの形式を指定する。接続済みの場合は直ちにサーバに通知する。
+     */
+    public void setCoverageFormat(CoverageFormat format) throws IOException {
+        this.format = format;
+        if (sock != null && sock.isConnected() && !sock.isClosed()) sendFormat();
+    }
+
+    private void sendFormat() throws IOException {
+        writeLine("FORMAT " + format.name());
+        out.flush();
+        String reply = readLine(in);
+        if (reply == null) throw new EOFException("server closed connection");
+        if (!reply.trim().equals("OK")) throw new IOException("server rejected format " + format + ": " + reply);
     }
 
     public TestExecReply runTest(MethodElementName testMethod) throws IOException {
@@ -39,6 +101,150 @@ public class JacocoTestExecClient implements Closeable {
         writeLine("RUN " + testMethod.fullyQualifiedName());
         out.flush();
 
+        return readReply(in, testMethod);
+    }
+
+    /**
+     * 複数のテストメソッドをまとめてサーバに送り、終了したテストから順に handler に渡す。
+     * 応答は専用スレッドで受信するため、handler で test k を解析している間にサーバは test k+1 を実行できる。
+     * handler は呼び出し元スレッドで、testMethods の順に呼ばれる。
+     *
+     * @param testMethods 実行するテストメソッド
+     * @param handler 各テストの実行結果を受け取るハンドラ
+     */
+    public void runTests(List<MethodElementName> testMethods, TestExecReplyHandler handler) throws IOException {
+        if (testMethods.isEmpty()) return;
+        ensureConnected();
+
+        writeLine("BATCH " + testMethods.size());
+        for (MethodElementName m : testMethods) {
+            writeLine(m.fullyQualifiedName());
+        }
+        out.flush();
+
+        Iterator<MethodElementName> remaining = testMethods.iterator();
+        dispatchReplies(in -> remaining.hasNext() ? readBatchReply(in, remaining.next()) : null, handler);
+    }
+
+    /**
+     * テストクラスの全テストを1回のJUnit Platform実行でサーバに実行させ、終了したテストから順に handler に渡す。
+     * テストメソッドの一覧はサーバ側で探索されるため、事前の LIST は不要。
+     *
+     * @param testClass 実行するテストクラス
+     * @param handler 各テストの実行結果を受け取るハンドラ
+     * @return 実行されたテスト数
+     */
+    public int runTestClass(ClassElementName testClass, TestExecReplyHandler handler) throws IOException {
+        ensureConnected();
+
+        writeLine("RUNCLASS " + testClass.fullyQualifiedName());
+        out.flush();
+
+        int[] count = {0};
+        dispatchReplies(in -> readClassReply(in, testClass), (testMethod, reply) -> {
+            count[0]++;
+            handler.handle(testMethod, reply);
+        });
+        return count[0];
+    }
+
+    /**
+     * 応答を専用スレッドで受信し、呼び出し元スレッドで受信順に handler に渡す。
+     * source が null を返した時点で受信を終了する。
+     */
+    private void dispatchReplies(ReplySource source, TestExecReplyHandler handler) throws IOException {
+        BlockingQueue<PendingReply> replies = new ArrayBlockingQueue<>(REPLY_QUEUE_CAPACITY);
+        InputStream replyStream = in;
+        Thread receiver = new Thread(() -> {
+            while (true) {
+                PendingReply pending;
+                try {
+                    pending = source.next(replyStream);
+                    if (pending == null) pending = PendingReply.END;
+                } catch (IOException e) {
+                    pending = new PendingReply(null, null, e);
+                }
+                try {
+                    replies.put(pending);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (pending == PendingReply.END || pending.error() != null) return;
+            }
+        }, "faultfinder-exec-client-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        boolean completed = false;
+        try {
+            while (true) {
+                PendingReply pending = replies.take();
+                if (pending == PendingReply.END) break;
+                if (pending.error() != null) throw pending.error();
+                handler.handle(pending.testMethod(), pending.reply());
+            }
+            completed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting test results");
+        } finally {
+            if (!completed) {
+                // 応答ストリームの途中で中断した場合は、接続ごと破棄して受信スレッドを止める
+                receiver.interrupt();
+                try {
+                    close();
+                } catch (IOException ignore) {
+                }
+            }
+            try {
+                receiver.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private PendingReply readBatchReply(InputStream in, MethodElementName testMethod) throws IOException {
+        return new PendingReply(testMethod, readReply(in, testMethod), null);
+    }
+
+    /**
+     * RUNCLASS の応答を1つ読む。END を受信した場合は null を返す。
+     */
+    private PendingReply readClassReply(InputStream in, ClassElementName testClass) throws IOException {
+        String header = readLine(in);
+        if (header == null) throw new EOFException("server closed connection");
+
+        header = header.trim();
+        if (header.startsWith("TEST ")) {
+            // TEST <passed> <len> <test_method_name>
+            String[] parts = header.split(" ", 4);
+            if (parts.length != 4) {
+                throw new IOException("malformed TEST header: " + header);
+            }
+            boolean passed = parts[1].equals("1");
+            MethodElementName testMethod;
+            try {
+                testMethod = new MethodElementName(parts[3].trim());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("malformed TEST header: " + header, e);
+            }
+
+            return new PendingReply(testMethod, new TestExecReply(passed, readPayload(in, parts[2])), null);
+        }
+
+        if (header.startsWith("END")) {
+            return null;
+        }
+
+        if (header.startsWith("ERROR")) {
+            throw new IOException("server error(target: " + testClass + "): " + header);
+        }
+
+        throw new IOException("unknown response: " + header);
+    }
+
+    private TestExecReply readReply(InputStream in, MethodElementName testMethod) throws IOException {
         String header = readLine(in);
         if (header == null) throw new EOFException("server closed connection");
 
@@ -50,15 +256,7 @@ public class JacocoTestExecClient implements Closeable {
                 throw new IOException("malformed OK header: " + header);
             }
             boolean passed = parts[1].equals("1");
-            int len;
-            try {
-                len = Integer.parseInt(parts[2]);
-            } catch (NumberFormatException e) {
-                throw new IOException("malformed length: " + header, e);
-            }
-
-            byte[] exec = readExactly(in, len);
-            return new TestExecReply(passed, exec);
+            return new TestExecReply(passed, readPayload(in, parts[2]));
         }
 
         if (header.startsWith("ERROR")) {
@@ -109,11 +307,59 @@ public class JacocoTestExecClient implements Closeable {
         // server replies BYE (optional)
         String line = readLine(in);
         // ignore if null
-        close();
+        try {
+            close();
+        } finally {
+            releaseRing();
+        }
+    }
+
+    /**
+     * 応答ヘッダの len に従ってカバレッジデータを受け取り、復元する。
+     * len が "<len>@<pos>" の場合はリングの位置 pos から、それ以外はヘッダに続くソケットのバイト列から読む。
+     */
+    private ExecutionDataStore readPayload(InputStream in, String lengthToken) throws IOException {
+        int at = lengthToken.indexOf('@');
+        int len;
+        long pos;
+        try {
+            len = Integer.parseInt(at < 0 ? lengthToken : lengthToken.substring(0, at));
+            pos = at < 0 ? -1 : Long.parseLong(lengthToken.substring(at + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("malformed length: " + lengthToken, e);
+        }
+
+        if (at < 0) {
+            readExactly(in, len);
+            return decodePayload(ByteBuffer.wrap(payloadBuffer, 0, len));
+        }
+        if (ring == null) throw new IOException("unexpected shared memory reply: " + lengthToken);
+        ExecutionDataStore store = decodePayload(ring.slice(pos, len));
+        ring.release(pos + len);
+        return store;
+    }
+
+    /**
+     * 受信したカバレッジデータを復元する。SPARSE 形式はクラス名の辞書を使うため、受信した順に呼び出す必要がある。
+     */
+    private ExecutionDataStore decodePayload(ByteBuffer payload) throws IOException {
+        if (format == CoverageFormat.SPARSE) return sparseDecoder.decode(payload);
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        ExecFileLoader loader = new ExecFileLoader();
+        try (InputStream bin = new ByteArrayInputStream(bytes)) {
+            loader.load(bin);
+        }
+        return loader.getExecutionDataStore();
     }
 
-    private byte[] readExactly(InputStream in, int len) throws IOException {
-        byte[] buf = new byte[len];
+    /**
+     * len バイトを受信バッファの先頭に読み込む。
+     */
+    private void readExactly(InputStream in, int len) throws IOException {
+        if (len < 0) throw new IOException("negative length: " + len);
+        if (payloadBuffer.length < len) payloadBuffer = new byte[Math.max(len, payloadBuffer.length * 2)];
+        byte[] buf = payloadBuffer;
         int off = 0;
 
         while (off < len) {
@@ -121,7 +367,13 @@ public class JacocoTestExecClient implements Closeable {
             if (r < 0) throw new EOFException("expected " + len + " bytes, got " + off);
             off += r;
         }
-        return buf;
+    }
+
+    private void releaseRing() throws IOException {
+        if (ring == null) return;
+        SharedCoverageRing released = ring;
+        ring = null;
+        released.close();
     }
 
     private static String readLine(InputStream in) throws IOException {
@@ -154,5 +406,27 @@ public class JacocoTestExecClient implements Closeable {
         if (first != null) throw first;
     }
 
-    public record TestExecReply(boolean passed, byte[] execBytes) {}
+    public record TestExecReply(boolean passed, ExecutionDataStore executionData) {}
+
+    public enum CoverageFormat {
+        //JaCoCoのexec形式。セッション情報と、プローブが1つ以上実行されたクラスのプローブ配列を含む
+        //(ExecutionDataWriter は実行されていないクラスを書き出さない)
+        EXEC,
+        //EXEC と同じクラスのプローブを、実行された区間だけで表した疎な形式
+        SPARSE
+    }
+
+    @FunctionalInterface
+    public interface TestExecReplyHandler {
+        void handle(MethodElementName testMethod, TestExecReply reply) throws IOException;
+    }
+
+    private record PendingReply(MethodElementName testMethod, TestExecReply reply, IOException error) {
+        private static final PendingReply END = new PendingReply(null, null, null);
+    }
+
+    @FunctionalInterface
+    private interface ReplySource {
+        PendingReply next(InputStream in) throws IOException;
+    }
 }
@@ -8,6 +8,8 @@ import jisd.fl.infra.jvm.JacocoTestExecServerLaunchSpecFactory;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
 import java.time.Duration;
 
@@ -34,21 +36,65 @@ public class JacocoTestExecServerHandle implements Closeable {
     }
 
     public static JacocoTestExecServerHandle start(String host, int port, Duration waitReady) throws IOException {
+        JacocoTestExecServerHandle handle = launch(host, port);
+        try {
+            // wait until server listens
+            handle.awaitReady(waitReady);
+        } catch (IOException e) {
+            try {
+                handle.terminateProcess();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        return handle;
+    }
+
+    /**
+     * サーバJVMを起動するが、待ち受け開始までは待たない。
+     * 複数サーバのJVM起動を重ねるために、{@link #awaitReady(Duration)} と分けて呼び出す。
+     */
+    static JacocoTestExecServerHandle launch(String host, int port) throws IOException {
         JVMLaunchSpec spec = JacocoTestExecServerLaunchSpecFactory.defaultSpec(port);
         JVMProcess proc = JVMLauncher.launch(spec);
-
-        // wait until server listens
-        waitUntilReady(host, port, waitReady);
-
         JacocoTestExecClient client = new JacocoTestExecClient(host, port);
-
         return new JacocoTestExecServerHandle(host, port, proc, client);
     }
 
+    /**
+     * サーバの待ち受け開始を待つ。
+     * 同じポートを別のプロセスが使っている場合、接続できてもこのサーバは起動に失敗しているため、プロセスが生きていることも確かめる。
+     */
+    void awaitReady(Duration timeout) throws IOException {
+        waitUntilReady(host, port, timeout, serverProcess.process);
+        if (!serverProcess.process.isAlive()) {
+            throw new IOException("server exited during startup: " + host + ":" + port);
+        }
+    }
+
+    static int findFreePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return s.getLocalPort();
+        }
+    }
+
     public JacocoTestExecClient client() {
         return client;
     }
 
+    /**
+     * サーバJVMが終了しているかを調べる。終了処理中の場合に備えて、最大 grace の間待つ。
+     */
+    public boolean hasExited(Duration grace) {
+        try {
+            return serverProcess.process.waitFor(grace.toMillis(), java.util.concurrent.TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return !serverProcess.process.isAlive();
+        }
+    }
+
     @Override
     public void close() throws IOException {
         IOException first = null;
@@ -70,11 +116,13 @@ public class JacocoTestExecServerHandle implements Closeable {
         if (first != null) throw first;
     }
 
-    private static void waitUntilReady(String host, int port, Duration timeout) throws IOException {
+    private static void waitUntilReady(String host, int port, Duration timeout, Process process) throws IOException {
         long deadline = System.nanoTime() + timeout.toNanos();
         IOException last = null;
 
         while (System.nanoTime() < deadline) {
+            //起動に失敗したサーバを待ち続けない
+            if (!process.isAlive()) throw new IOException("server exited during startup: " + host + ":" + port);
             try (Socket s = new Socket(host, port)) {
                 return; // connected -> ready
             } catch (ConnectException e) {
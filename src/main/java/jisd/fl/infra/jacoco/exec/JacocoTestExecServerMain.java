@@ -6,12 +6,18 @@ import jisd.fl.infra.junit.JUnitTestFinder;
 import jisd.fl.infra.junit.JUnitTestRunner;
 import org.jacoco.agent.rt.IAgent;
 import org.jacoco.agent.rt.RT;
+import org.junit.platform.engine.TestExecutionResult;
+import org.junit.platform.engine.support.descriptor.MethodSource;
+import org.junit.platform.launcher.TestExecutionListener;
+import org.junit.platform.launcher.TestIdentifier;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 
 import static java.lang.System.out;
@@ -34,6 +40,23 @@ import static java.lang.System.out;
  *     - len: 続くバイトデータの長さ
  *     - bytes: JaCoCoのカバレッジデータ
  *   - エラー時: "ERROR: <message>"
+ * - BATCH <count>\n<test_method_name>... : 続く count 行で指定されたテストメソッドを順に実行
+ *   - レスポンス: 各テストの終了ごとに RUN と同じ形式の応答を、指定された順に送信する
+ *   - クライアントは応答を待たずに次のテストの実行と並行して解析を行うことができる
+ * - RUNCLASS <test_class_name> : 指定されたテストクラスの全テストを1回のJUnit Platform実行で実行
+ *   - レスポンス: 各テストの終了ごとに "TEST <passed> <len> <test_method_name>\n<bytes>"、最後に "END <count>"
+ *     - 各テストのカバレッジは、直前のテストの終了時点からそのテストの終了時点までに実行されたもの
+ *       (クラス単位の @BeforeAll は最初のテストに含まれる)
+ *     - パラメータ化テストなど、1つのメソッドが生成する複数のテストは、まとめて1つのテストとして送る (RUN と同じ結果になる)
+ *   - エラー時: "ERROR: <message>"
+ * - FORMAT <EXEC|SPARSE> : 以降の応答に含めるカバレッジデータの形式を切り替える (接続ごと、初期値は EXEC)
+ *   - EXEC: JaCoCoのexec形式 (IAgent#getExecutionData の出力そのまま)
+ *   - SPARSE: EXEC と同じクラスのプローブを疎に表した {@link SparseCoverageFormat} 形式
+ *   - レスポンス: "OK"
+ * - SHM <ring_file> : クライアントが作成した {@link SharedCoverageRing} を共有し、以降のカバレッジデータをリング経由で送る (接続ごと)
+ *   - RUN / BATCH / RUNCLASS の応答の len が "<len>@<pos>" となり、bytes はソケットではなくリングの位置 pos に書き込まれる
+ *   - リングに空きが無い場合は、そのテストのみ従来通りソケットで送る
+ *   - レスポンス: "OK"、エラー時: "ERROR: <message>"
  * - LIST <test_class_name> : 指定されたテストクラスに含まれるテストメソッドの一覧を取得
  *   - レスポンス: "OK <count>\n<method_name>..." 
  *     - count: テストメソッド数
@@ -90,7 +113,15 @@ public class JacocoTestExecServerMain {
 
         BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.UTF_8));
         OutputStream rawOut = new BufferedOutputStream(sock.getOutputStream());
+        CoverageDumper dumper = new CoverageDumper(agent);
+        try {
+            serveCommands(in, rawOut, dumper);
+        } finally {
+            dumper.closeRing();
+        }
+    }
 
+    private static void serveCommands(BufferedReader in, OutputStream rawOut, CoverageDumper dumper) throws IOException {
         while(true){
             String line = in.readLine();
             if(line == null) return;
@@ -104,34 +135,62 @@ public class JacocoTestExecServerMain {
             }
 
             if(line.startsWith("RUN ")){
-                String fqTestMethodName = line.substring(4).trim();
-                MethodElementName testMethod;
-                if(fqTestMethodName.isEmpty()) {
-                    writeLine(rawOut, "ERROR: empty test method name");
-                    rawOut.flush();
-                    continue;
+                runTestAndReply(line.substring(4).trim(), dumper, rawOut);
+                continue;
+            }
+
+            if(line.startsWith("RUNCLASS ")){
+                String testClassFqcn = line.substring(9).trim();
+                if (testClassFqcn.isEmpty()) { writeLine(rawOut, "ERROR: empty class"); rawOut.flush(); continue; }
+                runTestClassAndReply(new ClassElementName(testClassFqcn), dumper, rawOut);
+                continue;
+            }
+
+            if(line.startsWith("FORMAT ")){
+                String format = line.substring(7).trim();
+                switch (format) {
+                    case "EXEC" -> dumper.sparse = null;
+                    case "SPARSE" -> dumper.sparse = new SparseCoverageEncoder();
+                    default -> {
+                        writeLine(rawOut, "ERROR: unknown format: " + format);
+                        rawOut.flush();
+                        continue;
+                    }
                 }
+                writeLine(rawOut, "OK");
+                rawOut.flush();
+                continue;
+            }
+
+            if(line.startsWith("SHM ")){
+                String ringFile = line.substring(4).trim();
                 try {
-                    testMethod = new MethodElementName(fqTestMethodName);
-                } catch (IllegalArgumentException e){
-                    writeLine(rawOut, "ERROR: invalid test method name: " + fqTestMethodName);
-                    rawOut.flush();
-                    continue;
+                    dumper.openRing(Path.of(ringFile));
+                    writeLine(rawOut, "OK");
+                } catch (IOException | RuntimeException e) {
+                    writeLine(rawOut, "ERROR: cannot open ring file: " + sanitize(e.toString()));
                 }
+                rawOut.flush();
+                continue;
+            }
 
+            if(line.startsWith("BATCH ")){
+                int count;
                 try {
-                    agent.reset();
-                    JUnitTestRunner.TestRunResult result = JUnitTestRunner.runSingleTest(testMethod, out);
-                    byte[] exec = agent.getExecutionData(true);
-                    // protocol: OK <passed> <len>\n <bytes>
-                    writeLine(rawOut, "OK " + (result.passed() ? "1" : "0") + " " + exec.length);
-                    rawOut.write(exec);
-                    rawOut.flush();
-                } catch (Throwable t) {
-                    System.err.println("[Jacoco-exec-server] Error running test: " + testMethod);
-                    t.printStackTrace(System.err);
-                    writeLine(rawOut, "ERROR: " + sanitize(t.toString()));
+                    count = Integer.parseInt(line.substring(6).trim());
+                } catch (NumberFormatException e){
+                    writeLine(rawOut, "ERROR: invalid batch size: " + line);
                     rawOut.flush();
+                    continue;
+                }
+                List<String> fqTestMethodNames = new ArrayList<>(count);
+                for(int i = 0; i < count; i++){
+                    String name = in.readLine();
+                    if(name == null) return;
+                    fqTestMethodNames.add(name.trim());
+                }
+                for(String fqTestMethodName : fqTestMethodNames){
+                    runTestAndReply(fqTestMethodName, dumper, rawOut);
                 }
                 continue;
             }
@@ -163,6 +222,190 @@ public class JacocoTestExecServerMain {
         }
     }
 
+    /**
+     * テストメソッドを1つ実行し、結果とカバレッジデータを応答する。
+     * テストごとにフラッシュするため、BATCH 実行時もクライアントは終了したテストから順に受け取れる。
+     */
+    private static void runTestAndReply(String fqTestMethodName, CoverageDumper dumper, OutputStream rawOut) throws IOException {
+        MethodElementName testMethod;
+        if(fqTestMethodName.isEmpty()) {
+            writeLine(rawOut, "ERROR: empty test method name");
+            rawOut.flush();
+            return;
+        }
+        try {
+            testMethod = new MethodElementName(fqTestMethodName);
+        } catch (IllegalArgumentException e){
+            writeLine(rawOut, "ERROR: invalid test method name: " + fqTestMethodName);
+            rawOut.flush();
+            return;
+        }
+
+        try {
+            dumper.reset();
+            JUnitTestRunner.TestRunResult result = JUnitTestRunner.runSingleTest(testMethod, out);
+            byte[] exec = dumper.dump();
+            // protocol: OK <passed> <len>\n <bytes>
+            writePayloadReply(rawOut, dumper, "OK " + (result.passed() ? "1" : "0"), exec, "");
+            rawOut.flush();
+        } catch (Throwable t) {
+            System.err.println("[Jacoco-exec-server] Error running test: " + testMethod);
+            t.printStackTrace(System.err);
+            writeLine(rawOut, "ERROR: " + sanitize(t.toString()));
+            rawOut.flush();
+        }
+    }
+
+    /**
+     * テストクラスを1回のJUnit Platform実行で実行し、テストの終了ごとに結果とカバレッジデータを応答する。
+     * テストごとに Launcher の生成とテストの探索を行わないため、テスト数の多いクラスで高速に動作する。
+     */
+    private static void runTestClassAndReply(ClassElementName testClass, CoverageDumper dumper, OutputStream rawOut) throws IOException {
+        CoverageDumpingListener listener = new CoverageDumpingListener(dumper, rawOut);
+        try {
+            dumper.reset();
+            JUnitTestRunner.runTestClass(testClass, listener, out);
+        } catch (Throwable t) {
+            System.err.println("[Jacoco-exec-server] Error running test class: " + testClass);
+            t.printStackTrace(System.err);
+            writeLine(rawOut, "ERROR: " + sanitize(t.toString()));
+            rawOut.flush();
+            return;
+        }
+        //クライアントへの送信に失敗した場合は接続を終了する
+        if (listener.error != null) throw listener.error;
+        writeLine(rawOut, "END " + listener.count);
+        rawOut.flush();
+    }
+
+    /**
+     * テストの終了ごとにカバレッジデータを取り出し、RUNCLASS の応答としてクライアントに送信するリスナー。
+     * パラメータ化テストや繰り返しテストのように、メソッドが1回の実行で複数のテストを生成するもの (テストテンプレートやテストファクトリ) は、
+     * RUN でそのメソッドを実行した場合と同じになるよう、生成されたすべてのテストのカバレッジを合わせて1つのテストとして送る。
+     * このとき、どれか1つでも失敗した場合は失敗とする。
+     * メソッドに対応しないテストは RUN で実行できないため、カバレッジを取り出して捨てる。
+     */
+    static final class CoverageDumpingListener implements TestExecutionListener {
+        private final CoverageDumper dumper;
+        private final OutputStream rawOut;
+        private int count = 0;
+        private IOException error;
+        //実行中のテストを生成するメソッドのコンテナ。null の場合は実行中でない
+        private TestIdentifier generator;
+        private boolean generatedFailed;
+
+        CoverageDumpingListener(CoverageDumper dumper, OutputStream rawOut) {
+            this.dumper = dumper;
+            this.rawOut = rawOut;
+        }
+
+        @Override
+        public void executionStarted(TestIdentifier testIdentifier) {
+            if (generator != null || testIdentifier.isTest()) return;
+            if (methodSourceOf(testIdentifier) == null) return;
+            generator = testIdentifier;
+            generatedFailed = false;
+        }
+
+        @Override
+        public void executionFinished(TestIdentifier testIdentifier, TestExecutionResult testExecutionResult) {
+            if (error != null) return;
+            boolean failed = testExecutionResult.getStatus() == TestExecutionResult.Status.FAILED;
+            if (generator != null) {
+                // 生成されたテストのカバレッジはリセットせずに溜め、メソッドのコンテナの終了時にまとめて送る
+                generatedFailed |= failed;
+                if (!testIdentifier.equals(generator)) return;
+                generator = null;
+                reply(methodSourceOf(testIdentifier), !generatedFailed);
+                return;
+            }
+            if (!testIdentifier.isTest()) return;
+            // テストごとのカバレッジとするため、メソッド名が得られない場合も取り出してリセットする
+            reply(methodSourceOf(testIdentifier), !failed);
+        }
+
+        private void reply(MethodSource source, boolean passed) {
+            try {
+                byte[] exec = dumper.dump();
+                if (source == null) return;
+                // JUnitTestFinder と同じ形式のメソッド名
+                String fqTestMethodName = source.getClassName() + "#" + source.getMethodName() + "()";
+                // protocol: TEST <passed> <len> <test_method_name>\n <bytes>
+                writePayloadReply(rawOut, dumper, "TEST " + (passed ? "1" : "0"), exec, " " + fqTestMethodName);
+                rawOut.flush();
+                count++;
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        private static MethodSource methodSourceOf(TestIdentifier testIdentifier) {
+            return testIdentifier.getSource().orElse(null) instanceof MethodSource source ? source : null;
+        }
+    }
+
+    /**
+     * JaCoCoエージェントからカバレッジデータを取り出し、接続ごとに指定された形式に変換する。
+     */
+    static final class CoverageDumper {
+        private final IAgent agent;
+        //null の場合はexec形式のまま送る
+        private SparseCoverageEncoder sparse;
+        //null の場合はソケットで送る
+        private SharedCoverageRing ring;
+
+        CoverageDumper(IAgent agent) {
+            this.agent = agent;
+        }
+
+        void reset() {
+            agent.reset();
+        }
+
+        byte[] dump() throws IOException {
+            byte[] exec = agent.getExecutionData(true);
+            return sparse == null ? exec : sparse.encode(exec);
+        }
+
+        void openRing(Path file) throws IOException {
+            SharedCoverageRing opened = SharedCoverageRing.open(file);
+            closeRing();
+            ring = opened;
+        }
+
+        void closeRing() {
+            if (ring == null) return;
+            try {
+                ring.close();
+            } catch (IOException e) {
+                System.err.println("[Jacoco-exec-server] failed to close ring file: " + e.getMessage());
+            }
+            ring = null;
+        }
+
+        /**
+         * データをリングに書き込み、応答に含める "<len>@<pos>" を返す。リングを使用しない、または空きが無い場合は null。
+         */
+        String share(byte[] payload) {
+            if (ring == null) return null;
+            long pos = ring.write(payload);
+            return pos < 0 ? null : payload.length + "@" + pos;
+        }
+    }
+
+    /**
+     * "<head> <len><tail>\n<bytes>" の形式で応答する。リングに書き込めた場合、len は "<len>@<pos>" となり bytes は送らない。
+     */
+    private static void writePayloadReply(OutputStream rawOut, CoverageDumper dumper, String head, byte[] payload, String tail) throws IOException {
+        String shared = dumper.share(payload);
+        if (shared != null) {
+            writeLine(rawOut, head + " " + shared + tail);
+            return;
+        }
+        writeLine(rawOut, head + " " + payload.length + tail);
+        rawOut.write(payload);
+    }
+
     private static void writeLine(OutputStream out, String s) throws IOException {
         out.write((s + "\n").getBytes(StandardCharsets.UTF_8));
     }
@@ -0,0 +1,129 @@
+package jisd.fl.infra.jacoco.exec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 複数の JaCoCo テスト実行サーバJVMをまとめて管理するクラス。
+ * 各サーバは空きポートで起動し、それぞれ専用の {@link JacocoTestExecClient} を持つ。
+ * 1つのクライアントは1スレッドから使用することを想定している。
+ */
+public class JacocoTestExecServerPool implements Closeable {
+    private final List<JacocoTestExecServerHandle> handles;
+    //各サーバのポート。handles と同じ順序
+    private final List<Integer> ports;
+
+    private JacocoTestExecServerPool(List<JacocoTestExecServerHandle> handles, List<Integer> ports) {
+        this.handles = handles;
+        this.ports = ports;
+    }
+
+    public static JacocoTestExecServerPool start(int size) throws IOException {
+        return start(size, Duration.ofSeconds(10));
+    }
+
+    /**
+     * 指定された数のサーバJVMを起動する。
+     * JVMの起動を重ねるため、全てのプロセスを起動してから待ち受け開始を待つ。
+     *
+     * @param size 起動するサーバ数
+     * @param waitReady 各サーバの待ち受け開始を待つ最大時間
+     */
+    public static JacocoTestExecServerPool start(int size, Duration waitReady) throws IOException {
+        if (size <= 0) throw new IllegalArgumentException("size must be positive: " + size);
+
+        List<JacocoTestExecServerHandle> handles = new ArrayList<>(size);
+        List<Integer> ports = new ArrayList<>(size);
+        JacocoTestExecServerPool pool = new JacocoTestExecServerPool(handles, ports);
+        try {
+            for (int i = 0; i < size; i++) {
+                int port = freePortExcept(ports);
+                ports.add(port);
+                handles.add(JacocoTestExecServerHandle.launch("127.0.0.1", port));
+            }
+            for (JacocoTestExecServerHandle h : handles) {
+                h.awaitReady(waitReady);
+            }
+        } catch (IOException e) {
+            try {
+                pool.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        return pool;
+    }
+
+    public int size() {
+        return handles.size();
+    }
+
+    public synchronized JacocoTestExecClient client(int i) {
+        return handles.get(i).client();
+    }
+
+    /**
+     * i 番目のサーバJVMが終了しているかを調べる。
+     */
+    public boolean hasExited(int i, Duration grace) {
+        JacocoTestExecServerHandle h;
+        synchronized (this) {
+            h = handles.get(i);
+        }
+        return h.hasExited(grace);
+    }
+
+    /**
+     * i 番目のサーバJVMを終了し、新しい空きポートで起動し直す。
+     * 他のサーバは引き続き使用できる。
+     */
+    public void restart(int i, Duration waitReady) throws IOException {
+        JacocoTestExecServerHandle old;
+        synchronized (this) {
+            old = handles.get(i);
+        }
+        try {
+            old.close();
+        } catch (IOException ignore) {
+            //異常終了したサーバとの接続は失敗して当然なので無視する
+        }
+        int port;
+        synchronized (this) {
+            port = freePortExcept(ports);
+            ports.set(i, port);
+        }
+        JacocoTestExecServerHandle restarted = JacocoTestExecServerHandle.start("127.0.0.1", port, waitReady);
+        synchronized (this) {
+            handles.set(i, restarted);
+        }
+    }
+
+    /**
+     * 他のサーバに割り当てていない空きポートを選ぶ。
+     * 空きポートはサーバが待ち受けを始めるまで確保されないため、続けて選ぶと同じポートが返ることがある。
+     */
+    private static int freePortExcept(Collection<Integer> taken) throws IOException {
+        while (true) {
+            int port = JacocoTestExecServerHandle.findFreePort();
+            if (!taken.contains(port)) return port;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException first = null;
+        for (JacocoTestExecServerHandle h : handles) {
+            try {
+                h.close();
+            } catch (IOException e) {
+                if (first == null) first = e;
+            }
+        }
+        if (first != null) throw first;
+    }
+}
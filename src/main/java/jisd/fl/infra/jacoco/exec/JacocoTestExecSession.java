@@ -0,0 +1,122 @@
+package jisd.fl.infra.jacoco.exec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * 複数回のカバレッジ計測にまたがって、テスト実行サーバJVMを起動したまま使い回すためのセッション。
+ * サーバJVMの起動と、JaCoCoエージェントによる計測対象クラスの計装はセッションにつき一度だけ行われる。
+ *
+ * サーバが異常終了した場合は {@link #execute(int, ClientCall)} の中で自動的に再起動し、処理を1度だけ再試行する。
+ * サーバJVMは一度読み込んだクラスを保持し続けるため、計測対象をコンパイルし直した場合は {@link #restart()} するか、
+ * セッションを開き直す必要がある。
+ * また、テストクラスの static なフィールドの状態は同じセッション内の後続の計測に引き継がれる。
+ */
+public class JacocoTestExecSession implements Closeable {
+    private static final Duration WAIT_READY = Duration.ofSeconds(10);
+    //サーバJVMの終了を確認する際に、終了処理を待つ時間
+    private static final Duration EXIT_GRACE = Duration.ofMillis(500);
+
+    private final JacocoTestExecServerPool pool;
+    //サーバの再起動時にも同じ設定をクライアントに適用するため保持する
+    private volatile ClientConfigurer configurer;
+    private volatile boolean closed = false;
+
+    private JacocoTestExecSession(JacocoTestExecServerPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * 指定された数のサーバJVMを起動し、セッションを開始する。
+     *
+     * @param serverCount サーバJVMの数
+     */
+    public static JacocoTestExecSession open(int serverCount) throws IOException {
+        return new JacocoTestExecSession(JacocoTestExecServerPool.start(serverCount, WAIT_READY));
+    }
+
+    public int size() {
+        return pool.size();
+    }
+
+    /**
+     * 全てのクライアントに設定を適用する。サーバを再起動した場合も、新しいクライアントに同じ設定を適用する。
+     */
+    public void configureClients(ClientConfigurer configurer) throws IOException {
+        this.configurer = configurer;
+        for (int i = 0; i < pool.size(); i++) {
+            configurer.configure(pool.client(i));
+        }
+    }
+
+    /**
+     * server 番目のサーバのクライアントで call を実行する。
+     * 通信に失敗した場合、サーバが終了していれば再起動し、生きていれば接続だけを張り直して、call を1度だけ再試行する。
+     * 再試行時に未処理の部分から再開できるよう、call は自身の進捗を保持している必要がある。
+     * 同じ server に対して複数のスレッドから同時に呼び出してはならない。
+     */
+    public <T> T execute(int server, ClientCall<T> call) throws IOException {
+        ensureOpen();
+        try {
+            return call.call(pool.client(server));
+        } catch (IOException e) {
+            if (closed) throw e;
+            try {
+                recover(server, e);
+            } catch (IOException recoverError) {
+                e.addSuppressed(recoverError);
+                throw e;
+            }
+            return call.call(pool.client(server));
+        }
+    }
+
+    /**
+     * 全てのサーバJVMを起動し直す。計測対象のクラスファイルが変更された後に、変更後のクラスを読み込ませるために使用する。
+     */
+    public void restart() throws IOException {
+        ensureOpen();
+        ClientConfigurer c = configurer;
+        for (int i = 0; i < pool.size(); i++) {
+            pool.restart(i, WAIT_READY);
+            if (c != null) c.configure(pool.client(i));
+        }
+    }
+
+    private void recover(int server, IOException cause) throws IOException {
+        if (!pool.hasExited(server, EXIT_GRACE)) {
+            //応答ストリームの途中で失敗した可能性があるため、接続を破棄する
+            try {
+                pool.client(server).close();
+            } catch (IOException ignore) {
+            }
+            return;
+        }
+        System.err.println("[FaultFinder] exec server " + server + " terminated unexpectedly, restarting: " + cause.getMessage());
+        pool.restart(server, WAIT_READY);
+        ClientConfigurer c = configurer;
+        if (c != null) c.configure(pool.client(server));
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("session already closed");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        pool.close();
+    }
+
+    @FunctionalInterface
+    public interface ClientCall<T> {
+        T call(JacocoTestExecClient client) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface ClientConfigurer {
+        void configure(JacocoTestExecClient client) throws IOException;
+    }
+}
@@ -0,0 +1,131 @@
+package jisd.fl.infra.jacoco.exec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * テスト実行サーバとクライアントの2つのJVMで共有する、メモリマップトファイル上のリングバッファ。
+ * サーバは各テストのカバレッジデータをリングに書き込み、ソケットでは書き込んだ位置と長さだけを送る。
+ * クライアントはマップされた領域を直接デコードするため、ソケット経由のコピーとテストごとの配列確保が不要になる。
+ *
+ * <pre>
+ * file := header(64 bytes) data(capacity bytes)
+ * header の先頭8バイト: クライアントが読み終えた位置 (累積バイト数, ネイティブバイトオーダー)
+ * </pre>
+ *
+ * 位置はリング上の添字ではなく書き込み開始からの累積バイト数で表す。
+ * 1つのデータはリングの末尾で分割せず、収まらない場合は先頭から書き込む。
+ * 空きが足りない場合、サーバはクライアントを待たずにソケットで直接送る。
+ *
+ * サーバ側では JaCoCo core がクラスパスに無いため、このクラスは JaCoCo に依存しない。
+ */
+final class SharedCoverageRing implements Closeable {
+    static final int HEADER_BYTES = 64;
+    private static final int CONSUMED_OFFSET = 0;
+    //プロセス間で読み終えた位置を公開するため、acquire/release で読み書きする
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    //true の場合、close 時にファイルを削除する (ファイルを作成したクライアント側)
+    private final boolean owner;
+    //サーバ側で次に書き込む位置
+    private long writePos = 0;
+
+    private SharedCoverageRing(Path file, FileChannel channel, MappedByteBuffer buffer, int capacity, boolean owner) {
+        this.file = file;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.owner = owner;
+    }
+
+    /**
+     * 一時ファイルにリングを作成する。クライアント側で使用する。
+     *
+     * @param capacity データ領域のバイト数
+     */
+    static SharedCoverageRing create(int capacity) throws IOException {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        Path file = Files.createTempFile("faultfinder-coverage-", ".ring");
+        file.toFile().deleteOnExit();
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) HEADER_BYTES + capacity);
+        SharedCoverageRing ring = new SharedCoverageRing(file, channel, buffer, capacity, true);
+        ring.release(0);
+        return ring;
+    }
+
+    /**
+     * クライアントが作成したリングを開く。サーバ側で使用する。
+     */
+    static SharedCoverageRing open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        if (size <= HEADER_BYTES || size - HEADER_BYTES > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException("invalid ring file size: " + size);
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        return new SharedCoverageRing(file, channel, buffer, (int) (size - HEADER_BYTES), false);
+    }
+
+    Path file() {
+        return file;
+    }
+
+    /**
+     * データをリングに書き込む。
+     *
+     * @return 書き込んだ位置。空きが足りない場合は -1
+     */
+    long write(byte[] data) {
+        int len = data.length;
+        if (len > capacity) return -1;
+        long pos = writePos;
+        int index = (int) (pos % capacity);
+        //末尾に収まらない場合は先頭から書き込む
+        if (index + len > capacity) pos += capacity - index;
+        long consumed = (long) LONGS.getAcquire(buffer, CONSUMED_OFFSET);
+        if (pos + len - consumed > capacity) return -1;
+
+        buffer.put(HEADER_BYTES + (int) (pos % capacity), data);
+        writePos = pos + len;
+        return pos;
+    }
+
+    /**
+     * サーバが書き込んだデータを参照する。読み終えたら {@link #release(long)} を呼ぶ。
+     */
+    ByteBuffer slice(long pos, int len) throws IOException {
+        int index = (int) (pos % capacity);
+        if (pos < 0 || len < 0 || index + len > capacity) {
+            throw new IOException("ring slice out of range: pos=" + pos + ", len=" + len + ", capacity=" + capacity);
+        }
+        return buffer.slice(HEADER_BYTES + index, len);
+    }
+
+    /**
+     * 指定した位置までを読み終えたことをサーバに通知し、領域を再利用可能にする。
+     */
+    void release(long consumedPos) {
+        LONGS.setRelease(buffer, CONSUMED_OFFSET, consumedPos);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (owner) Files.deleteIfExists(file);
+    }
+}
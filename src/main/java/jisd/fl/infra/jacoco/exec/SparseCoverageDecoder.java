@@ -0,0 +1,92 @@
+package jisd.fl.infra.jacoco.exec;
+
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataStore;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static jisd.fl.infra.jacoco.exec.SparseCoverageFormat.*;
+
+/**
+ * {@link SparseCoverageEncoder} が出力したデータから、ExecFileLoader を使わずにプローブ配列を復元するクラス。
+ * クラス名の辞書を保持するため、1つの接続につき1つのインスタンスを使用し、受信した順にデコードする。
+ */
+public final class SparseCoverageDecoder {
+    private final List<ClassEntry> classes = new ArrayList<>();
+
+    public ExecutionDataStore decode(byte[] payload) throws IOException {
+        return decode(ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * @param payload 1テスト分のデータ。position から limit までを読み進める。
+     */
+    public ExecutionDataStore decode(ByteBuffer payload) throws IOException {
+        ExecutionDataStore store = new ExecutionDataStore();
+        try {
+            int classCount = readVarInt(payload);
+            for (int i = 0; i < classCount; i++) {
+                ClassEntry entry = readClassRef(payload);
+                int probeCount = readVarInt(payload);
+                boolean[] probes = new boolean[probeCount];
+                byte encoding = payload.get();
+                switch (encoding) {
+                    case ENCODING_RUNS -> readRuns(payload, probes);
+                    case ENCODING_BITSET -> readBitset(payload, probes);
+                    default -> throw new IOException("unknown probe encoding: " + encoding);
+                }
+                store.put(new ExecutionData(entry.id(), entry.name(), probes));
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("malformed coverage payload", e);
+        }
+        return store;
+    }
+
+    /**
+     * 新しい接続に切り替わった場合に、サーバ側の辞書と合わせて初期化する。
+     */
+    public void reset() {
+        classes.clear();
+    }
+
+    private ClassEntry readClassRef(ByteBuffer in) throws IOException {
+        int ref = readVarInt(in);
+        if (ref < classes.size()) return classes.get(ref);
+        if (ref != classes.size()) throw new IOException("unknown class reference: " + ref);
+
+        long id = in.getLong();
+        byte[] nameBytes = new byte[readVarInt(in)];
+        in.get(nameBytes);
+        ClassEntry entry = new ClassEntry(id, new String(nameBytes, StandardCharsets.UTF_8));
+        classes.add(entry);
+        return entry;
+    }
+
+    private static void readRuns(ByteBuffer in, boolean[] probes) throws IOException {
+        int runCount = readVarInt(in);
+        int p = 0;
+        for (int r = 0; r < runCount; r++) {
+            p += readVarInt(in);
+            int end = p + readVarInt(in);
+            if (end > probes.length) throw new IOException("probe run out of range: " + end + " > " + probes.length);
+            for (; p < end; p++) probes[p] = true;
+        }
+    }
+
+    private static void readBitset(ByteBuffer in, boolean[] probes) {
+        int b = 0;
+        for (int p = 0; p < probes.length; p++) {
+            if ((p & 7) == 0) b = in.get();
+            probes[p] = (b & 1) != 0;
+            b >>>= 1;
+        }
+    }
+
+    private record ClassEntry(long id, String name) {}
+}
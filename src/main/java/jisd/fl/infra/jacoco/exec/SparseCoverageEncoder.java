@@ -0,0 +1,135 @@
+package jisd.fl.infra.jacoco.exec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static jisd.fl.infra.jacoco.exec.SparseCoverageFormat.*;
+
+/**
+ * JaCoCoエージェントが出力するexec形式のデータを {@link SparseCoverageFormat} に変換するクラス。
+ * クラス名の辞書を保持するため、1つの接続につき1つのインスタンスを使用する。
+ */
+public final class SparseCoverageEncoder {
+    // JaCoCo exec形式のブロック種別 (org.jacoco.core.data.ExecutionDataWriter)
+    private static final byte BLOCK_HEADER = 0x01;
+    private static final byte BLOCK_SESSIONINFO = 0x10;
+    private static final byte BLOCK_EXECUTIONDATA = 0x11;
+    private static final char MAGIC_NUMBER = 0xC0C0;
+
+    //クラスID -> 辞書上の番号
+    private final Map<Long, Integer> classRefs = new HashMap<>();
+
+    /**
+     * @param execBytes IAgent#getExecutionData(boolean) の戻り値
+     * @return exec形式に含まれるすべてのクラスを含む疎な表現。
+     *         クライアントはクラスごとのテスト総数を受け取ったクラスから数えるため、EXEC 形式と同じ結果になるようにクラスは省略しない
+     */
+    public byte[] encode(byte[] execBytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(execBytes));
+        ByteArrayOutputStream body = new ByteArrayOutputStream(Math.max(64, execBytes.length / 4));
+        ByteArrayOutputStream runs = new ByteArrayOutputStream(64);
+        int classCount = 0;
+
+        int type;
+        while ((type = in.read()) != -1) {
+            switch (type) {
+                case BLOCK_HEADER -> {
+                    if (in.readChar() != MAGIC_NUMBER) throw new IOException("invalid exec data header");
+                    in.readChar(); // format version
+                }
+                case BLOCK_SESSIONINFO -> {
+                    in.readUTF();
+                    in.readLong();
+                    in.readLong();
+                }
+                case BLOCK_EXECUTIONDATA -> {
+                    long classId = in.readLong();
+                    String name = in.readUTF();
+                    int probeCount = readExecVarInt(in);
+                    byte[] packed = new byte[(probeCount + 7) / 8];
+                    in.readFully(packed);
+
+                    writeClassRef(body, classId, name);
+                    writeVarInt(body, probeCount);
+                    runs.reset();
+                    writeRuns(runs, packed, probeCount);
+                    if (runs.size() < packed.length) {
+                        body.write(ENCODING_RUNS);
+                        runs.writeTo(body);
+                    } else {
+                        body.write(ENCODING_BITSET);
+                        body.write(packed);
+                    }
+                    classCount++;
+                }
+                default -> throw new IOException("unknown exec data block: " + type);
+            }
+        }
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(body.size() + 5);
+        writeVarInt(payload, classCount);
+        body.writeTo(payload);
+        return payload.toByteArray();
+    }
+
+    private void writeClassRef(ByteArrayOutputStream out, long classId, String name) {
+        Integer ref = classRefs.get(classId);
+        if (ref != null) {
+            writeVarInt(out, ref);
+            return;
+        }
+        int newRef = classRefs.size();
+        classRefs.put(classId, newRef);
+        writeVarInt(out, newRef);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (classId >>> shift) & 0xFF);
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, nameBytes.length);
+        out.write(nameBytes, 0, nameBytes.length);
+    }
+
+    private static void writeRuns(ByteArrayOutputStream out, byte[] packed, int probeCount) throws IOException {
+        ByteArrayOutputStream pairs = new ByteArrayOutputStream(32);
+        int runCount = 0;
+        int prevEnd = 0;
+        int p = 0;
+        while (p < probeCount) {
+            if (!isHit(packed, p)) {
+                p++;
+                continue;
+            }
+            int start = p;
+            while (p < probeCount && isHit(packed, p)) p++;
+            writeVarInt(pairs, start - prevEnd);
+            writeVarInt(pairs, p - start);
+            prevEnd = p;
+            runCount++;
+        }
+        writeVarInt(out, runCount);
+        pairs.writeTo(out);
+    }
+
+    private static boolean isHit(byte[] packed, int probe) {
+        return (packed[probe >>> 3] & (1 << (probe & 7))) != 0;
+    }
+
+    // org.jacoco.core.internal.data.CompactDataInput#readVarInt と同じ形式
+    private static int readExecVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) throw new EOFException("unexpected end of exec data");
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+            shift += 7;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package jisd.fl.infra.jacoco.exec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * テスト実行サーバからクライアントへ送る、1テスト分のカバレッジの疎な表現の定義。
+ * exec形式に含まれるクラスをすべてそのまま含み (プローブが1つも実行されていないクラスは runCount が 0 になる)、
+ * 実行されたプローブの区間だけを送る。クラス名は接続ごとの辞書によって2回目以降は番号で参照する。
+ *
+ * <pre>
+ * payload  := varint(classCount) class*
+ * class    := varint(classRef) [int64(classId) string(name)] varint(probeCount) byte(encoding) probes
+ *             (classRef がこれまでの辞書サイズと等しい場合のみ classId と name が続き、辞書に追加される)
+ * probes   := encoding == RUNS   : varint(runCount) (varint(gap) varint(length))*
+ *                                  gap は直前の区間の終端(排他的)から次の区間の先頭までの距離
+ *           | encoding == BITSET : byte[ceil(probeCount / 8)] (下位ビットから順に、JaCoCoと同じ並び)
+ * string   := varint(length) UTF-8 bytes
+ * varint   := 7bitごとのリトルエンディアン。最上位ビットが1なら後続のバイトがある
+ * </pre>
+ *
+ * サーバ側では JaCoCo core がクラスパスに無いため、このクラスは JaCoCo に依存しない。
+ */
+final class SparseCoverageFormat {
+    static final byte ENCODING_RUNS = 0;
+    static final byte ENCODING_BITSET = 1;
+
+    private SparseCoverageFormat() {}
+
+    static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int readVarInt(ByteBuffer in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        try {
+            while (true) {
+                int b = in.get() & 0xFF;
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+                shift += 7;
+                if (shift > 28) throw new IOException("malformed varint");
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("unexpected end of coverage payload", e);
+        }
+    }
+}
@@ -44,13 +44,21 @@ public  class JUnitTestFinder {
 
         return testPlan.getRoots().stream()
                 .flatMap(root -> testPlan.getDescendants(root).stream())
-                .filter(TestIdentifier::isTest)
+                .filter(id -> id.isTest() || isTestGeneratingMethod(id))
                 .map(JUnitTestFinder::getFQMNName)
                 .filter(Optional::isPresent)
                 .map(Optional::get)
                 .collect(Collectors.toList());
     }
 
+    /**
+     * パラメータ化テストや繰り返しテストのように、実行時にテストを生成するメソッドか。
+     * 生成されるテストは探索時には現れないため、メソッド自体を1つのテストとして扱う。
+     */
+    private static boolean isTestGeneratingMethod(TestIdentifier id) {
+        return id.isContainer() && id.getSource().filter(MethodSource.class::isInstance).isPresent();
+    }
+
     private static Optional<MethodElementName> getFQMNName(TestIdentifier id) {
         if(id.getSource().isEmpty()) return Optional.empty();
         MethodSource source = (MethodSource) id.getSource().get();
@@ -1,8 +1,13 @@
 package jisd.fl.infra.junit;
 
+import jisd.fl.core.entity.element.ClassElementName;
 import jisd.fl.core.entity.element.MethodElementName;
+import org.junit.platform.commons.support.HierarchyTraversalMode;
+import org.junit.platform.commons.support.ReflectionSupport;
+import org.junit.platform.engine.DiscoverySelector;
 import org.junit.platform.launcher.Launcher;
 import org.junit.platform.launcher.LauncherDiscoveryRequest;
+import org.junit.platform.launcher.TestExecutionListener;
 import org.junit.platform.launcher.core.LauncherDiscoveryRequestBuilder;
 import org.junit.platform.launcher.core.LauncherFactory;
 import org.junit.platform.launcher.listeners.SummaryGeneratingListener;
@@ -11,7 +16,10 @@ import org.junit.platform.launcher.listeners.TestExecutionSummary;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.util.List;
 
+import static org.junit.platform.engine.discovery.DiscoverySelectors.selectClass;
 import static org.junit.platform.engine.discovery.DiscoverySelectors.selectMethod;
 
 public class JUnitTestRunner {
@@ -21,7 +29,7 @@ public class JUnitTestRunner {
             String junitTestMethodName = testMethodName.fullyQualifiedName().contains("(") ? testMethodName.fullyQualifiedName().split("\\(")[0] : testMethodName.fullyQualifiedName();
             LauncherDiscoveryRequest request = LauncherDiscoveryRequestBuilder.request()
                     .selectors(
-                            selectMethod(junitTestMethodName)
+                            methodSelectors(junitTestMethodName)
                     ).build();
 
             Launcher launcher = LauncherFactory.create();
@@ -47,6 +55,68 @@ public class JUnitTestRunner {
         }
     }
 
+    /**
+     * テストクラスに含まれる全てのテストを1回のJUnit Platform実行で実行する。
+     * テストごとの結果は listener で受け取る。
+     *
+     * @param testClassName 実行するテストクラス
+     * @param listener テストごとの開始・終了を受け取るリスナー
+     * @param log ログの出力先
+     */
+    static public TestRunResult runTestClass(ClassElementName testClassName, TestExecutionListener listener, Appendable log) {
+        try {
+            System.out.println("RUN TEST CLASS: " + testClassName);
+            LauncherDiscoveryRequest request = LauncherDiscoveryRequestBuilder.request()
+                    .selectors(
+                            selectClass(testClassName.fullyQualifiedName())
+                    ).build();
+
+            Launcher launcher = LauncherFactory.create();
+            SummaryGeneratingListener summaryListener = new SummaryGeneratingListener();
+
+            launcher.execute(request, listener, summaryListener);
+            TestExecutionSummary summary = summaryListener.getSummary();
+            String summaryText = renderSummary(summary);
+            boolean passed = summary.getTotalFailureCount() == 0;
+            logLine(log, "TEST CLASS RESULT: " + summary.getTestsSucceededCount() + " succeeded, " + summary.getTotalFailureCount() + " failed");
+
+            return new TestRunResult(
+                    passed,
+                    summary.getTestsFoundCount(),
+                    summary.getTotalFailureCount(),
+                    summaryText
+            );
+        } catch (IOException e){
+            try {
+                logLine(log, "RUNNER ERROR: " + e);
+            } catch (IOException ignore){}
+            return new TestRunResult(false, 0, 0, "");
+        }
+    }
+
+    /**
+     * テストメソッドを選択する。
+     * MethodElementName は引数の型を持たないため、引数を持たないメソッドが無い場合は
+     * パラメータ化テストなどの引数を持つメソッドを名前で探して選択する。
+     */
+    private static List<DiscoverySelector> methodSelectors(String junitTestMethodName) {
+        int sep = junitTestMethodName.indexOf('#');
+        if (sep > 0) {
+            String methodName = junitTestMethodName.substring(sep + 1);
+            try {
+                Class<?> testClass = Class.forName(junitTestMethodName.substring(0, sep));
+                if (ReflectionSupport.findMethod(testClass, methodName).isEmpty()) {
+                    List<Method> methods = ReflectionSupport.findMethods(testClass,
+                            m -> m.getName().equals(methodName), HierarchyTraversalMode.TOP_DOWN);
+                    if (!methods.isEmpty()) return methods.stream().map(m -> (DiscoverySelector) selectMethod(testClass, m)).toList();
+                }
+            } catch (ClassNotFoundException ignored) {
+                //選択時に JUnit が報告する
+            }
+        }
+        return List.of(selectMethod(junitTestMethodName));
+    }
+
     // log を StringBuilder / System.err / PrintWriter 等に繋げられるように
     private static void logLine(Appendable log, String s) throws IOException {
         if (log != null) log.append(s).append('\n');
@@ -3,14 +3,22 @@ package jisd.fl.infra.jvm;
 import jisd.fl.core.util.PropertyLoader;
 import jisd.fl.core.util.ToolPaths;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class JacocoTestExecServerLaunchSpecFactory {
     private JacocoTestExecServerLaunchSpecFactory() {}
     private static final String SERVER_MAIN = "jisd.fl.infra.jacoco.exec.JacocoTestExecServerMain";
+    //これを超える長さの includes はコマンドライン引数の上限に近づくため、パッケージ単位のパターンに縮約する
+    private static final int MAX_EXACT_INCLUDES_LENGTH = 64 * 1024;
     /**
      * 固定ポートで JaCoCo agent付きのテスト実行サーバJVMを起動するためのSpec
      */
@@ -27,7 +35,10 @@ public class JacocoTestExecServerLaunchSpecFactory {
         classPath.add(jacocoAgentJar);
 
         // -javaagent オプション（出力ファイルは不要なので output=none 推奨）
-        String agentOpt = "-javaagent:" + jacocoAgentJar + "=output=none,dumponexit=false,excludes=jisd/fl/*";
+        // JUnitやテストクラス、ライブラリにプローブを埋め込まないよう、計測対象を対象binのクラスに限定する
+        String agentOpt = "-javaagent:" + jacocoAgentJar + "=output=none,dumponexit=false,excludes=jisd.fl.*";
+        String includes = coverageIncludes(PropertyLoader.getTargetBinDir(), PropertyLoader.getAdditionalCoverageIncludes());
+        if (includes != null) agentOpt += ",includes=" + includes;
 
         //親が停止した際に子も停止させるための、親JVMのppid
         long ppid = ProcessHandle.current().pid();
@@ -40,4 +51,59 @@ public class JacocoTestExecServerLaunchSpecFactory {
                 ToolPaths.projectRoot()
         );
     }
+
+    /**
+     * 対象binに含まれるクラスだけを計測対象とする、JaCoCo agent の includes オプションの値を作る。
+     * トップレベルクラスごとに "a.b.Outer:a.b.Outer$*" とし、内部クラス・匿名クラスも含める。
+     * 対象binと同じパッケージにあるテストクラスを計装しないため、原則としてパッケージ単位のワイルドカードは使わない。
+     *
+     * @param targetBinDir 対象プロジェクトのクラスファイルのディレクトリ
+     * @param additional 追加で計測対象とするパターン
+     * @return includes の値。対象binにクラスが無く、追加のパターンも無い場合は null (全クラスを計測する)
+     */
+    static String coverageIncludes(Path targetBinDir, List<String> additional) {
+        Set<String> topLevelClasses = new TreeSet<>();
+        if (Files.isDirectory(targetBinDir)) {
+            try (var s = Files.walk(targetBinDir)) {
+                s.filter(p -> p.toString().endsWith(".class"))
+                        .map(p -> targetBinDir.relativize(p).toString()
+                                .replace(File.separatorChar, '.')
+                                .replaceAll("\\.class$", ""))
+                        .filter(name -> !name.equals("module-info") && !name.endsWith(".package-info"))
+                        .map(name -> name.contains("$") ? name.substring(0, name.indexOf('$')) : name)
+                        .forEach(topLevelClasses::add);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to list target classes: " + targetBinDir, e);
+            }
+        }
+
+        List<String> patterns = new ArrayList<>();
+        for (String c : topLevelClasses) {
+            patterns.add(c);
+            patterns.add(c + "$*");
+        }
+        if (String.join(":", patterns).length() > MAX_EXACT_INCLUDES_LENGTH) {
+            patterns = packagePatterns(topLevelClasses);
+        }
+        patterns.addAll(additional);
+        return patterns.isEmpty() ? null : String.join(":", patterns);
+    }
+
+    /**
+     * パッケージ単位のパターンに縮約する。デフォルトパッケージのクラスはクラス単位のまま残す。
+     * この場合、同じパッケージのテストクラスも計装されるが、カバレッジの集計対象は対象binのクラスのみである。
+     */
+    private static List<String> packagePatterns(Set<String> topLevelClasses) {
+        Set<String> patterns = new TreeSet<>();
+        for (String c : topLevelClasses) {
+            int lastDot = c.lastIndexOf('.');
+            if (lastDot < 0) {
+                patterns.add(c);
+                patterns.add(c + "$*");
+            } else {
+                patterns.add(c.substring(0, lastDot) + ".*");
+            }
+        }
+        return new ArrayList<>(patterns);
+    }
 }
@@ -0,0 +1,127 @@
+package jisd.fl.infra.session;
+
+import jisd.fl.core.entity.ScoreJournal;
+import jisd.fl.core.entity.ScoreJournal.Operation;
+import jisd.fl.core.entity.ScoreJournal.ScoreDelta;
+import jisd.fl.core.entity.element.ClassElementName;
+import jisd.fl.core.entity.element.CodeElementIdentifier;
+import jisd.fl.core.entity.element.LineElementName;
+import jisd.fl.core.entity.element.MethodElementName;
+import jisd.fl.core.entity.sbfl.Granularity;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ScoreJournal と、ランキングの作成に使った式の名前をファイルに保存する。
+ * カバレッジはテストのキャッシュ (TestCoverageCache) から復元するため、このファイルには疑惑値の変化だけを保存する。
+ *
+ * <pre>
+ * file    := int(MAGIC) int(VERSION) UTF(formula) int(appliedCount) int(operationCount) op*
+ * op      := UTF(label) byte(granularity) int(deltaCount) delta*
+ * delta   := element double(before) double(after)
+ * element := byte(CLASS) UTF(fqClassName) | byte(METHOD) UTF(fqMethodName) | byte(LINE) UTF(fqMethodName) int(line)
+ * </pre>
+ */
+public final class ScoreJournalFile {
+    private static final int MAGIC = 0x46465347; // "FFSG"
+    private static final int VERSION = 1;
+
+    private static final byte CLASS = 0;
+    private static final byte METHOD = 1;
+    private static final byte LINE = 2;
+
+    private ScoreJournalFile() {}
+
+    /**
+     * @param formula 操作を記録したランキングの式の名前
+     */
+    public record Saved(String formula, ScoreJournal journal) {}
+
+    /**
+     * 書き込み中に中断しても既存のファイルを壊さないよう、一時ファイルに書いてから置き換える。
+     */
+    public static void save(Path file, String formula, ScoreJournal journal) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            List<Operation> operations = journal.operations();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(formula);
+            out.writeInt(journal.appliedCount());
+            out.writeInt(operations.size());
+            for (Operation op : operations) {
+                out.writeUTF(op.label());
+                out.writeByte(op.granularity().ordinal());
+                out.writeInt(op.deltas().size());
+                for (ScoreDelta delta : op.deltas()) {
+                    writeElement(out, delta.element());
+                    out.writeDouble(delta.before());
+                    out.writeDouble(delta.after());
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static Saved load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not a score journal file: " + file);
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported score journal version " + version + ": " + file);
+            String formula = in.readUTF();
+            int applied = in.readInt();
+            int operationCount = in.readInt();
+            List<Operation> operations = new ArrayList<>(operationCount);
+            for (int i = 0; i < operationCount; i++) {
+                String label = in.readUTF();
+                Granularity granularity = Granularity.values()[in.readByte()];
+                int deltaCount = in.readInt();
+                List<ScoreDelta> deltas = new ArrayList<>(deltaCount);
+                for (int j = 0; j < deltaCount; j++) {
+                    deltas.add(new ScoreDelta(readElement(in), in.readDouble(), in.readDouble()));
+                }
+                operations.add(new Operation(label, granularity, deltas));
+            }
+            return new Saved(formula, new ScoreJournal(operations, applied));
+        }
+    }
+
+    private static void writeElement(DataOutputStream out, CodeElementIdentifier<?> element) throws IOException {
+        switch (element) {
+            case LineElementName line -> {
+                out.writeByte(LINE);
+                out.writeUTF(line.methodElementName.fullyQualifiedName());
+                out.writeInt(line.line);
+            }
+            case MethodElementName method -> {
+                out.writeByte(METHOD);
+                out.writeUTF(method.fullyQualifiedName());
+            }
+            case ClassElementName cls -> {
+                out.writeByte(CLASS);
+                out.writeUTF(cls.fullyQualifiedName());
+            }
+            default -> throw new IllegalArgumentException("Unknown element type: " + element.getClass());
+        }
+    }
+
+    private static CodeElementIdentifier<?> readElement(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        return switch (kind) {
+            case LINE -> new LineElementName(in.readUTF(), in.readInt());
+            case METHOD -> new MethodElementName(in.readUTF());
+            case CLASS -> new ClassElementName(in.readUTF());
+            default -> throw new IOException("Unknown element kind: " + kind);
+        };
+    }
+}
@@ -6,8 +6,6 @@ import jisd.fl.core.entity.FLRankingElement;
 import java.util.ArrayList;
 import java.util.List;
 
-import static java.lang.Math.min;
-
 public class FLRankingPresenter {
     private final FLRanking ranking;
     public FLRankingPresenter(FLRanking ranking){
@@ -26,12 +24,13 @@ public class FLRankingPresenter {
     }
 
     public void printFLResults(int top){
-        ranking.sort();
+        //ランキングは常に順序を保っているため、表示する分だけを取り出す
+        List<FLRankingElement> elements = ranking.top(top);
         List<String> shortClassNames = new ArrayList<>();
         List<String> shortMethodNames = new ArrayList<>();
-        for(int i = 0; i < min(top, ranking.getSize()); i++){
+        for(FLRankingElement element : elements){
             shortClassNames.add("---");
-            shortMethodNames.add(ranking.at(i).getCodeElementName().compressedName());
+            shortMethodNames.add(element.getCodeElementName().compressedName());
         }
 
         int classLength = shortClassNames.stream().map(String::length).max(Integer::compareTo).get();
@@ -47,15 +46,15 @@ public class FLRankingPresenter {
         System.out.println(header);
         System.out.println(partition);
         int previousRank = 1;
-        for(int i = 0; i < min(top, ranking.getSize()); i++){
-            FLRankingElement element = ranking.at(i);
+        for(int i = 0; i < elements.size(); i++){
+            FLRankingElement element = elements.get(i);
             //同率を考慮する
             int rank = 0;
             if(i == 0) {
                 rank = i+1;
             }
             else {
-                if(element.compareTo(ranking.at(i-1)) == 0){
+                if(element.compareTo(elements.get(i-1)) == 0){
                     rank = previousRank;
                 }
                 else {
@@ -0,0 +1,25 @@
+package jisd.fl.ranking;
+
+import jisd.fl.core.entity.FLRanking;
+
+/**
+ * カバレッジの計測中に作成した途中のランキングを受け取る。
+ */
+@FunctionalInterface
+public interface ProvisionalRankingListener {
+    /**
+     * @param ranking 実行済みのテストのカバレッジから作成したランキング。以降の計測で変更されないため保持してよい
+     * @param testsDone 実行済みのテスト数
+     * @param testsTotal テストクラスのテスト数
+     * @return false の場合は残りのテストを実行せず、この時点のカバレッジで計測を終える
+     */
+    boolean onRanking(FLRanking ranking, int testsDone, int testsTotal);
+
+    /**
+     * {@link #onRanking} が false を返し、残りのテストを実行せずに計測を終えたときに呼ばれる。
+     *
+     * @param testsDone 実行済みのテスト数
+     * @param testsTotal テストクラスのテスト数
+     */
+    default void onStopped(int testsDone, int testsTotal) {}
+}
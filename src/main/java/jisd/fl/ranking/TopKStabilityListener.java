@@ -0,0 +1,41 @@
+package jisd.fl.ranking;
+
+import jisd.fl.core.entity.FLRanking;
+import jisd.fl.core.entity.FLRankingElement;
+import jisd.fl.core.entity.element.CodeElementIdentifier;
+
+import java.util.List;
+
+/**
+ * 途中のランキングの上位 k 件 (要素とその順序) が、続けて stableCount 回変わらなかった時点で計測を打ち切る。
+ * 途中のランキングは delegate にも渡す。delegate が false を返した場合もそこで打ち切る。
+ */
+public class TopKStabilityListener implements ProvisionalRankingListener {
+    private final int k;
+    private final int stableCount;
+    private final ProvisionalRankingListener delegate;
+    private List<CodeElementIdentifier> previousTop = List.of();
+    //previousTop が変わらなかった回数
+    private int unchanged = 0;
+
+    public TopKStabilityListener(int k, int stableCount, ProvisionalRankingListener delegate) {
+        if (k <= 0 || stableCount <= 0) throw new IllegalArgumentException("k and stableCount must be positive");
+        this.k = k;
+        this.stableCount = stableCount;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean onRanking(FLRanking ranking, int testsDone, int testsTotal) {
+        if (!delegate.onRanking(ranking, testsDone, testsTotal)) return false;
+        List<CodeElementIdentifier> top = ranking.top(k).stream().map(FLRankingElement::getCodeElementName).toList();
+        unchanged = top.equals(previousTop) ? unchanged + 1 : 0;
+        previousTop = top;
+        return unchanged < stableCount;
+    }
+
+    @Override
+    public void onStopped(int testsDone, int testsTotal) {
+        delegate.onStopped(testsDone, testsTotal);
+    }
+}
@@ -1,27 +1,107 @@
 package jisd.fl.usecase;
 
+import jisd.fl.core.entity.coverage.CompressedBitSet;
 import jisd.fl.core.entity.element.ClassElementName;
 import jisd.fl.core.util.PropertyLoader;
 import jisd.fl.infra.jacoco.ClassFileCache;
+import jisd.fl.infra.jacoco.ClassProbeIndex;
+import jisd.fl.infra.jacoco.OffHeapProjectSbflCoverage;
 import jisd.fl.infra.jacoco.ProjectSbflCoverage;
+import jisd.fl.infra.jacoco.TestCoverageCache;
 import jisd.fl.infra.jacoco.exec.JacocoTestExecClient;
-import jisd.fl.infra.jacoco.exec.JacocoTestExecServerHandle;
+import jisd.fl.infra.jacoco.exec.JacocoTestExecClient.TestExecReplyHandler;
+import jisd.fl.infra.jacoco.exec.JacocoTestExecSession;
 import jisd.fl.core.entity.element.MethodElementName;
-import org.jacoco.core.analysis.Analyzer;
-import org.jacoco.core.analysis.ICoverageVisitor;
 import org.jacoco.core.data.ExecutionData;
 import org.jacoco.core.data.ExecutionDataStore;
-import org.jacoco.core.tools.ExecFileLoader;
 
 import java.io.*;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CoverageAnalyzer {
     ProjectSbflCoverage coverage;
     ClassFileCache cache;
+    //クラスID -> プローブ対応表。クラスファイルはテスト間で変わらないため、クラスごとに一度だけ作成する。
+    private final Map<Long, ClassProbeIndex> probeIndexes = new ConcurrentHashMap<>();
+    //テスト実行サーバJVMの数。2以上の場合は並列にカバレッジを計測する。
+    private final int serverCount;
+    //並列実行時に1度にサーバへ送るテスト数。小さいほど他のワーカーがテストを奪いやすい。
+    private static final int PARALLEL_BATCH_SIZE = 8;
+    //analyzeOffHeap で保持するプローブ対応表の数
+    private static final int OFF_HEAP_PROBE_INDEX_CACHE_SIZE = 1024;
+    //true の場合、テストクラス全体を1回のJUnit実行で実行する (RUNCLASS)
+    private final boolean runPerClass;
+    //0より大きい場合、サーバとの共有メモリ(このバイト数のリング)経由でカバレッジデータを受け取る
+    private int sharedMemoryBytes = 0;
+    //null の場合は analyze のたびにサーバJVMを起動する
+    private final JacocoTestExecSession session;
+    //クライアントの設定を適用済みのセッション
+    private JacocoTestExecSession configuredSession;
+    //null の場合はキャッシュを使わず、毎回全てのテストを実行する
+    private TestCoverageCache coverageCache;
+    private Path coverageCacheDir;
+    //テストメソッド -> そのテストのカバレッジ。null の場合は記録しない。
+    private Map<MethodElementName, TestCoverage> perTestCoverage;
+    //true の場合、結果とカバレッジが一致するテストは1度だけ集計し、残りはテスト数をまとめて反映する
+    private boolean deduplicateTests = true;
+    //カバレッジのシグネチャ -> そのシグネチャを持つテストのグループ
+    private final Map<CoverageSignature, SignatureGroup> signatureGroups = new ConcurrentHashMap<>();
+    //true の場合、キャッシュが無効になったテストは以前のカバレッジが一致していたグループごとに代表だけを実行する
+    private boolean reducedRerun = false;
 
     public CoverageAnalyzer(){
-        this.coverage = new ProjectSbflCoverage();
+        this(1);
+    }
+
+    /**
+     * @param serverCount テスト実行サーバJVMの数。1の場合は単一のサーバで逐次実行する。
+     */
+    public CoverageAnalyzer(int serverCount){
+        this(serverCount, false);
+    }
+
+    /**
+     * @param serverCount テスト実行サーバJVMの数。1の場合は単一のサーバで逐次実行する。
+     * @param runPerClass true の場合、テストメソッドごとではなくテストクラスごとに1回のJUnit実行でテストを実行する。
+     *                    この場合は単一のサーバで実行し、serverCount は使用しない。
+     */
+    public CoverageAnalyzer(int serverCount, boolean runPerClass){
+        this(null, serverCount, runPerClass);
+    }
+
+    /**
+     * 起動済みのセッションのサーバJVMを使ってカバレッジを計測する。
+     * analyze のたびにサーバJVMを起動しないため、複数のテストクラスを計測する場合に高速に動作する。
+     * セッションの管理 (close) は呼び出し側で行う。
+     *
+     * @param session テスト実行サーバのセッション。サーバ数が2以上の場合は並列に計測する。
+     * @param runPerClass true の場合、テストクラスごとに1回のJUnit実行でテストを実行する。この場合は先頭のサーバのみ使用する。
+     */
+    public CoverageAnalyzer(JacocoTestExecSession session, boolean runPerClass){
+        this(session, session.size(), runPerClass);
+    }
+
+    private CoverageAnalyzer(JacocoTestExecSession session, int serverCount, boolean runPerClass){
+        if(serverCount <= 0) throw new IllegalArgumentException("serverCount must be positive: " + serverCount);
+        this.session = session;
+        this.serverCount = serverCount;
+        this.runPerClass = runPerClass;
+        //複数のサーバの結果を並列に解析する場合は、ロックせずに共有できるカバレッジを使う
+        this.coverage = (serverCount > 1 && !runPerClass) ? ProjectSbflCoverage.concurrent() : new ProjectSbflCoverage();
         try {
             //カバレッジ取得対象のクラスファイルをロード
             this.cache = ClassFileCache.loadFromClassesDir(PropertyLoader.getTargetBinDir());
@@ -30,43 +110,609 @@ public class CoverageAnalyzer {
         }
     }
 
+    /**
+     * カバレッジデータの受け取りに、サーバと共有するメモリマップトファイルを使用する。
+     * テスト数やクラス数の多いプロジェクトで、ソケット経由のコピーを省くために使用する。
+     *
+     * @param ringBytes 共有するリングのバイト数。0の場合はソケットで受け取る。
+     */
+    public void useSharedMemoryTransport(int ringBytes){
+        if(ringBytes < 0) throw new IllegalArgumentException("ringBytes must not be negative: " + ringBytes);
+        this.sharedMemoryBytes = ringBytes;
+        this.configuredSession = null;
+    }
+
+    /**
+     * テスト結果とプローブ配列をディスクにキャッシュし、クラスファイルが変わっていないテストの再実行を省く。
+     *
+     * @param cacheDir キャッシュファイルを置くディレクトリ
+     */
+    public void useCoverageCache(Path cacheDir){
+        this.coverageCacheDir = cacheDir;
+        this.coverageCache = new TestCoverageCache(cacheDir, cache, PropertyLoader.getTestBinDir());
+    }
+
+    /**
+     * 結果とカバレッジが一致するテストをまとめて集計するかを設定する。デフォルトは true。
+     * 集計結果は変わらないため、通常は無効にする必要はない。
+     * カバレッジ行列を記録する場合はテストごとに集計する必要があるため、この設定に関わらずまとめない。
+     */
+    public void deduplicateTests(boolean enabled){
+        this.deduplicateTests = enabled;
+    }
+
+    /**
+     * キャッシュが無効になったテストのうち、以前の実行で結果とカバレッジが一致していたものは代表の1テストだけを実行し、
+     * 残りのテストには代表の結果を使う。繰り返し fault localization を行う場合に、再実行するテストを減らすために使用する。
+     * 変更後も同じグループのテストが同じ箇所を実行するとみなすため、集計結果は全てのテストを実行した場合と異なることがある。
+     * {@link #useCoverageCache(Path)} と併せて使用する。
+     */
+    public void useReducedRerun(boolean enabled){
+        this.reducedRerun = enabled;
+    }
+
+    /**
+     * テストごとに、どのクラスのどのプローブを実行したかを保持する。
+     * クラスファイルの変更後に {@link #reanalyze(Set)} で影響を受けるテストだけを再実行するために使用する。
+     * analyze より前に呼び出す必要がある。
+     */
+    public void recordPerTestCoverage(){
+        if(perTestCoverage == null) perTestCoverage = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * テストごとに実行した行・メソッドを、クラスごとのカバレッジ行列 (ClassSbflCoverage#lineMatrix など) に保持する。
+     * analyze より前に呼び出す必要がある。
+     */
+    public void recordTestMatrix(){
+        coverage.recordTestMatrix();
+    }
+
+    /**
+     * 変更されたクラスを実行していたテストと、それらのテストが実行したクラスを返す。
+     *
+     * @param changedClasses 変更されたクラスの内部名 (e.g. org/foo/Bar)
+     */
+    public Set<ClassElementName> classesAffectedBy(Set<String> changedClasses){
+        requirePerTestCoverage();
+        Set<ClassElementName> affected = new HashSet<>();
+        for(String name : changedClasses) affected.add(ProjectSbflCoverage.toClassElementName(name));
+        for(MethodElementName test : testsCovering(changedClasses)){
+            for(ClassProbeIndex index : perTestCoverage.get(test).indexes()){
+                affected.add(ProjectSbflCoverage.toClassElementName(index.internalName()));
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * クラスファイルの変更を反映する。変更されたクラスを実行していたテストだけを再実行し、
+     * それらのテストの以前の結果を取り消してから新しい結果を集計する。
+     * 変更されたクラスは行やプローブの構造が変わっているため、そのクラスのカバレッジは破棄して集計し直す。
+     * 変更前に実行していなかったクラスの変更は、テストの結果に影響しないとみなす。
+     *
+     * @param changedClasses 変更されたクラスの内部名 (e.g. org/foo/Bar)
+     * @return カウントが変化した可能性のあるクラス
+     */
+    public Set<ClassElementName> reanalyze(Set<String> changedClasses){
+        requirePerTestCoverage();
+        Set<ClassElementName> updated = classesAffectedBy(changedClasses);
+        List<MethodElementName> affectedTests = testsCovering(changedClasses);
+
+        try {
+            this.cache = ClassFileCache.loadFromClassesDir(PropertyLoader.getTargetBinDir());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to load class files from target directory: " + e.getMessage(), e);
+        }
+        if(coverageCacheDir != null) useCoverageCache(coverageCacheDir);
+        probeIndexes.values().removeIf(index -> changedClasses.contains(index.internalName()));
+
+        //変更前のクラスのプローブ対応表を参照しているため、まとめて集計するためのグループも破棄する
+        signatureGroups.clear();
+        synchronized (coverage) {
+            for(String name : changedClasses) coverage.remove(ProjectSbflCoverage.toClassElementName(name));
+            for(MethodElementName test : affectedTests){
+                TestCoverage previous = perTestCoverage.remove(test);
+                for(int i = 0; i < previous.indexes().size(); i++){
+                    ClassProbeIndex index = previous.indexes().get(i);
+                    if(changedClasses.contains(index.internalName())) continue;
+                    coverage.retract(test, index, previous.probes().get(i).toBooleans(index.probeCount()), previous.passed());
+                }
+            }
+        }
+        if(affectedTests.isEmpty()) return updated;
+
+        try {
+            //サーバJVMは変更前のクラスを読み込んでいるため、起動し直してから再実行する
+            if(session != null) session.restart();
+            withSession(s -> {
+                configure(s);
+                runTestMethods(s, affectedTests, this::acceptReply);
+                return null;
+            });
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            flushRepeatedTests();
+        }
+        for(MethodElementName test : affectedTests){
+            TestCoverage rerun = perTestCoverage.get(test);
+            if(rerun == null) continue;
+            for(ClassProbeIndex index : rerun.indexes()){
+                updated.add(ProjectSbflCoverage.toClassElementName(index.internalName()));
+            }
+        }
+        return updated;
+    }
+
+    private List<MethodElementName> testsCovering(Set<String> changedClasses){
+        List<MethodElementName> tests = new ArrayList<>();
+        for(Map.Entry<MethodElementName, TestCoverage> e : perTestCoverage.entrySet()){
+            for(ClassProbeIndex index : e.getValue().indexes()){
+                if(changedClasses.contains(index.internalName())){
+                    tests.add(e.getKey());
+                    break;
+                }
+            }
+        }
+        return tests;
+    }
+
+    private void requirePerTestCoverage(){
+        if(perTestCoverage == null) throw new IllegalStateException("per-test coverage is not recorded. call recordPerTestCoverage() before analyze().");
+    }
+
     public ProjectSbflCoverage analyze(ClassElementName testClassName){
-        try (var handle = JacocoTestExecServerHandle.startDefault(20000)) {
-            JacocoTestExecClient client = handle.client();
-            List<MethodElementName> testMethodNames = client.listTestMethods(testClassName);
-            if(testMethodNames.isEmpty()) throw new RuntimeException("test method is not found. [CLASS] " + testMethodNames);
-
-            for(MethodElementName testMethodName : testMethodNames) {
-                JacocoTestExecClient.TestExecReply reply = client.runTest(testMethodName);
-                byte[] coverageData = reply.execBytes();
-                boolean passed = reply.passed();
-
-                ExecutionDataStore execData = execDataFromBytes(coverageData);
-                analyzeExecData(execData, (cc) -> coverage.accept(cc, passed));
+        try {
+            if(coverageCache != null) analyzeWithCache(testClassName);
+            else withSession(s -> analyze(testClassName, s, this::acceptReply));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            flushRepeatedTests();
+        }
+        return coverage;
+    }
+
+    /**
+     * テストを少しずつ実行し、途中のカバレッジを listener に渡しながら解析する。
+     * failingTests を先に実行してから1度通知し、その後は残りのテストを refreshInterval 個実行するごとに通知する。
+     * 失敗テストが揃った時点で ef が確定するため、少数の成功テストを実行した段階でもおおよそのランキングが得られる。
+     * listener が false を返した場合は残りのテストを実行せず、それまでのカバレッジを返す。
+     * キャッシュは使わず、全てのテストを実行する。
+     *
+     * @param failingTests 先に実行するテスト (失敗することが分かっているテスト)。テストクラスに無いものは無視する
+     * @param refreshInterval 通知の間に実行するテスト数
+     */
+    public ProjectSbflCoverage analyzeProgressively(ClassElementName testClassName, Collection<MethodElementName> failingTests,
+                                                    int refreshInterval, ProgressListener listener){
+        if(refreshInterval <= 0) throw new IllegalArgumentException("refreshInterval must be positive: " + refreshInterval);
+        try {
+            withSession(s -> {
+                configure(s);
+                List<MethodElementName> testMethodNames = s.execute(0, client -> client.listTestMethods(testClassName));
+                if(testMethodNames.isEmpty()) throw new RuntimeException("test method is not found. [CLASS] " + testClassName);
+                Set<MethodElementName> failing = new HashSet<>(failingTests);
+                List<MethodElementName> first = testMethodNames.stream().filter(failing::contains).toList();
+                List<MethodElementName> rest = testMethodNames.stream().filter(m -> !failing.contains(m)).toList();
+
+                int done = 0;
+                if(!first.isEmpty()) {
+                    runTestMethods(s, first, this::acceptReply);
+                    done = first.size();
+                    if(!notifyProgress(listener, done, testMethodNames.size())) return coverage;
+                }
+                for(int from = 0; from < rest.size(); from += refreshInterval) {
+                    List<MethodElementName> chunk = rest.subList(from, Math.min(from + refreshInterval, rest.size()));
+                    runTestMethods(s, chunk, this::acceptReply);
+                    done += chunk.size();
+                    //最後のチャンクの後は analyze の結果として返すため通知しない
+                    if(done < testMethodNames.size() && !notifyProgress(listener, done, testMethodNames.size())) return coverage;
+                }
+                return coverage;
+            });
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            flushRepeatedTests();
+        }
+        return coverage;
+    }
+
+    private boolean notifyProgress(ProgressListener listener, int done, int total){
+        //保留しているテストを反映してから途中の結果を渡す
+        flushRepeatedTests();
+        boolean proceed = listener.onProgress(coverage, done, total);
+        if(!proceed) listener.onStopped(done, total);
+        return proceed;
+    }
+
+    /**
+     * {@link #analyzeProgressively} の途中経過を受け取る。
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+        /**
+         * @param coverage 実行済みのテストのカバレッジ。呼び出しの間だけ参照し、保持しないこと (以降のテストで更新される)
+         * @param testsDone 実行済みのテスト数
+         * @param testsTotal テストクラスのテスト数
+         * @return false の場合は残りのテストを実行しない
+         */
+        boolean onProgress(ProjectSbflCoverage coverage, int testsDone, int testsTotal);
+
+        /**
+         * {@link #onProgress} が false を返し、残りのテストを実行せずに計測を終えたときに呼ばれる。
+         *
+         * @param testsDone 実行済みのテスト数
+         * @param testsTotal テストクラスのテスト数
+         */
+        default void onStopped(int testsDone, int testsTotal) {}
+    }
+
+    /**
+     * カバレッジを {@link OffHeapProjectSbflCoverage} (ヒープ外の列) に集計する。
+     * クラス数の非常に多いプロジェクトで、クラスごとのオブジェクトによるメモリとGCの負荷を避けるために使用する。
+     * キャッシュ、テストごとのカバレッジの記録、同じカバレッジのテストのまとめての集計は行わない。
+     * プローブ対応表は全クラス分を保持せず、最近使った {@value #OFF_HEAP_PROBE_INDEX_CACHE_SIZE} クラス分だけを保持する。
+     */
+    public OffHeapProjectSbflCoverage analyzeOffHeap(ClassElementName testClassName){
+        OffHeapProjectSbflCoverage offHeap = new OffHeapProjectSbflCoverage();
+        //クラスID -> プローブ対応表。自身をロックして読み書きする
+        Map<Long, ClassProbeIndex> recentIndexes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, ClassProbeIndex> eldest) {
+                return size() > OFF_HEAP_PROBE_INDEX_CACHE_SIZE;
+            }
+        };
+        TestExecReplyHandler handler = (testMethodName, reply) -> {
+            List<ClassProbeIndex> indexes = new ArrayList<>();
+            List<boolean[]> probes = new ArrayList<>();
+            for(ExecutionData data : reply.executionData().getContents()) {
+                ClassProbeIndex index = recentProbeIndexOf(data, recentIndexes);
+                if(index == null) continue;
+                indexes.add(index);
+                probes.add(data.getProbes());
             }
+            synchronized (offHeap) {
+                for(int i = 0; i < indexes.size(); i++) offHeap.accept(indexes.get(i), probes.get(i), reply.passed());
+            }
+        };
+        try {
+            withSession(s -> analyze(testClassName, s, handler));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        return offHeap;
+    }
+
+    /**
+     * キャッシュが有効なテストはキャッシュから、それ以外のテストは実行して解析する。
+     * キャッシュは1テストずつ読みながら集計するため、テストクラス全体のプローブ配列をメモリに展開しない。
+     * 全てのテストのキャッシュが有効な場合は、テスト実行サーバを起動しない。
+     */
+    private ProjectSbflCoverage analyzeWithCache(ClassElementName testClassName) throws IOException {
+        try (TestCoverageCache.Update update = coverageCache.update(testClassName)) {
+            Set<MethodElementName> replayed = new HashSet<>();
+            List<MethodElementName> stale = update.replay((testMethodName, passed, data) -> {
+                replayed.add(testMethodName);
+                acceptReply(testMethodName, new JacocoTestExecClient.TestExecReply(passed, data));
+            });
+
+            TestExecReplyHandler recordingHandler = (testMethodName, reply) -> {
+                if(replayed.contains(testMethodName)) return;
+                acceptReply(testMethodName, reply);
+                update.record(testMethodName, reply.passed(), reply.executionData());
+            };
+            if(stale == null) {
+                //テストクラスが変更された、またはキャッシュが無いため、キャッシュから読めたテスト以外を全て実行する
+                withSession(s -> analyze(testClassName, s, recordingHandler));
+            } else if(!stale.isEmpty()) {
+                List<MethodElementName> toRun = stale;
+                TestExecReplyHandler handler = recordingHandler;
+                if(reducedRerun) {
+                    //代表の結果をグループの他のテストにも使う
+                    Map<MethodElementName, List<MethodElementName>> groups = new ConcurrentHashMap<>();
+                    for(List<MethodElementName> group : update.staleGroups()) groups.put(group.get(0), group);
+                    toRun = new ArrayList<>(groups.keySet());
+                    handler = (testMethodName, reply) -> {
+                        for(MethodElementName m : groups.getOrDefault(testMethodName, List.of(testMethodName))) {
+                            recordingHandler.handle(m, reply);
+                        }
+                    };
+                }
+                List<MethodElementName> tests = toRun;
+                TestExecReplyHandler h = handler;
+                withSession(s -> {
+                    configure(s);
+                    runTestMethods(s, tests, h);
+                    return coverage;
+                });
+            }
+            update.commit();
+        }
+        return coverage;
+    }
+
+    /**
+     * セッションが渡されていればそれを使い、そうでなければこの呼び出しの間だけサーバJVMを起動する。
+     */
+    private <T> T withSession(SessionTask<T> task) throws IOException {
+        if(session != null) return task.run(session);
+        try (var owned = JacocoTestExecSession.open(runPerClass ? 1 : serverCount)) {
+            return task.run(owned);
+        }
+    }
+
+    private ProjectSbflCoverage analyze(ClassElementName testClassName, JacocoTestExecSession session, TestExecReplyHandler handler) throws IOException {
+        configure(session);
+        if(runPerClass) return analyzePerClass(testClassName, session, handler);
+
+        List<MethodElementName> testMethodNames = session.execute(0, client -> client.listTestMethods(testClassName));
+        if(testMethodNames.isEmpty()) throw new RuntimeException("test method is not found. [CLASS] " + testMethodNames);
+
+        runTestMethods(session, testMethodNames, handler);
+        return coverage;
+    }
+
+    /**
+     * テストクラス全体を1回のJUnit実行で実行し、テストの終了ごとに送られるカバレッジを解析する。
+     * テストメソッドごとに Launcher の生成とテストの探索を行わないため、テスト数の多いクラスで高速に動作する。
+     * サーバが異常終了して再実行した場合、解析済みのテストの結果は読み飛ばす。
+     */
+    private ProjectSbflCoverage analyzePerClass(ClassElementName testClassName, JacocoTestExecSession session, TestExecReplyHandler handler) throws IOException {
+        Set<MethodElementName> accepted = new HashSet<>();
+        session.execute(0, client -> client.runTestClass(testClassName, (testMethodName, reply) -> {
+            if(accepted.add(testMethodName)) handler.handle(testMethodName, reply);
+        }));
+        if(accepted.isEmpty()) throw new RuntimeException("test method is not found. [CLASS] " + testClassName);
         return coverage;
     }
 
-    private static ExecutionDataStore execDataFromBytes(byte[] execBytes) throws IOException {
-        ExecFileLoader loader = new ExecFileLoader();
-        try (InputStream in = new ByteArrayInputStream(execBytes)) {
-            loader.load(in);
+    /**
+     * テストメソッドを実行し、終了したテストから順に handler に渡す。
+     * サーバが2つ以上の場合は並列に実行するため、handler は複数のスレッドから呼ばれる。
+     */
+    private void runTestMethods(JacocoTestExecSession session, List<MethodElementName> testMethodNames, TestExecReplyHandler handler) throws IOException {
+        //サーバがテストを実行している間に、終了済みのテストを解析する
+        if(session.size() == 1) {
+            runTests(session, 0, testMethodNames, handler);
+            return;
         }
-        return loader.getExecutionDataStore();
+        runParallel(session, testMethodNames, handler);
     }
 
-    private void analyzeExecData(ExecutionDataStore executionData, ICoverageVisitor cv) throws IOException {
-        //jacocoによるテスト対象の解析
-        final Analyzer analyzer = new Analyzer(executionData, cv);
-        for(ExecutionData execData : executionData.getContents()) {
-            byte[] classBytes = cache.get(execData.getName());
-            if(classBytes != null) {
-                analyzer.analyzeClass(classBytes, execData.getName());
+    /**
+     * 複数のテスト実行サーバにテストメソッドを分配してカバレッジを計測する。
+     * 各テストの ep/ef への寄与は加算のみで集計の順序には依存しないため、各テストの結果とカバレッジが逐次実行と同じであれば計測結果も一致する。
+     * ただし、次の場合は逐次実行と一致しない。
+     * - static initializer のようにJVMごとに一度だけ実行されるコードは、逐次実行では全体で最初のテストに、
+     *   並列実行では各サーバでそれを最初に実行したテストに計上される。
+     *   そのクラスを実行したテストの数 (クラスごとの総数) も変わるため、そのクラスの要素の np/nf も変わる。
+     * - 他のテストが残した状態に依存するテストは、実行順やサーバの割り当てによって結果やカバレッジが変わる。
+     */
+    private void runParallel(JacocoTestExecSession session, List<MethodElementName> testMethodNames, TestExecReplyHandler handler) {
+        TestShards shards = new TestShards(testMethodNames, session.size());
+        ExecutorService workers = Executors.newFixedThreadPool(session.size(), r -> {
+            Thread t = new Thread(r, "faultfinder-coverage-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < session.size(); i++) {
+                final int worker = i;
+                futures.add(workers.submit(() -> {
+                    List<MethodElementName> batch;
+                    while (!(batch = shards.nextBatch(worker, PARALLEL_BATCH_SIZE)).isEmpty()) {
+                        runTests(session, worker, batch, handler);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
             }
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to collect coverage: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while collecting coverage", e);
+        } finally {
+            workers.shutdownNow();
         }
     }
-}
 
+    /**
+     * server 番目のサーバでテストメソッドを順に実行し、終了したテストから handler に渡す。
+     * サーバが異常終了して再実行した場合は、まだ結果を受け取っていないテストから再開する。
+     */
+    private void runTests(JacocoTestExecSession session, int server, List<MethodElementName> testMethodNames, TestExecReplyHandler handler) throws IOException {
+        int[] done = {0};
+        session.execute(server, client -> {
+            client.runTests(testMethodNames.subList(done[0], testMethodNames.size()), (testMethodName, reply) -> {
+                handler.handle(testMethodName, reply);
+                done[0]++;
+            });
+            return null;
+        });
+    }
+
+    private void configure(JacocoTestExecSession session) throws IOException {
+        if(configuredSession == session) return;
+        if(sharedMemoryBytes > 0) session.configureClients(client -> client.useSharedMemory(sharedMemoryBytes));
+        configuredSession = session;
+    }
+
+    /**
+     * 1テスト分の実行結果を解析し、カバレッジに反映する。
+     * プローブ対応表の作成はスレッドごとに行う。カバレッジが concurrent でない場合は、集計のみを排他的に行う。
+     */
+    private void acceptReply(MethodElementName testMethodName, JacocoTestExecClient.TestExecReply reply) throws IOException {
+        boolean passed = reply.passed();
+        List<ClassProbeIndex> indexes = new ArrayList<>();
+        List<boolean[]> probes = new ArrayList<>();
+        collectTargets(reply.executionData(), indexes, probes);
+
+        boolean deduplicate = deduplicateTests && coverage.testIds() == null;
+        List<CompressedBitSet> compressed = null;
+        if(deduplicate || perTestCoverage != null) {
+            compressed = new ArrayList<>(probes.size());
+            for(boolean[] p : probes) compressed.add(CompressedBitSet.fromBooleans(p));
+        }
+        if(perTestCoverage != null) perTestCoverage.put(testMethodName, new TestCoverage(passed, indexes, compressed));
+
+        if(deduplicate) {
+            List<Long> classIds = new ArrayList<>(indexes.size());
+            for(ClassProbeIndex index : indexes) classIds.add(index.classId());
+            SignatureGroup[] created = {null};
+            SignatureGroup group = signatureGroups.computeIfAbsent(new CoverageSignature(passed, classIds, compressed),
+                    sig -> created[0] = new SignatureGroup(indexes, probes));
+            if(group != created[0]) {
+                //同じシグネチャのテストは flushRepeatedTests でまとめて集計する
+                group.pending.incrementAndGet();
+                return;
+            }
+        }
+        if(coverage.isConcurrent()) {
+            acceptAll(testMethodName, indexes, probes, passed);
+            return;
+        }
+        synchronized (coverage) {
+            acceptAll(testMethodName, indexes, probes, passed);
+        }
+    }
+
+    private void acceptAll(MethodElementName testMethodName, List<ClassProbeIndex> indexes, List<boolean[]> probes, boolean passed){
+        for (int i = 0; i < indexes.size(); i++) {
+            coverage.accept(testMethodName, indexes.get(i), probes.get(i), passed);
+        }
+    }
+
+    /**
+     * 実行データのうちカバレッジ取得対象のクラスについて、プローブ対応表とプローブ配列を同じ添字で indexes と probes に追加する。
+     */
+    private void collectTargets(ExecutionDataStore execData, List<ClassProbeIndex> indexes, List<boolean[]> probes) throws IOException {
+        for(ExecutionData data : execData.getContents()) {
+            ClassProbeIndex index = probeIndexOf(data);
+            if(index == null) continue;
+            indexes.add(index);
+            probes.add(data.getProbes());
+        }
+    }
+
+    /**
+     * 既に集計したテストと結果・カバレッジが一致したため集計を保留しているテストを、グループごとにまとめてカバレッジに反映する。
+     */
+    private void flushRepeatedTests(){
+        synchronized (coverage) {
+            for(Map.Entry<CoverageSignature, SignatureGroup> e : signatureGroups.entrySet()){
+                SignatureGroup group = e.getValue();
+                int times = group.pending.getAndSet(0);
+                if(times == 0) continue;
+                for(int i = 0; i < group.indexes().size(); i++){
+                    coverage.acceptRepeated(group.indexes().get(i), group.probes().get(i), e.getKey().passed(), times);
+                }
+            }
+        }
+    }
+
+    /**
+     * 実行データに対応するクラスのプローブ対応表を返す。カバレッジ取得対象外のクラスの場合は null。
+     */
+    private ClassProbeIndex probeIndexOf(ExecutionData data) throws IOException {
+        byte[] classBytes = cache.get(data.getName());
+        if(classBytes == null) return null;
+        try {
+            return probeIndexes.computeIfAbsent(data.getId(), id -> {
+                try {
+                    return ClassProbeIndex.build(data, classBytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * {@link #probeIndexOf} と同じだが、対応表を recent に保持し、古いものは捨てる。
+     * 捨てたクラスが再び実行された場合は対応表を作り直す。
+     */
+    private ClassProbeIndex recentProbeIndexOf(ExecutionData data, Map<Long, ClassProbeIndex> recent) throws IOException {
+        byte[] classBytes = cache.get(data.getName());
+        if(classBytes == null) return null;
+        ClassProbeIndex index;
+        synchronized (recent) {
+            index = recent.get(data.getId());
+        }
+        if(index != null) return index;
+        //対応表の作成に時間がかかるため、他のスレッドを待たせないようにロックの外で作成する
+        index = ClassProbeIndex.build(data, classBytes);
+        synchronized (recent) {
+            recent.put(data.getId(), index);
+        }
+        return index;
+    }
+
+    /**
+     * 1テスト分のカバレッジ。indexes と probes は同じ添字で対応する。
+     * テスト数が多い場合に備え、プローブ配列は実行されたプローブの番号の圧縮ビット集合として保持する。
+     */
+    private record TestCoverage(boolean passed, List<ClassProbeIndex> indexes, List<CompressedBitSet> probes) {}
+
+    /**
+     * テストの結果と、実行したクラスごとのプローブ配列。これが一致するテストは同じ ep/ef の寄与を持つ。
+     */
+    private record CoverageSignature(boolean passed, List<Long> classIds, List<CompressedBitSet> probes) {}
+
+    /**
+     * 同じシグネチャを持つテストのグループ。最初のテストのプローブ配列と、集計を保留しているテスト数を保持する。
+     */
+    private record SignatureGroup(List<ClassProbeIndex> indexes, List<boolean[]> probes, AtomicInteger pending) {
+        SignatureGroup(List<ClassProbeIndex> indexes, List<boolean[]> probes) {
+            this(indexes, probes, new AtomicInteger());
+        }
+    }
+
+    @FunctionalInterface
+    private interface SessionTask<T> {
+        T run(JacocoTestExecSession session) throws IOException;
+    }
+
+    /**
+     * テストメソッドを連続した区間ごとにサーバ数分のキューへ振り分け、自分のキューが空になったワーカーは
+     * 他のワーカーのキューの末尾からテストを奪って実行する。
+     */
+    private static final class TestShards {
+        private final List<ConcurrentLinkedDeque<MethodElementName>> queues;
+
+        TestShards(List<MethodElementName> tests, int shards) {
+            queues = new ArrayList<>(shards);
+            for (int i = 0; i < shards; i++) queues.add(new ConcurrentLinkedDeque<>());
+            for (int i = 0; i < tests.size(); i++) queues.get((int) ((long) i * shards / tests.size())).addLast(tests.get(i));
+        }
+
+        MethodElementName next(int worker) {
+            MethodElementName own = queues.get(worker).pollFirst();
+            if (own != null) return own;
+            for (int i = 1; i < queues.size(); i++) {
+                MethodElementName stolen = queues.get((worker + i) % queues.size()).pollLast();
+                if (stolen != null) return stolen;
+            }
+            return null;
+        }
+
+        /**
+         * 最大 max 件のテストをまとめて取り出す。全てのキューが空の場合は空のリストを返す。
+         */
+        List<MethodElementName> nextBatch(int worker, int max) {
+            List<MethodElementName> batch = new ArrayList<>(max);
+            MethodElementName m;
+            while (batch.size() < max && (m = next(worker)) != null) {
+                batch.add(m);
+            }
+            return batch;
+        }
+    }
+}
@@ -1,18 +1,51 @@
 package jisd.fl.coverage;
 
 import io.github.cdimascio.dotenv.Dotenv;
+import jisd.fl.FaultFinder;
+import jisd.fl.core.entity.FLRanking;
+import jisd.fl.core.entity.FLRankingElement;
+import jisd.fl.core.entity.coverage.ClassCoverageEntry;
+import jisd.fl.core.entity.coverage.LineCoverageEntry;
+import jisd.fl.core.entity.coverage.MethodCoverageEntry;
+import jisd.fl.core.entity.coverage.SbflCounts;
+import jisd.fl.core.entity.coverage.SbflCountsCursor;
+import jisd.fl.core.entity.coverage.SbflCoverageSource;
 import jisd.fl.core.entity.element.ClassElementName;
+import jisd.fl.core.entity.element.CodeElementIdentifier;
+import jisd.fl.core.entity.element.MethodElementName;
+import jisd.fl.infra.jacoco.ClassFileCache;
 import jisd.fl.infra.jacoco.ProjectSbflCoverage;
+import jisd.fl.infra.jacoco.exec.JacocoTestExecClient;
+import jisd.fl.infra.jacoco.exec.JacocoTestExecSession;
 import jisd.fl.presenter.SbflCoveragePrinter;
 import jisd.fl.usecase.CoverageAnalyzer;
 import jisd.fl.core.entity.sbfl.Granularity;
+import jisd.fl.core.entity.sbfl.SuspiciousnessFormula;
 import jisd.fl.core.util.PropertyLoader;
+import org.jacoco.core.analysis.Analyzer;
+import org.jacoco.core.data.ExecutionData;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
 
 class CoverageAnalyzerTest {
     SbflCoveragePrinter printer = new SbflCoveragePrinter();
@@ -109,4 +142,223 @@ class CoverageAnalyzerTest {
             printer.print(cov, Granularity.CLASS);
         }
     }
-}
\ No newline at end of file
+
+    @Nested
+    class ParallelTest {
+        ClassElementName testClassName = new ClassElementName("org.sample.coverage.LoopTest");
+
+        //対象クラスに JVM ごとに一度だけ実行されるコードが無いため、サーバに分配しても逐次実行と同じ結果になる
+        @Test
+        void shardedRunMatchesSerialRun() {
+            ProjectSbflCoverage serial = new CoverageAnalyzer().analyze(testClassName);
+            ProjectSbflCoverage sharded = new CoverageAnalyzer(3).analyze(testClassName);
+            assertSameCoverage(serial, sharded);
+        }
+    }
+
+    /**
+     * 最適化した経路の集計結果が、{@link #baselineCoverage} と一致すること。
+     */
+    @Nested
+    class SameAsBaselineTest {
+        ClassElementName testClassName = new ClassElementName("org.sample.coverage.LoopTest");
+
+        //BATCH でテストをまとめて送っても、RUN で1つずつ実行した場合と同じ結果になる
+        @Test
+        void batchedRun() {
+            CoverageAnalyzer ca = new CoverageAnalyzer();
+            ca.deduplicateTests(false);
+            assertSameCoverage(baselineCoverage(testClassName), ca.analyze(testClassName));
+        }
+
+        //共有メモリで受け取っても、リングに収まらずソケットで受け取っても同じ結果になる
+        @Test
+        void sharedMemoryTransport() {
+            ProjectSbflCoverage baseline = baselineCoverage(testClassName);
+            for (int ringBytes : new int[]{1 << 20, 16}) {
+                CoverageAnalyzer ca = new CoverageAnalyzer();
+                ca.useSharedMemoryTransport(ringBytes);
+                assertSameCoverage(baseline, ca.analyze(testClassName));
+            }
+        }
+
+        //同じサーバJVMで複数のテストクラスを計測しても、再起動した後でも、クラスごとに起動した場合と同じ結果になる
+        @Test
+        void sharedSession() throws IOException {
+            ClassElementName other = new ClassElementName("org.sample.coverage.ConditionalTest");
+            try (JacocoTestExecSession session = JacocoTestExecSession.open(1)) {
+                assertSameCoverage(baselineCoverage(testClassName), new CoverageAnalyzer(session, false).analyze(testClassName));
+                assertSameCoverage(baselineCoverage(other), new CoverageAnalyzer(session, false).analyze(other));
+                session.restart();
+                assertSameCoverage(baselineCoverage(testClassName), new CoverageAnalyzer(session, false).analyze(testClassName));
+            }
+        }
+
+        //クラスファイルが変わっていなければ、変更を通知されたクラスのテストだけを再実行しても最初と同じ結果になる
+        @Test
+        void reanalyzeUnchangedClass() {
+            ClassElementName innerClassTest = new ClassElementName("org.sample.coverage.InnerClassTest");
+            CoverageAnalyzer ca = new CoverageAnalyzer();
+            ca.recordPerTestCoverage();
+            ProjectSbflCoverage cov = ca.analyze(innerClassTest);
+            //テストが実行したクラスのうち1つだけを変更したとみなし、他のクラスのカウントの取り消しと再集計も確かめる
+            String changed = cov.coveredClasses().findFirst().orElseThrow()
+                    .targetClass.fullyQualifiedName().replace('.', '/');
+
+            ca.reanalyze(Set.of(changed));
+            assertSameCoverage(baselineCoverage(innerClassTest), cov);
+        }
+
+        //結果とカバレッジが一致するテストをまとめて集計しても、1テストずつ集計した場合と同じ結果になる
+        @Test
+        void deduplicatedTests() {
+            ProjectSbflCoverage baseline = baselineCoverage(testClassName);
+            for (int serverCount : new int[]{1, 3}) {
+                CoverageAnalyzer ca = new CoverageAnalyzer(serverCount);
+                ca.deduplicateTests(true);
+                assertSameCoverage(baseline, ca.analyze(testClassName));
+            }
+        }
+
+        //ヒープ外の列に集計しても、同じ要素に同じカウントが得られる
+        @Test
+        void offHeapCoverage() {
+            assertSameCoverage(baselineCoverage(testClassName), new CoverageAnalyzer().analyzeOffHeap(testClassName));
+        }
+
+        //カーソルで読んだ要素とカウントが、エントリのストリームと一致する (ヒープ上・ヒープ外のどちらでも)
+        @Test
+        void countsCursor() {
+            ProjectSbflCoverage baseline = baselineCoverage(testClassName);
+            for (SbflCoverageSource source : List.of(baseline, new CoverageAnalyzer().analyzeOffHeap(testClassName))) {
+                for (boolean hideZeroElements : new boolean[]{false, true}) {
+                    assertEquals(countsOf(source.lineCoverageEntries(hideZeroElements), LineCoverageEntry::e, LineCoverageEntry::counts),
+                            cursorCountsOf(source, Granularity.LINE, hideZeroElements));
+                    assertEquals(countsOf(source.methodCoverageEntries(hideZeroElements), MethodCoverageEntry::e, MethodCoverageEntry::counts),
+                            cursorCountsOf(source, Granularity.METHOD, hideZeroElements));
+                    assertEquals(countsOf(source.classCoverageEntries(), ClassCoverageEntry::e, ClassCoverageEntry::counts),
+                            cursorCountsOf(source, Granularity.CLASS, hideZeroElements));
+                }
+            }
+        }
+
+        //1回の計測から後で作る各粒度のランキングが、要素ごとに疑惑値を計算した場合と一致する
+        @Test
+        void rankingsOfEveryGranularity() {
+            ProjectSbflCoverage baseline = baselineCoverage(testClassName);
+            FaultFinder ff = new FaultFinder(testClassName);
+            SuspiciousnessFormula formula = ff.getFormula();
+            Map<Granularity, Map<Object, Double>> expected = Map.of(
+                    Granularity.LINE, scoresOf(baseline.lineCoverageEntries(true), LineCoverageEntry::e, LineCoverageEntry::counts, formula),
+                    Granularity.METHOD, scoresOf(baseline.methodCoverageEntries(true), MethodCoverageEntry::e, MethodCoverageEntry::counts, formula),
+                    Granularity.CLASS, scoresOf(baseline.classCoverageEntries(), ClassCoverageEntry::e, ClassCoverageEntry::counts, formula));
+            //既定の粒度から順に切り替え、最後に戻す
+            for (Granularity g : List.of(Granularity.LINE, Granularity.CLASS, Granularity.METHOD, Granularity.LINE)) {
+                ff.setGranularity(g);
+                FLRanking ranking = ff.ranking(g);
+                Map<Object, Double> actual = new HashMap<>();
+                for (FLRankingElement e : ranking.top(ranking.getSize())) actual.put(e.getCodeElementName(), e.getSuspScore());
+                assertEquals(expected.get(g), actual, g.toString());
+            }
+        }
+
+        //途中経過を通知しながら最後まで実行すると、まとめて実行した場合と同じ結果になる
+        @Test
+        void progressiveRunToTheEnd() {
+            List<String> notified = new ArrayList<>();
+            ProjectSbflCoverage cov = new CoverageAnalyzer().analyzeProgressively(testClassName, List.of(), 2,
+                    new CoverageAnalyzer.ProgressListener() {
+                        @Override
+                        public boolean onProgress(ProjectSbflCoverage coverage, int testsDone, int testsTotal) {
+                            notified.add(testsDone + "/" + testsTotal);
+                            return true;
+                        }
+
+                        @Override
+                        public void onStopped(int testsDone, int testsTotal) {
+                            fail("stopped after " + testsDone + "/" + testsTotal);
+                        }
+                    });
+            assertSameCoverage(baselineCoverage(testClassName), cov);
+            assertFalse(notified.isEmpty());
+        }
+
+        //listener が false を返すと残りのテストを実行せず、そのことが onStopped で通知される
+        @Test
+        void progressiveRunStopsWhenAsked() {
+            List<String> stopped = new ArrayList<>();
+            int[] total = new int[1];
+            ProjectSbflCoverage cov = new CoverageAnalyzer().analyzeProgressively(testClassName, List.of(), 1,
+                    new CoverageAnalyzer.ProgressListener() {
+                        @Override
+                        public boolean onProgress(ProjectSbflCoverage coverage, int testsDone, int testsTotal) {
+                            total[0] = testsTotal;
+                            return false;
+                        }
+
+                        @Override
+                        public void onStopped(int testsDone, int testsTotal) {
+                            stopped.add(testsDone + "/" + testsTotal);
+                        }
+                    });
+            assertEquals(List.of("1/" + total[0]), stopped);
+            //1テストだけを集計している
+            assertTrue(cov.classCoverageEntries().allMatch(e -> e.counts().ep() + e.counts().ef() + e.counts().np() + e.counts().nf() == 1));
+        }
+    }
+
+    /**
+     * 各テストを RUN で1つずつ実行し、テストごとに Analyzer でクラスファイルを解析して集計する (最適化前の方法)。
+     */
+    static ProjectSbflCoverage baselineCoverage(ClassElementName testClassName) {
+        ProjectSbflCoverage coverage = new ProjectSbflCoverage();
+        try (JacocoTestExecSession session = JacocoTestExecSession.open(1)) {
+            ClassFileCache classes = ClassFileCache.loadFromClassesDir(PropertyLoader.getTargetBinDir());
+            session.execute(0, client -> {
+                for (MethodElementName test : client.listTestMethods(testClassName)) {
+                    JacocoTestExecClient.TestExecReply reply = client.runTest(test);
+                    Analyzer analyzer = new Analyzer(reply.executionData(), cc -> coverage.accept(cc, reply.passed()));
+                    for (ExecutionData data : reply.executionData().getContents()) {
+                        byte[] classBytes = classes.get(data.getName());
+                        if (classBytes != null) analyzer.analyzeClass(classBytes, data.getName());
+                    }
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return coverage;
+    }
+
+    /**
+     * 行・メソッド・クラスのすべての要素の ep/ef/np/nf が一致すること。
+     */
+    static void assertSameCoverage(SbflCoverageSource expected, SbflCoverageSource actual) {
+        assertEquals(countsOf(expected.lineCoverageEntries(false), LineCoverageEntry::e, LineCoverageEntry::counts),
+                countsOf(actual.lineCoverageEntries(false), LineCoverageEntry::e, LineCoverageEntry::counts));
+        assertEquals(countsOf(expected.methodCoverageEntries(false), MethodCoverageEntry::e, MethodCoverageEntry::counts),
+                countsOf(actual.methodCoverageEntries(false), MethodCoverageEntry::e, MethodCoverageEntry::counts));
+        assertEquals(countsOf(expected.classCoverageEntries(), ClassCoverageEntry::e, ClassCoverageEntry::counts),
+                countsOf(actual.classCoverageEntries(), ClassCoverageEntry::e, ClassCoverageEntry::counts));
+    }
+
+    private static Map<Object, SbflCounts> cursorCountsOf(SbflCoverageSource source, Granularity granularity, boolean hideZeroElements) {
+        Map<Object, SbflCounts> counts = new HashMap<>();
+        SbflCountsCursor<? extends CodeElementIdentifier<?>> cursor = source.countsCursor(granularity, hideZeroElements);
+        while (cursor.next()) {
+            SbflCounts c = new SbflCounts(cursor.ep(), cursor.ef(), cursor.np(), cursor.nf());
+            assertNull(counts.put(cursor.element(), c), "read twice: " + cursor.element());
+        }
+        return counts;
+    }
+
+    private static <T> Map<Object, Double> scoresOf(Stream<T> entries, Function<T, ?> element, Function<T, SbflCounts> counts,
+                                                    SuspiciousnessFormula formula) {
+        return entries.collect(Collectors.toMap(element, e -> formula.calc(counts.apply(e))));
+    }
+
+    private static <T> Map<Object, SbflCounts> countsOf(Stream<T> entries, Function<T, ?> element, Function<T, SbflCounts> counts) {
+        return entries.collect(Collectors.toMap(element, counts));
+    }
+}
@@ -0,0 +1,133 @@
+package jisd.fl.coverage;
+
+import jisd.fl.infra.jacoco.exec.SparseCoverageDecoder;
+import jisd.fl.infra.jacoco.exec.SparseCoverageEncoder;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataReader;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.jacoco.core.data.ExecutionDataWriter;
+import org.jacoco.core.data.SessionInfo;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SparseCoverageCodecTest {
+    SparseCoverageEncoder encoder = new SparseCoverageEncoder();
+    SparseCoverageDecoder decoder = new SparseCoverageDecoder();
+
+    @Test
+    void roundTripKeepsAllClasses() throws IOException {
+        boolean[] runs = new boolean[100];
+        for (int i = 10; i < 40; i++) runs[i] = true;
+        boolean[] scattered = new boolean[20];
+        for (int i = 0; i < scattered.length; i += 2) scattered[i] = true;
+
+        byte[] exec = concat(
+                execBytes(new ExecutionData(1L, "org/sample/Runs", runs),
+                        new ExecutionData(2L, "org/sample/Scattered", scattered)),
+                //ExecutionDataWriter は実行されていないクラスを書き出さないため、ブロックを直接書く
+                zeroHitBlock(3L, "org/sample/NotExecuted", 50)
+        );
+        byte[] sparse = encoder.encode(exec);
+        ExecutionDataStore decoded = decoder.decode(sparse);
+
+        assertTrue(sparse.length < exec.length);
+        assertEquals(3, decoded.getContents().size());
+        assertArrayEquals(runs, decoded.get(1L).getProbes());
+        assertEquals("org/sample/Runs", decoded.get(1L).getName());
+        assertArrayEquals(scattered, decoded.get(2L).getProbes());
+        assertArrayEquals(new boolean[50], decoded.get(3L).getProbes());
+    }
+
+    //クラスごとのテスト総数は受け取ったクラスから数えるため、EXEC と SPARSE で届くクラスが一致する必要がある
+    @Test
+    void sparseGivesSameClassesAndCountsAsExec() throws IOException {
+        boolean[] executed = {true, false, true, true};
+        List<byte[]> dumps = List.of(
+                concat(execBytes(new ExecutionData(1L, "org/sample/A", executed)),
+                        zeroHitBlock(2L, "org/sample/B", 10)),
+                concat(execBytes(),
+                        concat(zeroHitBlock(1L, "org/sample/A", 4),
+                                concat(zeroHitBlock(2L, "org/sample/B", 10), zeroHitBlock(3L, "org/sample/C", 3)))),
+                concat(execBytes(new ExecutionData(3L, "org/sample/C", new boolean[]{false, true, false})),
+                        concat(zeroHitBlock(1L, "org/sample/A", 4), zeroHitBlock(2L, "org/sample/B", 10)))
+        );
+
+        Map<Long, Integer> execTotals = new HashMap<>();
+        Map<Long, Integer> sparseTotals = new HashMap<>();
+        for (byte[] exec : dumps) {
+            ExecutionDataStore fromExec = readExec(exec);
+            ExecutionDataStore fromSparse = decoder.decode(encoder.encode(exec));
+
+            assertEquals(fromExec.getContents().size(), fromSparse.getContents().size());
+            for (ExecutionData e : fromExec.getContents()) {
+                ExecutionData s = fromSparse.get(e.getId());
+                assertNotNull(s, e.getName());
+                assertEquals(e.getName(), s.getName());
+                assertArrayEquals(e.getProbes(), s.getProbes());
+                execTotals.merge(e.getId(), 1, Integer::sum);
+            }
+            for (ExecutionData s : fromSparse.getContents()) sparseTotals.merge(s.getId(), 1, Integer::sum);
+        }
+        assertEquals(Map.of(1L, 3, 2L, 3, 3L, 2), execTotals);
+        assertEquals(execTotals, sparseTotals);
+    }
+
+    @Test
+    void classNamesAreSentOnlyOnce() throws IOException {
+        boolean[] probes = {true, false, true};
+        byte[] first = encoder.encode(execBytes(new ExecutionData(7L, "org/sample/VeryLongClassNameForDictionaryTest", probes)));
+        byte[] second = encoder.encode(execBytes(new ExecutionData(7L, "org/sample/VeryLongClassNameForDictionaryTest", probes)));
+
+        assertTrue(second.length < first.length);
+        decoder.decode(first);
+        ExecutionData decoded = decoder.decode(second).get(7L);
+        assertEquals("org/sample/VeryLongClassNameForDictionaryTest", decoded.getName());
+        assertArrayEquals(probes, decoded.getProbes());
+    }
+
+    private static ExecutionDataStore readExec(byte[] exec) throws IOException {
+        ExecutionDataStore store = new ExecutionDataStore();
+        ExecutionDataReader reader = new ExecutionDataReader(new ByteArrayInputStream(exec));
+        reader.setExecutionDataVisitor(store);
+        reader.setSessionInfoVisitor(info -> {});
+        reader.read();
+        return store;
+    }
+
+    private static byte[] zeroHitBlock(long classId, String name, int probeCount) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(ExecutionDataWriter.BLOCK_EXECUTIONDATA);
+        out.writeLong(classId);
+        out.writeUTF(name);
+        out.writeByte(probeCount); // probeCount < 128 の varint
+        out.write(new byte[(probeCount + 7) / 8]);
+        return bos.toByteArray();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static byte[] execBytes(ExecutionData... data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ExecutionDataWriter writer = new ExecutionDataWriter(bos);
+        writer.visitSessionInfo(new SessionInfo("test", 0, 0));
+        for (ExecutionData d : data) {
+            writer.visitClassExecution(d);
+        }
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,142 @@
+package jisd.fl.coverage;
+
+import jisd.fl.core.entity.element.ClassElementName;
+import jisd.fl.core.entity.element.MethodElementName;
+import jisd.fl.infra.jacoco.ClassFileCache;
+import jisd.fl.infra.jacoco.TestCoverageCache;
+import org.jacoco.core.analysis.Analyzer;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestCoverageCacheTest {
+    static final ClassElementName TEST_CLASS = new ClassElementName("org.sample.SampleTest");
+    static final MethodElementName PASSED_TEST = new MethodElementName("org.sample.SampleTest#passed()");
+    static final MethodElementName FAILED_TEST = new MethodElementName("org.sample.SampleTest#failed()");
+
+    //対象クラスのクラスファイルとして使う、中身のあるクラス
+    static class Executed { int run() { return 1; } }
+    static class NotExecuted { int run() { return 2; } }
+
+    @Test
+    void replayedRunEqualsFreshRun(@TempDir Path dir) throws IOException {
+        Path classes = dir.resolve("classes");
+        Path testBin = dir.resolve("test-classes");
+        long executedId = writeClass(classes, "org/sample/Executed", Executed.class);
+        long notExecutedId = writeClass(classes, "org/sample/NotExecuted", NotExecuted.class);
+        writeClass(testBin, "org/sample/SampleTest", TestCoverageCacheTest.class);
+        ClassFileCache targets = ClassFileCache.loadFromClassesDir(classes);
+
+        //プローブが1つも実行されていない対象クラスも、直接実行した場合と同じく受け取る
+        ExecutionDataStore passedRun = store(
+                new ExecutionData(executedId, "org/sample/Executed", new boolean[]{true, false, true}),
+                new ExecutionData(notExecutedId, "org/sample/NotExecuted", new boolean[3]),
+                new ExecutionData(99L, "org/other/NotTarget", new boolean[]{true}));
+        ExecutionDataStore failedRun = store(
+                new ExecutionData(executedId, "org/sample/Executed", new boolean[3]),
+                new ExecutionData(notExecutedId, "org/sample/NotExecuted", new boolean[]{false, true, false}));
+
+        TestCoverageCache cache = new TestCoverageCache(dir.resolve("cache"), targets, testBin);
+        try (TestCoverageCache.Update update = cache.update(TEST_CLASS)) {
+            assertNull(update.replay((m, passed, data) -> fail("no cache yet")));
+            update.record(PASSED_TEST, true, passedRun);
+            update.record(FAILED_TEST, false, failedRun);
+            update.commit();
+        }
+
+        Map<MethodElementName, Boolean> results = new LinkedHashMap<>();
+        Map<MethodElementName, ExecutionDataStore> replayed = new LinkedHashMap<>();
+        TestCoverageCache reopened = new TestCoverageCache(dir.resolve("cache"), targets, testBin);
+        try (TestCoverageCache.Update update = reopened.update(TEST_CLASS)) {
+            List<MethodElementName> stale = update.replay((m, passed, data) -> {
+                results.put(m, passed);
+                replayed.put(m, data);
+            });
+            assertEquals(List.of(), stale);
+        }
+
+        assertEquals(Map.of(PASSED_TEST, true, FAILED_TEST, false), results);
+        assertSameTargetCoverage(passedRun, replayed.get(PASSED_TEST), targets);
+        assertSameTargetCoverage(failedRun, replayed.get(FAILED_TEST), targets);
+    }
+
+    @Test
+    void changedClassMakesTestStale(@TempDir Path dir) throws IOException {
+        Path classes = dir.resolve("classes");
+        Path testBin = dir.resolve("test-classes");
+        long executedId = writeClass(classes, "org/sample/Executed", Executed.class);
+        long notExecutedId = writeClass(classes, "org/sample/NotExecuted", NotExecuted.class);
+        writeClass(testBin, "org/sample/SampleTest", TestCoverageCacheTest.class);
+
+        TestCoverageCache cache = new TestCoverageCache(dir.resolve("cache"), ClassFileCache.loadFromClassesDir(classes), testBin);
+        try (TestCoverageCache.Update update = cache.update(TEST_CLASS)) {
+            update.replay((m, passed, data) -> {});
+            update.record(PASSED_TEST, true, store(
+                    new ExecutionData(executedId, "org/sample/Executed", new boolean[]{true, true, true})));
+            update.record(FAILED_TEST, false, store(
+                    new ExecutionData(executedId, "org/sample/Executed", new boolean[]{true, true, true}),
+                    new ExecutionData(notExecutedId, "org/sample/NotExecuted", new boolean[3])));
+            update.commit();
+        }
+
+        //NotExecuted を別のクラスファイルに置き換える
+        writeClass(classes, "org/sample/NotExecuted", Executed.class);
+        List<MethodElementName> visited = new ArrayList<>();
+        TestCoverageCache reopened = new TestCoverageCache(dir.resolve("cache"), ClassFileCache.loadFromClassesDir(classes), testBin);
+        try (TestCoverageCache.Update update = reopened.update(TEST_CLASS)) {
+            assertEquals(List.of(FAILED_TEST), update.replay((m, passed, data) -> visited.add(m)));
+        }
+        assertEquals(List.of(PASSED_TEST), visited);
+    }
+
+    private static void assertSameTargetCoverage(ExecutionDataStore fresh, ExecutionDataStore replayed, ClassFileCache targets) {
+        int targetCount = 0;
+        for (ExecutionData d : fresh.getContents()) {
+            if (!targets.contains(d.getName())) {
+                assertNull(replayed.get(d.getId()), d.getName());
+                continue;
+            }
+            ExecutionData r = replayed.get(d.getId());
+            assertNotNull(r, d.getName());
+            assertEquals(d.getName(), r.getName());
+            assertArrayEquals(d.getProbes(), r.getProbes());
+            targetCount++;
+        }
+        assertEquals(targetCount, replayed.getContents().size());
+    }
+
+    private static ExecutionDataStore store(ExecutionData... data) {
+        ExecutionDataStore store = new ExecutionDataStore();
+        for (ExecutionData d : data) store.put(d);
+        return store;
+    }
+
+    /**
+     * クラスファイルを置き、JaCoCo が付けるクラスIDを返す。
+     */
+    private static long writeClass(Path dir, String internalName, Class<?> source) throws IOException {
+        byte[] bytes;
+        try (InputStream in = source.getResourceAsStream("/" + source.getName().replace('.', '/') + ".class")) {
+            bytes = in.readAllBytes();
+        }
+        Path file = dir.resolve(internalName + ".class");
+        Files.createDirectories(file.getParent());
+        Files.write(file, bytes);
+
+        long[] id = new long[1];
+        new Analyzer(new ExecutionDataStore(), cc -> id[0] = cc.getId()).analyzeClass(bytes, internalName);
+        return id[0];
+    }
+}
@@ -0,0 +1,51 @@
+package jisd.fl.coverage;
+
+import jisd.fl.core.entity.coverage.CompressedBitSet;
+import jisd.fl.core.entity.coverage.TestCoverageMatrix;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestCoverageMatrixTest {
+
+    @Test
+    void compressedBitSetKeepsValuesInEveryContainerKind() {
+        //run: 0..9999, array: 70000 + 3 の倍数, bitmap: 200000 から偶数 5000 個
+        int[] values = new int[10_000 + 100 + 5_000];
+        int n = 0;
+        for (int i = 0; i < 10_000; i++) values[n++] = i;
+        for (int i = 0; i < 100; i++) values[n++] = 70_000 + 3 * i;
+        for (int i = 0; i < 5_000; i++) values[n++] = 200_000 + 2 * i;
+
+        CompressedBitSet set = CompressedBitSet.of(values, n);
+
+        assertEquals(n, set.cardinality());
+        assertArrayEquals(values, set.toArray());
+        assertTrue(set.contains(9_999));
+        assertFalse(set.contains(10_000));
+        assertTrue(set.contains(70_003));
+        assertFalse(set.contains(70_004));
+        assertTrue(set.contains(209_998));
+        assertFalse(set.contains(209_999));
+        assertEquals(209_998, set.last());
+        assertEquals(set, CompressedBitSet.of(values.clone(), n));
+    }
+
+    @Test
+    void columnIsTransposedFromRows() {
+        TestCoverageMatrix matrix = new TestCoverageMatrix();
+        matrix.putRow(0, new int[]{0, 1, 2}, 3);
+        matrix.putRow(1, new int[]{1, 5}, 2);
+        matrix.putRow(2, new int[]{2, 5, 9}, 3);
+
+        assertArrayEquals(new int[]{0, 1}, matrix.column(1).toArray());
+        assertArrayEquals(new int[]{1, 2}, matrix.column(5).toArray());
+        assertTrue(matrix.column(100).isEmpty());
+
+        //行を変更すると列も作り直される
+        matrix.removeRow(1);
+        assertArrayEquals(new int[]{2}, matrix.column(5).toArray());
+        assertArrayEquals(new int[]{0, 1, 2}, matrix.row(0).toArray());
+        assertEquals(2, matrix.rowCount());
+    }
+}
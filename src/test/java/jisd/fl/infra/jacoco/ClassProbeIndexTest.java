@@ -0,0 +1,297 @@
+package jisd.fl.infra.jacoco;
+
+import org.jacoco.core.analysis.Analyzer;
+import org.jacoco.core.analysis.IClassCoverage;
+import org.jacoco.core.analysis.ICounter;
+import org.jacoco.core.analysis.IMethodCoverage;
+import org.jacoco.core.analysis.ISourceNode;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.jacoco.core.instr.Instrumenter;
+import org.jacoco.core.runtime.OfflineInstrumentationAccessGenerator;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClassProbeIndexTest {
+
+    //分岐・ループ・例外処理・ラムダ・初期化子を含むクラス
+    static class Branches {
+        static int counter = 3;
+        final Runnable increment = () -> counter++;
+        final Supplier<String> name = () -> counter > 0 ? "positive" : "other";
+
+        int abs(int a) {
+            if (a > 0) return a;
+            for (int i = 0; i < a; i++) counter += i;
+            return -a;
+        }
+
+        int guarded(int a) {
+            try {
+                return 10 / a;
+            } catch (ArithmeticException e) {
+                return -1;
+            } finally {
+                counter--;
+            }
+        }
+
+        String label(int a) {
+            switch (a) {
+                case 0: return "zero";
+                case 1: return "one";
+                default: return a < 0 ? "negative" : "many";
+            }
+        }
+    }
+
+    interface WithDefaults {
+        default int twice(int a) {
+            return a > 100 ? a : a * 2;
+        }
+
+        static WithDefaults create() {
+            return new WithDefaults() {};
+        }
+    }
+
+    enum Kind { A, B }
+
+    record Point(int x, int y) {
+        Point {
+            if (x < 0) throw new IllegalArgumentException();
+        }
+    }
+
+    //各プローブだけを有効にして解析した結果 (メソッドごとにまとめる前の方法) と一致すること
+    @Test
+    void sameAsAnalyzingEachProbe() throws IOException {
+        for (Class<?> c : List.of(Branches.class, WithDefaults.class, Kind.class, Point.class, ClassProbeIndexTest.class)) {
+            byte[] bytes = classBytes(c);
+            String internalName = c.getName().replace('.', '/');
+            ExecutionData data = new ExecutionData(1L, internalName, probeCount(bytes, internalName));
+            ClassProbeIndex index = ClassProbeIndex.build(data, bytes);
+            assertTrue(index.isAnalyzable(), internalName);
+
+            for (int p = 0; p < index.probeCount(); p++) {
+                boolean[] probes = new boolean[index.probeCount()];
+                probes[p] = true;
+                IClassCoverage cc = analyze(new ExecutionData(1L, internalName, probes), bytes);
+                assertArrayEquals(coveredLines(cc), index.linesOf(p), internalName + " probe " + p);
+                assertArrayEquals(coveredMethods(cc), index.methodsOf(p), internalName + " probe " + p);
+            }
+        }
+    }
+
+    @Test
+    void methodProbesPartitionAllProbes() throws IOException {
+        byte[] bytes = classBytes(Branches.class);
+        String internalName = Branches.class.getName().replace('.', '/');
+        int probeCount = probeCount(bytes, internalName);
+
+        boolean[] seen = new boolean[probeCount];
+        for (int[] ids : MethodProbes.of(bytes, internalName, probeCount).values()) {
+            for (int id : ids) {
+                assertFalse(seen[id], "probe " + id);
+                seen[id] = true;
+            }
+        }
+        for (int p = 0; p < probeCount; p++) assertTrue(seen[p], "probe " + p);
+    }
+
+    //解析結果 (IClassCoverage) を保持しないため、クラスごとに保持するヒープが以前 (対応表 + 解析結果) より小さい
+    @Test
+    void doesNotRetainAnalyzedStructure() throws IOException {
+        for (Class<?> c : List.of(Branches.class, WithDefaults.class, Kind.class, Point.class, ClassProbeIndexTest.class)) {
+            byte[] bytes = classBytes(c);
+            String internalName = c.getName().replace('.', '/');
+            int probeCount = probeCount(bytes, internalName);
+            ClassProbeIndex index = ClassProbeIndex.build(new ExecutionData(1L, internalName, probeCount), bytes);
+            IClassCoverage structure = analyze(new ExecutionData(1L, internalName, new boolean[probeCount]), bytes);
+
+            for (Object o : reachable(index)) {
+                assertFalse(o instanceof ISourceNode || o instanceof ICounter, internalName + " retains " + o.getClass().getName());
+            }
+            long retained = estimatedBytes(reachable(index));
+            long before = estimatedBytes(reachable(index, structure));
+            assertTrue(retained < before, internalName + ": " + retained + " >= " + before);
+            //解析結果の代わりに保持する行の構造は、解析結果そのものより小さい
+            long structureBytes = estimatedBytes(reachable(structure));
+            long compact = estimatedBytes(reachable(index)) - estimatedBytes(reachable(
+                    fieldValue(index, "linesByProbe"), fieldValue(index, "methodsByProbe"), index.internalName()));
+            assertTrue(compact < structureBytes, internalName + ": " + compact + " >= " + structureBytes);
+        }
+    }
+
+    /**
+     * roots から参照をたどって到達できるオブジェクト。
+     * JDKのクラスはフィールドを読めないため、コレクションは要素だけをたどり、それ以外はたどらない。
+     */
+    private static Set<Object> reachable(Object... roots) {
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Object> stack = new ArrayDeque<>(List.of(roots));
+        while (!stack.isEmpty()) {
+            Object o = stack.pop();
+            if (o == null || o instanceof Class<?> || !seen.add(o)) continue;
+            Class<?> type = o.getClass();
+            if (type.isArray()) {
+                if (type.getComponentType().isPrimitive()) continue;
+                for (int i = 0; i < Array.getLength(o); i++) stack.push(Array.get(o, i));
+            } else if (o instanceof Collection<?> col) {
+                stack.addAll(col.stream().filter(Objects::nonNull).toList());
+            } else if (o instanceof Map<?, ?> map) {
+                map.forEach((k, v) -> { if (k != null) stack.push(k); if (v != null) stack.push(v); });
+            } else if (!isJdkClass(type)) {
+                for (Field f : instanceFields(type)) {
+                    if (f.getType().isPrimitive()) continue;
+                    Object v = fieldValue(o, f);
+                    if (v != null) stack.push(v);
+                }
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * 64bit JVM (圧縮参照) を想定したオブジェクトの大きさの見積もり。ヘッダ12バイト、参照4バイト、8バイト境界に揃える。
+     */
+    private static long estimatedBytes(Set<Object> objects) {
+        long total = 0;
+        for (Object o : objects) {
+            Class<?> type = o.getClass();
+            long size;
+            if (type.isArray()) {
+                Class<?> component = type.getComponentType();
+                size = 16 + (long) Array.getLength(o) * (component.isPrimitive() ? primitiveBytes(component) : 4);
+            } else if (o instanceof String str) {
+                size = 24 + 16 + str.length();
+            } else if (o instanceof Collection<?> || o instanceof Map<?, ?>) {
+                //内部の配列とエントリの分
+                int n = o instanceof Collection<?> col ? col.size() : ((Map<?, ?>) o).size();
+                size = 24 + 16 + 4L * n + (o instanceof Map<?, ?> ? 32L * n : 0);
+            } else if (isJdkClass(type)) {
+                size = 16;
+            } else {
+                size = 12;
+                for (Field f : instanceFields(type)) size += f.getType().isPrimitive() ? primitiveBytes(f.getType()) : 4;
+            }
+            total += (size + 7) & ~7L;
+        }
+        return total;
+    }
+
+    private static boolean isJdkClass(Class<?> type) {
+        return type.getName().startsWith("java.") || type.getName().startsWith("jdk.") || type.getName().startsWith("sun.");
+    }
+
+    private static List<Field> instanceFields(Class<?> type) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> t = type; t != null && !isJdkClass(t); t = t.getSuperclass()) {
+            for (Field f : t.getDeclaredFields()) {
+                if (!Modifier.isStatic(f.getModifiers())) fields.add(f);
+            }
+        }
+        return fields;
+    }
+
+    private static int primitiveBytes(Class<?> type) {
+        if (type == long.class || type == double.class) return 8;
+        if (type == int.class || type == float.class) return 4;
+        if (type == short.class || type == char.class) return 2;
+        return 1;
+    }
+
+    private static Object fieldValue(Object o, String name) {
+        for (Field f : instanceFields(o.getClass())) {
+            if (f.getName().equals(name)) return fieldValue(o, f);
+        }
+        return fail("no field: " + name);
+    }
+
+    private static Object fieldValue(Object o, Field f) {
+        try {
+            f.setAccessible(true);
+            return f.get(o);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static IClassCoverage analyze(ExecutionData data, byte[] bytes) throws IOException {
+        ExecutionDataStore store = new ExecutionDataStore();
+        store.put(data);
+        IClassCoverage[] analyzed = new IClassCoverage[1];
+        new Analyzer(store, cc -> analyzed[0] = cc).analyzeClass(bytes, data.getName());
+        return analyzed[0];
+    }
+
+    private static int[] coveredLines(IClassCoverage cc) {
+        List<Integer> lines = new ArrayList<>();
+        for (int line = cc.getFirstLine(); line >= 0 && line <= cc.getLastLine(); line++) {
+            int stat = cc.getLine(line).getStatus();
+            if (stat == ICounter.PARTLY_COVERED || stat == ICounter.FULLY_COVERED) lines.add(line);
+        }
+        return lines.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int[] coveredMethods(IClassCoverage cc) {
+        List<Integer> methods = new ArrayList<>();
+        int i = 0;
+        for (IMethodCoverage mc : cc.getMethods()) {
+            if (mc.getMethodCounter().getCoveredCount() > 0) methods.add(i);
+            i++;
+        }
+        return methods.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    static byte[] classBytes(Class<?> c) throws IOException {
+        try (InputStream in = c.getResourceAsStream("/" + c.getName().replace('.', '/') + ".class")) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * 計測用に書き換えたクラスが Offline#getProbes に渡すプローブ数。
+     */
+    static int probeCount(byte[] bytes, String internalName) throws IOException {
+        byte[] instrumented = new Instrumenter(new OfflineInstrumentationAccessGenerator()).instrument(bytes, internalName);
+        ClassNode cn = new ClassNode();
+        new ClassReader(instrumented).accept(cn, 0);
+        for (MethodNode mn : cn.methods) {
+            for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+                if (!(insn instanceof MethodInsnNode call) || !call.name.equals("getProbes")) continue;
+                AbstractInsnNode push = insn.getPrevious();
+                if (push instanceof LdcInsnNode ldc) return (Integer) ldc.cst;
+                if (push.getOpcode() == Opcodes.BIPUSH || push.getOpcode() == Opcodes.SIPUSH) return ((IntInsnNode) push).operand;
+                return push.getOpcode() - Opcodes.ICONST_0;
+            }
+        }
+        return fail("no probes: " + internalName);
+    }
+}
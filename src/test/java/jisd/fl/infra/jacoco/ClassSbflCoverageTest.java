@@ -0,0 +1,126 @@
+package jisd.fl.infra.jacoco;
+
+import jisd.fl.core.entity.coverage.SbflCounts;
+import jisd.fl.core.entity.coverage.SbflCoverageView;
+import jisd.fl.core.entity.element.ClassElementName;
+import jisd.fl.core.entity.element.CodeElementIdentifier;
+import jisd.fl.core.entity.element.LineElementNameResolver;
+import jisd.fl.core.entity.element.MethodElementName;
+import org.jacoco.core.data.ExecutionData;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClassSbflCoverageTest {
+    static final Class<?> FIXTURE = ClassProbeIndexTest.Branches.class;
+    static final String INTERNAL_NAME = FIXTURE.getName().replace('.', '/');
+    static final ClassElementName TARGET = new ClassElementName(FIXTURE.getName());
+
+    byte[] classBytes;
+    ClassProbeIndex index;
+
+    record TestRun(boolean[] probes, boolean passed) {}
+
+    @BeforeEach
+    void init() throws IOException {
+        classBytes = ClassProbeIndexTest.classBytes(FIXTURE);
+        ExecutionData data = new ExecutionData(1L, INTERNAL_NAME, ClassProbeIndexTest.probeCount(classBytes, INTERNAL_NAME));
+        index = ClassProbeIndex.build(data, classBytes);
+    }
+
+    //キャッシュの上限を超える種類のプローブ配列を繰り返し反映しても、テストごとに Analyzer で解析した結果と一致すること
+    @Test
+    void memoizedHitsMatchAnalyzer() throws IOException {
+        List<TestRun> runs = randomRuns(new Random(13), 100, 400);
+
+        ClassSbflCoverage expected = new ClassSbflCoverage(TARGET, resolver());
+        ClassSbflCoverage actual = new ClassSbflCoverage(TARGET, resolver());
+        for (TestRun run : runs) {
+            expected.accept(ClassProbeIndexTest.analyze(new ExecutionData(1L, INTERNAL_NAME, run.probes()), classBytes), run.passed());
+            actual.accept(index, run.probes(), run.passed());
+        }
+        assertSameCounts(expected, actual);
+    }
+
+    //複数のスレッドから同時に反映しても、1スレッドで順に反映した場合と一致すること
+    @Test
+    void concurrentAcceptMatchesSerial() throws Exception {
+        List<TestRun> runs = randomRuns(new Random(14), 100, 2000);
+
+        ClassSbflCoverage expected = new ClassSbflCoverage(TARGET, resolver());
+        for (TestRun run : runs) expected.accept(index, run.probes(), run.passed());
+
+        ClassSbflCoverage actual = new ClassSbflCoverage(TARGET, resolver(), true);
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int from = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = from; i < runs.size(); i += threads) {
+                        actual.accept(index, runs.get(i).probes(), runs.get(i).passed());
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> f : futures) f.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertSameCounts(expected, actual);
+    }
+
+    /**
+     * patterns 種類のプローブ配列から count 個のテストを作る。
+     */
+    List<TestRun> randomRuns(Random random, int patterns, int count) {
+        List<boolean[]> distinct = new ArrayList<>();
+        for (int i = 0; i < patterns; i++) {
+            boolean[] probes = new boolean[index.probeCount()];
+            for (int p = 0; p < probes.length; p++) probes[p] = random.nextInt(3) == 0;
+            distinct.add(probes);
+        }
+        List<TestRun> runs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            runs.add(new TestRun(distinct.get(random.nextInt(patterns)).clone(), random.nextInt(4) != 0));
+        }
+        return runs;
+    }
+
+    //行ごとに別のメソッドとし、メソッド単位のカウントもメソッドごとに比べられるようにする
+    static LineElementNameResolver resolver() {
+        LineElementNameResolver resolver = new LineElementNameResolver(1000, new MethodElementName(FIXTURE.getName() + "#<clinit>()"));
+        for (int line = 1; line <= 1000; line++) {
+            resolver.putMethodRange(line, line, new MethodElementName(FIXTURE.getName() + "#line" + line + "()"));
+        }
+        return resolver;
+    }
+
+    static void assertSameCounts(ClassSbflCoverage expected, ClassSbflCoverage actual) {
+        assertEquals(expected.totalPass(), actual.totalPass());
+        assertEquals(expected.totalFail(), actual.totalFail());
+        assertEquals(countsOf(expected.lineCoverageView()), countsOf(actual.lineCoverageView()));
+        assertEquals(countsOf(expected.methodCoverageView()), countsOf(actual.methodCoverageView()));
+        assertEquals(expected.classCounts(), actual.classCounts());
+    }
+
+    private static <E extends CodeElementIdentifier<E>> Map<E, SbflCounts> countsOf(SbflCoverageView<E> view) {
+        return view.entries().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    }
+}
@@ -0,0 +1,166 @@
+package jisd.fl.infra.jacoco.exec;
+
+import jisd.fl.core.entity.element.ClassElementName;
+import jisd.fl.core.entity.element.MethodElementName;
+import jisd.fl.infra.junit.JUnitTestFinder;
+import jisd.fl.infra.junit.JUnitTestRunner;
+import org.jacoco.agent.rt.IAgent;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataReader;
+import org.jacoco.core.data.ExecutionDataStore;
+import org.jacoco.core.data.ExecutionDataWriter;
+import org.jacoco.core.data.SessionInfo;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.RepetitionInfo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CoverageDumpingListenerTest {
+    static final ClassElementName FIXTURE = new ClassElementName(Fixture.class.getName());
+    //Fixture が実行した「行」。エージェントの代わりにプローブ配列として送る
+    static final boolean[] PROBES = new boolean[6];
+    static boolean running = false;
+
+    /**
+     * RUNCLASS で実行されるテストクラス。このテストから実行する場合以外は実行しない。
+     */
+    @EnabledIf("running")
+    static class Fixture {
+        static boolean running() {
+            return running;
+        }
+
+        @Test
+        void plain() {
+            PROBES[0] = true;
+        }
+
+        //呼び出しごとに異なる行を実行し、3回目だけ失敗する
+        @ParameterizedTest
+        @ValueSource(ints = {1, 2, 3})
+        void parameterized(int n) {
+            PROBES[n] = true;
+            assertNotEquals(3, n);
+        }
+
+        @RepeatedTest(2)
+        void repeated(RepetitionInfo info) {
+            PROBES[3 + info.getCurrentRepetition()] = true;
+        }
+    }
+
+    record Result(boolean passed, List<Boolean> probes) {}
+
+    @Test
+    void generatedTestsAreMergedLikeRunMode() throws IOException {
+        JacocoTestExecServerMain.CoverageDumper dumper = new JacocoTestExecServerMain.CoverageDumper(new FakeAgent());
+        running = true;
+        try {
+            Map<String, Result> perClass = runClass(dumper);
+
+            Map<String, Result> perMethod = new HashMap<>();
+            for (MethodElementName m : JUnitTestFinder.getTestMethods(FIXTURE)) {
+                dumper.reset();
+                boolean passed = JUnitTestRunner.runSingleTest(m, new StringBuilder()).passed();
+                perMethod.put(m.fullyQualifiedName(), new Result(passed, probesOf(dumper.dump())));
+            }
+
+            String prefix = Fixture.class.getName() + "#";
+            assertEquals(new Result(true, List.of(true, false, false, false, false, false)), perClass.get(prefix + "plain()"));
+            assertEquals(new Result(false, List.of(false, true, true, true, false, false)), perClass.get(prefix + "parameterized()"));
+            assertEquals(new Result(true, List.of(false, false, false, false, true, true)), perClass.get(prefix + "repeated()"));
+            assertEquals(perMethod, perClass);
+        } finally {
+            running = false;
+        }
+    }
+
+    private static Map<String, Result> runClass(JacocoTestExecServerMain.CoverageDumper dumper) throws IOException {
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        JacocoTestExecServerMain.CoverageDumpingListener listener = new JacocoTestExecServerMain.CoverageDumpingListener(dumper, replies);
+        dumper.reset();
+        JUnitTestRunner.runTestClass(FIXTURE, listener, new StringBuilder());
+
+        // TEST <passed> <len> <test_method_name>\n<bytes>
+        Map<String, Result> results = new HashMap<>();
+        byte[] bytes = replies.toByteArray();
+        int pos = 0;
+        while (pos < bytes.length) {
+            int eol = pos;
+            while (bytes[eol] != '\n') eol++;
+            String[] header = new String(bytes, pos, eol - pos, StandardCharsets.UTF_8).split(" ");
+            int len = Integer.parseInt(header[2]);
+            byte[] exec = Arrays.copyOfRange(bytes, eol + 1, eol + 1 + len);
+            assertNull(results.put(header[3], new Result(header[1].equals("1"), probesOf(exec))), "sent twice: " + header[3]);
+            pos = eol + 1 + len;
+        }
+        return results;
+    }
+
+    private static List<Boolean> probesOf(byte[] exec) throws IOException {
+        ExecutionDataStore store = new ExecutionDataStore();
+        ExecutionDataReader reader = new ExecutionDataReader(new ByteArrayInputStream(exec));
+        reader.setExecutionDataVisitor(store);
+        reader.setSessionInfoVisitor(info -> {});
+        reader.read();
+        ExecutionData data = store.get(1L);
+        boolean[] probes = data == null ? new boolean[PROBES.length] : data.getProbes();
+        Boolean[] boxed = new Boolean[probes.length];
+        for (int i = 0; i < probes.length; i++) boxed[i] = probes[i];
+        return List.of(boxed);
+    }
+
+    /**
+     * PROBES を1つのクラスのプローブ配列として返すエージェント。
+     */
+    static final class FakeAgent implements IAgent {
+        @Override
+        public String getVersion() {
+            return "fake";
+        }
+
+        @Override
+        public String getSessionId() {
+            return "fake";
+        }
+
+        @Override
+        public void setSessionId(String id) {}
+
+        @Override
+        public void reset() {
+            Arrays.fill(PROBES, false);
+        }
+
+        @Override
+        public byte[] getExecutionData(boolean reset) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try {
+                ExecutionDataWriter writer = new ExecutionDataWriter(bos);
+                writer.visitSessionInfo(new SessionInfo("fake", 0, 0));
+                writer.visitClassExecution(new ExecutionData(1L, "fixture/Target", PROBES.clone()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (reset) reset();
+            return bos.toByteArray();
+        }
+
+        @Override
+        public void dump(boolean reset) {}
+    }
+}
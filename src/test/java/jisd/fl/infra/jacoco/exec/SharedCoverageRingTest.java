@@ -0,0 +1,58 @@
+package jisd.fl.infra.jacoco.exec;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SharedCoverageRingTest {
+
+    //リングを一周以上しても、書き込んだデータをそのまま読み出せること
+    @Test
+    void readsBackWhatServerWrote() throws IOException {
+        try (SharedCoverageRing client = SharedCoverageRing.create(64);
+             SharedCoverageRing server = SharedCoverageRing.open(client.file())) {
+            for (int i = 0; i < 40; i++) {
+                byte[] data = payload(i, 5 + i % 23);
+                long pos = server.write(data);
+                assertTrue(pos >= 0, "payload " + i);
+                assertArrayEquals(data, bytesOf(client.slice(pos, data.length)), "payload " + i);
+                client.release(pos + data.length);
+            }
+        }
+    }
+
+    //空きが足りない場合は書き込まず (ソケットで送らせ)、読み終えた分だけ再利用する
+    @Test
+    void refusesToOverwriteUnreadData() throws IOException {
+        try (SharedCoverageRing client = SharedCoverageRing.create(32);
+             SharedCoverageRing server = SharedCoverageRing.open(client.file())) {
+            byte[] first = payload(1, 20);
+            long pos = server.write(first);
+            assertEquals(0, pos);
+            assertEquals(-1, server.write(payload(2, 20)));
+            assertEquals(-1, server.write(payload(3, 33)));
+
+            client.release(pos + first.length);
+            byte[] second = payload(2, 20);
+            long next = server.write(second);
+            //末尾に収まらないため先頭から書き込む
+            assertEquals(32, next);
+            assertArrayEquals(second, bytesOf(client.slice(next, second.length)));
+        }
+    }
+
+    private static byte[] payload(int seed, int len) {
+        byte[] data = new byte[len];
+        for (int i = 0; i < len; i++) data[i] = (byte) (seed * 31 + i);
+        return data;
+    }
+
+    private static byte[] bytesOf(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
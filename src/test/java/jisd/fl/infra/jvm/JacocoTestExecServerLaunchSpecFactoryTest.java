@@ -0,0 +1,63 @@
+package jisd.fl.infra.jvm;
+
+import org.jacoco.core.runtime.WildcardMatcher;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JacocoTestExecServerLaunchSpecFactoryTest {
+
+    //対象binのクラスはすべて、includes を付けない場合と同じく計測される。テストクラスやライブラリは計測しない
+    @Test
+    void includesEveryTargetClass(@TempDir Path bin) throws IOException {
+        List<String> targets = List.of("org.sample.Calc", "org.sample.Calc$Inner", "org.sample.Calc$1",
+                "org.sample.util.Strings", "Main", "Main$Entry");
+        for (String c : targets) writeClass(bin, c);
+        writeClass(bin, "module-info");
+        writeClass(bin, "org.sample.package-info");
+
+        WildcardMatcher includes = new WildcardMatcher(
+                JacocoTestExecServerLaunchSpecFactory.coverageIncludes(bin, List.of("com.example.gen.*")));
+        for (String c : targets) assertTrue(includes.matches(c), c);
+        assertTrue(includes.matches("com.example.gen.Parser"));
+        for (String c : List.of("org.sample.CalcTest", "org.sample.CalcTest$Nested", "org.junit.jupiter.api.Test", "MainTest")) {
+            assertFalse(includes.matches(c), c);
+        }
+    }
+
+    //パッケージ単位のパターンに縮約しても、対象binのクラスはすべて計測される
+    @Test
+    void collapsedIncludesStillCoverEveryTargetClass(@TempDir Path bin) throws IOException {
+        List<String> targets = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            targets.add("org.sample.generated.pkg" + i % 7 + ".GeneratedClassWithAVeryLongName" + i);
+            targets.add("org.sample.generated.pkg" + i % 7 + ".GeneratedClassWithAVeryLongName" + i + "$Inner");
+        }
+        targets.add("Main");
+        for (String c : targets) writeClass(bin, c);
+
+        String value = JacocoTestExecServerLaunchSpecFactory.coverageIncludes(bin, List.of());
+        assertTrue(value.length() < 64 * 1024, "length " + value.length());
+        WildcardMatcher includes = new WildcardMatcher(value);
+        for (String c : targets) assertTrue(includes.matches(c), c);
+        assertFalse(includes.matches("org.junit.jupiter.api.Test"));
+    }
+
+    @Test
+    void noTargetClassesMeansNoIncludes(@TempDir Path bin) {
+        assertNull(JacocoTestExecServerLaunchSpecFactory.coverageIncludes(bin.resolve("missing"), List.of()));
+    }
+
+    private static void writeClass(Path bin, String name) throws IOException {
+        Path file = bin.resolve(name.replace('.', '/') + ".class");
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[0]);
+    }
+}
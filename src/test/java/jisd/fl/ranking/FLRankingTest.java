@@ -0,0 +1,173 @@
+package jisd.fl.ranking;
+
+import jisd.fl.core.entity.FLRanking;
+import jisd.fl.core.entity.FLRankingElement;
+import jisd.fl.core.entity.element.ClassElementName;
+import jisd.fl.core.entity.element.CodeElementIdentifier;
+import jisd.fl.core.entity.element.LineElementName;
+import jisd.fl.core.entity.element.MethodElementName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FLRankingTest {
+
+    @Test
+    void keepsSortedOrderThroughScoreUpdates() {
+        Random random = new Random(0);
+        FLRanking ranking = new FLRanking();
+        Map<CodeElementIdentifier<?>, Double> scores = new HashMap<>();
+        List<LineElementName> lines = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            LineElementName line = new LineElementName("demo.Sample" + (i % 7) + "#method" + (i % 13) + "()", i);
+            //同じ疑惑値を多く含める
+            double score = random.nextInt(10) / 10.0;
+            lines.add(line);
+            scores.put(line, score);
+            ranking.add(line, score);
+        }
+        for (int i = 0; i < 2000; i++) {
+            LineElementName line = lines.get(random.nextInt(lines.size()));
+            double score = random.nextInt(10) / 10.0;
+            scores.put(line, score);
+            ranking.updateSuspiciousnessScore(line, score);
+        }
+        ranking.removeAll(Set.of(lines.get(0), lines.get(1)));
+        scores.remove(lines.get(0));
+        scores.remove(lines.get(1));
+
+        List<FLRankingElement> expected = new ArrayList<>();
+        scores.forEach((e, s) -> expected.add(new FLRankingElement(e, s)));
+        expected.sort(null);
+
+        assertEquals(expected.size(), ranking.getSize());
+        List<FLRankingElement> top = ranking.top(expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            CodeElementIdentifier<?> e = expected.get(i).getCodeElementName();
+            assertEquals(e, ranking.at(i).getCodeElementName());
+            assertEquals(e, top.get(i).getCodeElementName());
+            assertEquals(i, ranking.rankOf(e));
+        }
+        assertEquals(-1, ranking.rankOf(lines.get(0)));
+    }
+
+    @Test
+    void neighborsAreLinesOfTheSameMethod() {
+        FLRanking ranking = new FLRanking();
+        LineElementName a1 = new LineElementName("demo.A#m()", 1);
+        LineElementName a2 = new LineElementName("demo.A#m()", 2);
+        LineElementName b1 = new LineElementName("demo.A#n()", 3);
+        ranking.add(a1, 0.5);
+        ranking.add(a2, 0.5);
+        ranking.add(b1, 0.5);
+
+        assertEquals(Set.of(a2), Set.copyOf(ranking.neighborsOf(a1).stream().map(FLRankingElement::getCodeElementName).toList()));
+        assertTrue(ranking.neighborsOf(b1).isEmpty());
+    }
+
+    //追加・置き換え・削除・疑惑値の変更の後も、索引による検索と近傍がすべての要素を走査した結果と一致すること
+    @Test
+    void indexesMatchLinearScan() {
+        Random random = new Random(20);
+        List<LineElementName> lines = new ArrayList<>();
+        List<MethodElementName> methods = new ArrayList<>();
+        List<ClassElementName> classes = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            String method = "demo.p" + (i % 3) + ".Sample" + (i % 5) + "#method" + (i % 11) + "()";
+            lines.add(new LineElementName(method, i));
+            methods.add(new MethodElementName(method));
+            classes.add(new ClassElementName("demo.p" + (i % 4) + ".Sample" + i % 17));
+        }
+        assertIndexesMatchLinearScan(random, lines);
+        assertIndexesMatchLinearScan(random, methods);
+        assertIndexesMatchLinearScan(random, classes);
+
+        //行のランキングでは、メソッド・クラス・パッケージごとの要素も走査した結果と一致する
+        FLRanking ranking = new FLRanking();
+        for (LineElementName line : lines) ranking.add(line, random.nextInt(5) / 4.0);
+        ranking.removeAll(Set.of(lines.get(0), lines.get(7)));
+        for (LineElementName line : lines) {
+            assertEquals(lines.stream().filter(l -> l.methodElementName.equals(line.methodElementName) && ranking.searchElement(l).isPresent()).collect(Collectors.toSet()),
+                    elementsOf(ranking.elementsIn(line.methodElementName)));
+            ClassElementName cls = line.methodElementName.classElementName;
+            assertEquals(lines.stream().filter(l -> l.methodElementName.classElementName.equals(cls) && ranking.searchElement(l).isPresent()).collect(Collectors.toSet()),
+                    elementsOf(ranking.elementsIn(cls)));
+            assertEquals(lines.stream().filter(l -> l.methodElementName.classElementName.packageName.equals(cls.packageName) && ranking.searchElement(l).isPresent()).collect(Collectors.toSet()),
+                    elementsOf(ranking.elementsInPackage(cls.packageName)));
+        }
+    }
+
+    private static <E extends CodeElementIdentifier<E>> void assertIndexesMatchLinearScan(Random random, List<E> pool) {
+        FLRanking ranking = new FLRanking();
+        Map<E, Double> expected = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            E e = pool.get(random.nextInt(pool.size()));
+            double score = random.nextInt(5) / 4.0;
+            switch (random.nextInt(4)) {
+                //既にある要素の add はエントリを置き換える
+                case 0, 1 -> {
+                    ranking.add(e, score);
+                    expected.put(e, score);
+                }
+                case 2 -> {
+                    ranking.removeAll(Set.of(e));
+                    expected.remove(e);
+                }
+                default -> {
+                    if (!expected.containsKey(e)) continue;
+                    ranking.updateSuspiciousnessScore(e, score);
+                    expected.put(e, score);
+                }
+            }
+        }
+
+        assertEquals(expected.size(), ranking.getSize());
+        assertEquals(expected.keySet(), ranking.getAllElements());
+        for (E target : pool) {
+            Optional<FLRankingElement> found = ranking.searchElement(target);
+            assertEquals(expected.containsKey(target), found.isPresent(), target.toString());
+            found.ifPresent(f -> assertEquals(expected.get(target), f.getSuspScore()));
+
+            Set<Object> neighbors = expected.keySet().stream()
+                    .filter(e -> !e.equals(target) && target.isNeighbor(e))
+                    .collect(Collectors.toSet());
+            assertEquals(neighbors, elementsOf(ranking.neighborsOf(target)), target.toString());
+        }
+    }
+
+    private static Set<Object> elementsOf(Set<FLRankingElement> entries) {
+        return entries.stream().map(FLRankingElement::getCodeElementName).collect(Collectors.toSet());
+    }
+
+    @Test
+    void tiedClassesAreOrderedByName() {
+        List<ClassElementName> classes = List.of(
+                new ClassElementName("demo.b.Beta"),
+                new ClassElementName("demo.a.Alpha"),
+                new ClassElementName("demo.a.Gamma"),
+                new ClassElementName("Delta"));
+        FLRanking forward = new FLRanking();
+        FLRanking backward = new FLRanking();
+        for (int i = 0; i < classes.size(); i++) {
+            forward.add(classes.get(i), 0.5);
+            backward.add(classes.get(classes.size() - 1 - i), 0.5);
+        }
+
+        List<CodeElementIdentifier<?>> expected = List.of(
+                new ClassElementName("Delta"),
+                new ClassElementName("demo.a.Alpha"),
+                new ClassElementName("demo.a.Gamma"),
+                new ClassElementName("demo.b.Beta"));
+        assertEquals(expected, forward.top(4).stream().<CodeElementIdentifier<?>>map(FLRankingElement::getCodeElementName).toList());
+        assertEquals(expected, backward.top(4).stream().<CodeElementIdentifier<?>>map(FLRankingElement::getCodeElementName).toList());
+    }
+}
@@ -0,0 +1,61 @@
+package jisd.fl.ranking;
+
+import jisd.fl.core.entity.ScoreJournal;
+import jisd.fl.core.entity.ScoreJournal.Operation;
+import jisd.fl.core.entity.ScoreJournal.ScoreDelta;
+import jisd.fl.core.entity.element.ClassElementName;
+import jisd.fl.core.entity.element.LineElementName;
+import jisd.fl.core.entity.element.MethodElementName;
+import jisd.fl.core.entity.sbfl.Granularity;
+import jisd.fl.infra.session.ScoreJournalFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScoreJournalTest {
+
+    @Test
+    void recordingDiscardsRedoableOperations() {
+        ScoreJournal journal = new ScoreJournal();
+        Operation a = new Operation("a", Granularity.LINE, List.of());
+        Operation b = new Operation("b", Granularity.LINE, List.of());
+        Operation c = new Operation("c", Granularity.LINE, List.of());
+        journal.record(a);
+        journal.record(b);
+
+        assertEquals(b, journal.undo().orElseThrow());
+        assertEquals(a, journal.undo().orElseThrow());
+        assertTrue(journal.undo().isEmpty());
+        assertEquals(a, journal.redo().orElseThrow());
+
+        journal.record(c);
+        assertTrue(journal.redo().isEmpty());
+        assertEquals(List.of(a, c), journal.operations());
+    }
+
+    @Test
+    void savedJournalIsRestored(@TempDir Path dir) throws IOException {
+        ScoreJournal journal = new ScoreJournal();
+        journal.record(new Operation("remove", Granularity.LINE, List.of(
+                new ScoreDelta(new LineElementName("demo.A#m(int)", 10), 0.5, 0),
+                new ScoreDelta(new LineElementName("demo.A#m(int)", 11), 0.5, 0.4))));
+        journal.record(new Operation("susp", Granularity.METHOD, List.of(
+                new ScoreDelta(new MethodElementName("demo.A#n()"), 0.25, 0.3))));
+        journal.record(new Operation("susp", Granularity.CLASS, List.of(
+                new ScoreDelta(new ClassElementName("demo.A"), 0.1, 0.12))));
+        journal.undo();
+
+        Path file = dir.resolve("session.journal");
+        ScoreJournalFile.save(file, "OCHIAI", journal);
+        ScoreJournalFile.Saved saved = ScoreJournalFile.load(file);
+
+        assertEquals("OCHIAI", saved.formula());
+        assertEquals(2, saved.journal().appliedCount());
+        assertEquals(journal.operations(), saved.journal().operations());
+    }
+}
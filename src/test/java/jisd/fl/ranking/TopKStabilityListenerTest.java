@@ -0,0 +1,64 @@
+package jisd.fl.ranking;
+
+import jisd.fl.core.entity.FLRanking;
+import jisd.fl.core.entity.element.LineElementName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TopKStabilityListenerTest {
+    static final LineElementName A = new LineElementName("demo.A#m()", 1);
+    static final LineElementName B = new LineElementName("demo.A#m()", 2);
+    static final LineElementName C = new LineElementName("demo.A#m()", 3);
+
+    //上位2件が2回続けて変わらなかった時点で打ち切り、委譲先にも打ち切りを伝える
+    @Test
+    void stopsWhenTopKIsStable() {
+        List<String> events = new ArrayList<>();
+        ProvisionalRankingListener delegate = new ProvisionalRankingListener() {
+            @Override
+            public boolean onRanking(FLRanking ranking, int testsDone, int testsTotal) {
+                events.add("ranking " + testsDone);
+                return true;
+            }
+
+            @Override
+            public void onStopped(int testsDone, int testsTotal) {
+                events.add("stopped " + testsDone + "/" + testsTotal);
+            }
+        };
+        TopKStabilityListener listener = new TopKStabilityListener(2, 2, delegate);
+
+        assertTrue(listener.onRanking(ranking(0.9, 0.5, 0.1), 1, 10));
+        //3位の変化は上位2件に影響しない
+        assertTrue(listener.onRanking(ranking(0.9, 0.5, 0.3), 2, 10));
+        //上位2件の順序が変わるとやり直す
+        assertTrue(listener.onRanking(ranking(0.5, 0.9, 0.1), 3, 10));
+        assertTrue(listener.onRanking(ranking(0.5, 0.9, 0.1), 4, 10));
+        assertFalse(listener.onRanking(ranking(0.4, 0.8, 0.1), 5, 10));
+        listener.onStopped(5, 10);
+
+        assertEquals(List.of("ranking 1", "ranking 2", "ranking 3", "ranking 4", "ranking 5", "stopped 5/10"), events);
+    }
+
+    //委譲先が false を返した場合はその時点で打ち切る
+    @Test
+    void delegateCanStop() {
+        TopKStabilityListener listener = new TopKStabilityListener(1, 5, (ranking, done, total) -> done < 2);
+        assertTrue(listener.onRanking(ranking(0.9, 0.5, 0.1), 1, 10));
+        assertFalse(listener.onRanking(ranking(0.1, 0.5, 0.9), 2, 10));
+        //既定の onStopped は何もしない
+        listener.onStopped(2, 10);
+    }
+
+    private static FLRanking ranking(double a, double b, double c) {
+        FLRanking ranking = new FLRanking();
+        ranking.add(A, a);
+        ranking.add(B, b);
+        ranking.add(C, c);
+        return ranking;
+    }
+}
@@ -0,0 +1,46 @@
+package jisd.fl.sbfl;
+
+import jisd.fl.core.entity.sbfl.ExpressionFormula;
+import jisd.fl.core.entity.sbfl.Formula;
+import jisd.fl.core.entity.sbfl.SuspiciousnessFormula;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpressionFormulaTest {
+
+    @Test
+    void expressionMatchesBuiltInFormula() {
+        SuspiciousnessFormula ochiai = ExpressionFormula.compile("ef / sqrt((ef + nf) * (ef + ep))");
+        SuspiciousnessFormula dstar = ExpressionFormula.compile("ef^2 / (ep + nf)");
+        for (int ep = 0; ep <= 5; ep++) {
+            for (int ef = 0; ef <= 3; ef++) {
+                assertEquals(Formula.OCHIAI.calc(ep, ef, 5 - ep, 3 - ef), ochiai.calc(ep, ef, 5 - ep, 3 - ef));
+                if (ef > 0) assertEquals(Formula.DSTAR.calc(ep, ef, 5 - ep, 3 - ef), dstar.calc(ep, ef, 5 - ep, 3 - ef));
+            }
+        }
+    }
+
+    @Test
+    void calcAllMatchesCalc() {
+        SuspiciousnessFormula formula = ExpressionFormula.compile("max(ef / totalFail - ep / (totalPass + 1), -2^-1) + log(1 + ef) * 3");
+        int[] ep = {0, 1, 2, 7, 10, 0};
+        int[] ef = {0, 3, 1, 0, 2, 3};
+        double[] scores = new double[ep.length];
+        formula.calcAll(ep, ef, ep.length, 10, 3, scores);
+        for (int i = 0; i < ep.length; i++) {
+            assertEquals(formula.calc(ep[i], ef[i], 10 - ep[i], 3 - ef[i]), scores[i]);
+        }
+        //0 / 0 は 0 とする
+        assertEquals(0, ExpressionFormula.compile("ef / ep").calc(0, 0, 1, 1));
+    }
+
+    @Test
+    void formulaNameOrExpression() {
+        assertSame(Formula.OCHIAI, SuspiciousnessFormula.of("ochiai"));
+        assertInstanceOf(ExpressionFormula.class, SuspiciousnessFormula.of("ef - ep"));
+        assertThrows(IllegalArgumentException.class, () -> ExpressionFormula.compile("ef * (ep"));
+        assertThrows(IllegalArgumentException.class, () -> ExpressionFormula.compile("foo(ef)"));
+        assertThrows(IllegalArgumentException.class, () -> ExpressionFormula.compile("ef ep"));
+    }
+}
@@ -0,0 +1,38 @@
+package jisd.fl.sbfl;
+
+import jisd.fl.core.entity.sbfl.Formula;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FormulaTest {
+
+    //0 を含むすべての組み合わせで、calcAll が要素ごとの calc と同じ値 (NaN や無限大を含む) を返すこと
+    @Test
+    void calcAllIsIdenticalToCalc() {
+        for (Formula formula : Formula.values()) {
+            for (int totalPass = 0; totalPass <= 4; totalPass++) {
+                for (int totalFail = 0; totalFail <= 3; totalFail++) {
+                    int length = (totalPass + 1) * (totalFail + 1);
+                    int[] ep = new int[length];
+                    int[] ef = new int[length];
+                    int i = 0;
+                    for (int p = 0; p <= totalPass; p++) {
+                        for (int f = 0; f <= totalFail; f++) {
+                            ep[i] = p;
+                            ef[i] = f;
+                            i++;
+                        }
+                    }
+                    double[] scores = new double[length];
+                    formula.calcAll(ep, ef, length, totalPass, totalFail, scores);
+                    for (i = 0; i < length; i++) {
+                        double expected = formula.calc(ep[i], ef[i], totalPass - ep[i], totalFail - ef[i]);
+                        assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(scores[i]),
+                                formula + " ep=" + ep[i] + " ef=" + ef[i] + " totalPass=" + totalPass + " totalFail=" + totalFail);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package jisd.fl.sbfl;
+
+import jisd.fl.core.entity.coverage.LineCoverageEntry;
+import jisd.fl.core.entity.coverage.SbflCounts;
+import jisd.fl.core.entity.coverage.SbflCountsCursors;
+import jisd.fl.core.entity.element.LineElementName;
+import jisd.fl.core.entity.sbfl.Formula;
+import jisd.fl.core.entity.sbfl.SbflScoreMatrix;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SbflScoreMatrixTest {
+
+    //クラスごとに総数が異なり、まとめて計算する単位を超える数の要素で、要素ごとに calc した値と一致すること
+    @Test
+    void scoresAreIdenticalToCalc() {
+        List<LineCoverageEntry> entries = randomEntries(new Random(18), 10_000);
+        SbflScoreMatrix matrix = new SbflScoreMatrix();
+        matrix.addAll(SbflCountsCursors.fromEntries(entries.iterator(), LineCoverageEntry::e, LineCoverageEntry::counts));
+
+        assertEquals(entries.size(), matrix.size());
+        for (Formula formula : Formula.values()) assertScores(entries, matrix, formula);
+    }
+
+    //後から加えた式や、別の表から写した行も、要素ごとに calc した値と一致すること
+    @Test
+    void addedFormulasAndMergedRowsAreIdenticalToCalc() {
+        List<LineCoverageEntry> entries = randomEntries(new Random(19), 500);
+        List<LineCoverageEntry> first = entries.subList(0, 300);
+        List<LineCoverageEntry> second = entries.subList(300, 500);
+
+        SbflScoreMatrix matrix = new SbflScoreMatrix(List.of(Formula.OCHIAI));
+        matrix.addAll(SbflCountsCursors.fromEntries(first.iterator(), LineCoverageEntry::e, LineCoverageEntry::counts));
+        matrix.addFormula(Formula.DSTAR);
+        SbflScoreMatrix other = new SbflScoreMatrix(List.of(Formula.DSTAR));
+        other.addAll(SbflCountsCursors.fromEntries(second.iterator(), LineCoverageEntry::e, LineCoverageEntry::counts));
+        matrix.merge(other);
+
+        assertScores(entries, matrix, Formula.OCHIAI);
+        assertScores(entries, matrix, Formula.DSTAR);
+
+        matrix.removeAll(Set.of(entries.get(0).e(), entries.get(499).e()));
+        assertEquals(498, matrix.size());
+        assertTrue(matrix.score(entries.get(0).e(), Formula.OCHIAI).isEmpty());
+        assertScores(entries.subList(1, 499), matrix, Formula.OCHIAI);
+    }
+
+    private static void assertScores(List<LineCoverageEntry> entries, SbflScoreMatrix matrix, Formula formula) {
+        for (LineCoverageEntry e : entries) {
+            double expected = formula.calc(e.counts());
+            double actual = matrix.score(e.e(), formula).orElseThrow();
+            assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(actual), formula + " " + e);
+        }
+    }
+
+    /**
+     * 0 を含む ep/ef を持つ要素を作る。総数は 50 要素ごと (クラスごと) に変える。
+     */
+    private static List<LineCoverageEntry> randomEntries(Random random, int count) {
+        List<LineCoverageEntry> entries = new ArrayList<>();
+        int totalPass = 0;
+        int totalFail = 0;
+        for (int i = 0; i < count; i++) {
+            if (i % 50 == 0) {
+                totalPass = random.nextInt(6);
+                totalFail = random.nextInt(4);
+            }
+            int ep = random.nextInt(totalPass + 1);
+            int ef = random.nextInt(totalFail + 1);
+            LineElementName e = new LineElementName("org.sample.C" + i / 50 + "#m()", i % 50 + 1);
+            entries.add(new LineCoverageEntry(e, new SbflCounts(ep, ef, totalPass - ep, totalFail - ef)));
+        }
+        return entries;
+    }
+}